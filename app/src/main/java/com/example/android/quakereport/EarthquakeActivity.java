@@ -23,6 +23,7 @@ import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.support.v7.app.AppCompatActivity;
@@ -30,14 +31,15 @@ import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ListView;
 import android.widget.TextView;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.File;
+import java.io.IOException;
 
-public class EarthquakeActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<List<Earthquake>> {
+public class EarthquakeActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<EarthquakeTable> {
 
     public static final String LOG_TAG = EarthquakeActivity.class.getName();
 
@@ -51,10 +53,45 @@ public class EarthquakeActivity extends AppCompatActivity implements LoaderManag
      * This really only comes into play if you're using multiple loaders.
      */
     private static final int EARTHQUAKE_LOADER_ID = 1;
+
+    /**
+     * Name of the directory in the app's cache directory holding earlier USGS responses
+     */
+    private static final String RESPONSE_CACHE_DIR = "usgs-responses";
+
+    /**
+     * Upper bound of the size of cached USGS responses, in bytes
+     */
+    private static final long RESPONSE_CACHE_MAX_SIZE = 10 * 1024 * 1024;
+
+    /**
+     * Name of the file in the app's files directory the metrics are dumped to
+     */
+    private static final String METRICS_DUMP_FILE = "metrics.txt";
+
+    /**
+     * Start of the current load, for the time until the first rows are shown
+     */
+    private long mLoadStart;
     /**
      * Adapter for the list of earthquakes
      */
     private EarthquakeAdapter mAdapter;
+
+    /**
+     * Applies loaded earthquakes to {@link #mAdapter} by their diff, null with endless scrolling
+     */
+    private EarthquakeListDiffer mListDiffer;
+
+    /**
+     * Same adapter as {@link #mAdapter} when endless scrolling is enabled, null otherwise
+     */
+    private PagedEarthquakeAdapter mPagedAdapter;
+
+    /**
+     * Merges events of the USGS live feed into the list in live mode, null otherwise
+     */
+    private EarthquakeLivePoller mLivePoller;
     // ListView containing earthquake results to show on the screen
     private ListView earthquakeListView;
 
@@ -68,15 +105,57 @@ public class EarthquakeActivity extends AppCompatActivity implements LoaderManag
         super.onCreate(savedInstanceState);
         setContentView(R.layout.earthquake_activity);
 
+        // Record stage timings of the pipeline in builds which enable it
+        if (getResources().getBoolean(R.bool.metrics_enabled) && !Metrics.isEnabled()) {
+            Metrics.setEnabled(true);
+            Metrics.startPeriodicSummary(getResources().getInteger(R.integer.metrics_summary_interval_ms));
+        }
+
+        // Configure the shared HTTP transport and the response cache of this build
+        setUpQueryUtils(this);
+
+        // Keep the list warm for the next start
+        EarthquakePrefetchService.schedule(this);
+
         // Find a reference to the {@link ListView} in the layout
         earthquakeListView = (ListView) findViewById(R.id.list);
 
-        // Create a new adapter that takes an empty list of earthquakes as input
-        mAdapter = new EarthquakeAdapter(this, new ArrayList<Earthquake>());
+        // Create a new adapter that starts out empty,
+        // or one that takes its rows page by page from a pager for endless scrolling
+        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(this);
+        boolean endlessScrolling = sharedPrefs.getBoolean(
+                getString(R.string.settings_endless_scrolling_key),
+                getResources().getBoolean(R.bool.settings_endless_scrolling_default));
+        if (endlessScrolling) {
+            mPagedAdapter = new PagedEarthquakeAdapter(this);
+            mAdapter = mPagedAdapter;
+        } else {
+            mAdapter = new EarthquakeAdapter(this);
+        }
 
         // Set the adapter on the {@link ListView}
         // so the list can be populated in the user interface
         earthquakeListView.setAdapter(mAdapter);
+        if (mPagedAdapter == null) {
+            mListDiffer = new EarthquakeListDiffer(earthquakeListView, mAdapter);
+        }
+
+        // In live mode the list follows the USGS live feed while it is visible. Endless
+        // scrolling lists are fetched page by page, they can't take merged events.
+        boolean liveMode = sharedPrefs.getBoolean(
+                getString(R.string.settings_live_mode_key),
+                getResources().getBoolean(R.bool.settings_live_mode_default));
+        if (liveMode && mListDiffer != null) {
+            mLivePoller = new EarthquakeLivePoller(this, buildRequestUrl(this),
+                    getResources().getInteger(R.integer.live_poll_min_interval_ms),
+                    getResources().getInteger(R.integer.live_poll_max_interval_ms));
+            mLivePoller.setOnLiveUpdateListener(new EarthquakeLivePoller.OnLiveUpdateListener() {
+                @Override
+                public void onLiveUpdate(EarthquakeTable earthquakes) {
+                    mListDiffer.submit(earthquakes);
+                }
+            });
+        }
 
         // Set empty view which shows a message to user when there is no data
         // But don't add a text yet not to cause showing the message while data is fetching when opening the app
@@ -90,7 +169,11 @@ public class EarthquakeActivity extends AppCompatActivity implements LoaderManag
             @Override
             public void onItemClick(AdapterView<?> adapterView, View view, int position, long l) {
                 // Find the current earthquake that was clicked on
-                Earthquake currentEarthquake = mAdapter.getItem(position);
+                // Placeholder rows of pages which are still being fetched can't be opened
+                EarthquakeTable.Row currentEarthquake = mAdapter.getItem(position);
+                if (currentEarthquake == null) {
+                    return;
+                }
 
                 // Convert the String URL into a URI object (to pass into the Intent constructor)
                 Uri earthquakeUri = Uri.parse(currentEarthquake.getUrl());
@@ -103,24 +186,79 @@ public class EarthquakeActivity extends AppCompatActivity implements LoaderManag
             }
         });
 
-        // Check if there is an available internet connection or not
-        // Don't init loader and directly display warning message to the user if no internet connection
-        if (isConnected()) {
-            // Get a reference to the LoaderManager, in order to interact with loaders.
-            LoaderManager loaderManager = getLoaderManager();
-            Log.i(LOG_TAG, "Loader manager instantiated");
-
-            // Initialize the loader. Pass in the int ID constant defined above and pass in null for
-            // the bundle. Pass in this activity for the LoaderCallbacks parameter (which is valid
-            // because this activity implements the LoaderCallbacks interface).
-            loaderManager.initLoader(EARTHQUAKE_LOADER_ID, null, this);
-        } else {
-            // Hide progress bar to show loaded data or informing message about no results
-            View progressBar = findViewById(R.id.loading_spinner);
-            progressBar.setVisibility(View.GONE);
+        // Tell the pager which rows are visible, so it can prefetch the next page in time
+        // and drop pages which are far away from the screen
+        if (mPagedAdapter != null) {
+            earthquakeListView.setOnScrollListener(new AbsListView.OnScrollListener() {
+                @Override
+                public void onScrollStateChanged(AbsListView view, int scrollState) {
+                }
+
+                @Override
+                public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                                     int totalItemCount) {
+                    EarthquakePager pager = mPagedAdapter.getPager();
+                    if (pager != null) {
+                        pager.onVisibleRangeChanged(firstVisibleItem, visibleItemCount);
+                    }
+                }
+            });
+        }
 
-            // If no internet connection is available, inform the user
-            mEmptyStateTextView.setText(R.string.no_internet_connection);
+        // Get a reference to the LoaderManager, in order to interact with loaders.
+        LoaderManager loaderManager = getLoaderManager();
+        Log.i(LOG_TAG, "Loader manager instantiated");
+
+        // With endless scrolling the loader provides the first page, the pager all further ones.
+        // A loader is kept over configuration changes but the adapter is not, so the pager is
+        // set up here, for the query of the kept loader if there is one.
+        if (mPagedAdapter != null) {
+            Loader<EarthquakeTable> keptLoader = loaderManager.getLoader(EARTHQUAKE_LOADER_ID);
+            String requestUrl = keptLoader instanceof EarthquakeLoader
+                    ? ((EarthquakeLoader) keptLoader).getUrl()
+                    : buildRequestUrl(this);
+            mPagedAdapter.setPager(newPager(requestUrl));
+        }
+
+        // Initialize the loader. Pass in the int ID constant defined above and pass in null for
+        // the bundle. Pass in this activity for the LoaderCallbacks parameter (which is valid
+        // because this activity implements the LoaderCallbacks interface).
+        // The loader is started without an internet connection too, so earthquakes stored
+        // on the device can still be shown.
+        loaderManager.initLoader(EARTHQUAKE_LOADER_ID, null, this);
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        if (mLivePoller != null) {
+            mLivePoller.start();
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        // Don't poll for a list nobody is looking at
+        if (mLivePoller != null) {
+            mLivePoller.stop();
+        }
+        // Leave the numbers of this session where they can be pulled from the device
+        if (Metrics.isEnabled()) {
+            try {
+                Metrics.dump(new File(getFilesDir(), METRICS_DUMP_FILE));
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Problem dumping metrics", e);
+            }
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // Stop fetching pages nobody is going to see
+        if (mPagedAdapter != null) {
+            mPagedAdapter.setPager(null);
         }
     }
 
@@ -154,61 +292,147 @@ public class EarthquakeActivity extends AppCompatActivity implements LoaderManag
     }
 
     @Override
-    public Loader<List<Earthquake>> onCreateLoader(int id, Bundle args) {
+    public Loader<EarthquakeTable> onCreateLoader(int id, Bundle args) {
         Log.i(LOG_TAG, "onCreateLoader() run");
+        mLoadStart = Metrics.startTimer();
         // Create a new loader for the given URL
-        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(this);
+        String requestUrl = buildRequestUrl(this);
+        return new EarthquakeLoader(this, requestUrl,
+                getResources().getInteger(R.integer.progressive_batch_size),
+                getResources().getInteger(R.integer.progressive_batch_interval_ms),
+                getResources().getInteger(R.integer.loader_freshness_ttl_ms));
+    }
+
+    /**
+     * Returns a pager of the given query, with pages as long as its "limit".
+     */
+    private EarthquakePager newPager(String requestUrl) {
+        int pageSize;
+        try {
+            pageSize = Integer.parseInt(Uri.parse(requestUrl).getQueryParameter("limit"));
+        } catch (NumberFormatException e) {
+            pageSize = Integer.parseInt(getString(R.string.settings_limit_results_default));
+        }
+        return new EarthquakePager(this, requestUrl, pageSize);
+    }
+
+    /**
+     * Configures the shared HTTP transport with the timeouts and retries of this build, and
+     * installs the response cache, so repeated queries can be revalidated with a conditional
+     * request instead of downloading the whole feed again. GeoJSON bodies whose uncompressed
+     * length is known to be large are parsed on all cores if the device has several. Only the
+     * first call of a process has an effect.
+     */
+    static synchronized void setUpQueryUtils(Context context) {
+        if (QueryUtils.getResponseCache() != null) {
+            return;
+        }
+        QueryUtils.setTransport(new HttpTransport(
+                context.getResources().getInteger(R.integer.http_connect_timeout_ms),
+                context.getResources().getInteger(R.integer.http_read_timeout_ms),
+                context.getResources().getInteger(R.integer.http_total_timeout_ms),
+                new RetryPolicy(context.getResources().getInteger(R.integer.http_max_attempts),
+                        context.getResources().getInteger(R.integer.http_retry_base_delay_ms),
+                        context.getResources().getInteger(R.integer.http_retry_max_delay_ms)),
+                context.getResources().getBoolean(R.bool.http_hedging_enabled)));
+        QueryUtils.setResponseCache(new EarthquakeResponseCache(
+                new File(context.getCacheDir(), RESPONSE_CACHE_DIR), RESPONSE_CACHE_MAX_SIZE));
+        // ForkJoinPool is only available since Lollipop
+        int cores = Runtime.getRuntime().availableProcessors();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && cores > 1
+                && context.getResources().getBoolean(R.bool.parallel_decode_enabled)) {
+            EarthquakeFeedDecoders.setParallelGeoJsonDecoder(new ParallelGeoJsonFeedDecoder(cores,
+                    context.getResources().getInteger(R.integer.parallel_decode_min_bytes)));
+        }
+    }
+
+    /**
+     * Returns the USGS query URL of the list, built from the settings.
+     */
+    static String buildRequestUrl(Context context) {
+        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
 
         String minMagnitude = sharedPrefs.getString(
-                getString(R.string.settings_min_magnitude_key),
-                getString(R.string.settings_min_magnitude_default));
+                context.getString(R.string.settings_min_magnitude_key),
+                context.getString(R.string.settings_min_magnitude_default));
 
         String limitResults = sharedPrefs.getString(
-                getString(R.string.settings_limit_results_key),
-                getString(R.string.settings_limit_results_default)
+                context.getString(R.string.settings_limit_results_key),
+                context.getString(R.string.settings_limit_results_default)
         );
 
         String orderBy = sharedPrefs.getString(
-                getString(R.string.settings_order_by_key),
-                getString(R.string.settings_order_by_default)
+                context.getString(R.string.settings_order_by_key),
+                context.getString(R.string.settings_order_by_default)
         );
 
         Uri baseUri = Uri.parse(USGS_REQUEST_URL);
         Uri.Builder uriBuilder = baseUri.buildUpon();
 
-        uriBuilder.appendQueryParameter("format", "geojson");
+        uriBuilder.appendQueryParameter(EarthquakeFeedDecoders.PARAM_FORMAT, context.getString(R.string.feed_format));
         uriBuilder.appendQueryParameter("limit", limitResults);
         uriBuilder.appendQueryParameter("minmag", minMagnitude);
         uriBuilder.appendQueryParameter("orderby", orderBy);
 
         Log.i(LOG_TAG, "Url to query: " + uriBuilder.toString());
-        return new EarthquakeLoader(this, uriBuilder.toString());
+        return uriBuilder.toString();
     }
 
     @Override
-    public void onLoadFinished(Loader<List<Earthquake>> loader, List<Earthquake> earthquakes) {
+    public void onLoadFinished(Loader<EarthquakeTable> loader, EarthquakeTable earthquakes) {
+        long start = Metrics.startTimer();
+        if (earthquakes != null && !earthquakes.isEmpty() && mLoadStart != 0) {
+            // Partial results arrive here too, so this is the first time rows can be seen
+            Metrics.stopTimer("ui.time_to_first_rows_us", mLoadStart);
+            mLoadStart = 0;
+        }
+
         // Hide progress bar to show loaded data or informing message about no results
         View progressBar = findViewById(R.id.loading_spinner);
         progressBar.setVisibility(View.GONE);
 
         // If there'd be no earthquake data to show, informing message will be displayed to the user
-        mEmptyStateTextView.setText(R.string.no_earthquake_found);
+        // Without an internet connection, nothing could be fetched beyond what is stored
+        if (isConnected()) {
+            mEmptyStateTextView.setText(R.string.no_earthquake_found);
+        } else {
+            mEmptyStateTextView.setText(R.string.no_internet_connection);
+        }
 
-        // Clear the adapter of previous earthquake data
-        mAdapter.clear();
+        // With endless scrolling the loaded earthquakes are the first page of the pager
+        if (mPagedAdapter != null) {
+            if (earthquakes != null && mPagedAdapter.getPager() != null) {
+                mPagedAdapter.getPager().setFirstPage(earthquakes);
+            }
+            Metrics.stopTimer("ui.load_finished_us", start);
+            return;
+        }
 
-        // If there is a valid list of {@link Earthquake}s, then add them to the adapter's
-        // data set. This will trigger the ListView to update.
+        // Update the adapter's data set with what changed in the loaded table. The loader
+        // publishes growing snapshots while the download is running, and refreshes mostly
+        // change a few events, the list keeps showing the same earthquakes.
         if (earthquakes != null && !earthquakes.isEmpty()) {
             Log.i(LOG_TAG, "onLoadFinished(): Adapter not empty and loaded with data");
-            mAdapter.addAll(earthquakes);
         }
+        mListDiffer.submit(earthquakes);
+        // Live events are merged into the list as it was loaded from now on
+        if (mLivePoller != null) {
+            mLivePoller.setEarthquakes(earthquakes);
+        }
+        Metrics.stopTimer("ui.load_finished_us", start);
     }
 
     @Override
-    public void onLoaderReset(Loader<List<Earthquake>> loader) {
+    public void onLoaderReset(Loader<EarthquakeTable> loader) {
         // Loader reset, so we can clear out our existing data.
-        mAdapter.clear();
+        if (mLivePoller != null) {
+            mLivePoller.setEarthquakes(null);
+        }
+        if (mListDiffer != null) {
+            mListDiffer.submit(null);
+        } else {
+            mAdapter.setEarthquakes(null);
+        }
         Log.i(LOG_TAG, "onLoaderReset() run");
     }
 }
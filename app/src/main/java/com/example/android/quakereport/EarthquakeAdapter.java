@@ -5,46 +5,121 @@ package com.example.android.quakereport;
  */
 
 import android.app.Activity;
+import android.content.Context;
 import android.graphics.drawable.GradientDrawable;
-import android.support.v4.content.ContextCompat;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.TextView;
 
-import java.text.DecimalFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.List;
-
 /*
-* {@link EarthquakeAdapter} is an {@link ArrayAdapter} that can provide the layout for each list
-* based on a data source, which is a list of {@link AndroidFlavor} objects.
+* {@link EarthquakeAdapter} is a {@link BaseAdapter} that can provide the layout for each list
+* based on a data source, which is an {@link EarthquakeTable} of earthquakes.
 * */
-public class EarthquakeAdapter extends ArrayAdapter<Earthquake> {
+public class EarthquakeAdapter extends BaseAdapter {
 
     private static final String LOG_TAG = EarthquakeAdapter.class.getSimpleName();
-    private static final String LOCATION_SEPERATOR = "of";
 
     /**
-     * This is our own custom constructor (it doesn't mirror a superclass constructor).
-     * The context is used to inflate the layout file, and the list is the data we want
-     * to populate into the lists.
+     * The current context. Used to inflate the layout file.
+     */
+    private final Activity mContext;
+
+    /**
+     * The earthquakes to display, one row each
+     */
+    private EarthquakeTable mEarthquakes = new EarthquakeTable();
+
+    /**
+     * Formatter for tables without precomputed display models, created on first use
+     */
+    private EarthquakeFormatter mFormatter;
+
+    /**
+     * This is our own custom constructor. The context is used to inflate the layout file.
+     * The adapter starts out empty, call {@link #setEarthquakes(EarthquakeTable)} to fill it.
      *
-     * @param context     The current context. Used to inflate the layout file.
-     * @param earthquakes A List of Earthquake objects to display in a list
+     * @param context The current context. Used to inflate the layout file.
      */
-    public EarthquakeAdapter(Activity context, List<Earthquake> earthquakes) {
-        // Here, we initialize the ArrayAdapter's internal storage for the context and the list.
-        // the second argument is used when the ArrayAdapter is populating a single TextView.
-        // Because this is a custom adapter for two TextViews and an ImageView, the adapter is not
-        // going to use this second argument, so it can be any value. Here, we used 0.
-        super(context, 0, earthquakes);
+    public EarthquakeAdapter(Activity context) {
+        mContext = context;
+    }
+
+    public Context getContext() {
+        return mContext;
+    }
+
+    /**
+     * Replaces the displayed earthquakes. This will trigger the ListView to update.
+     *
+     * @param earthquakes table of earthquakes to display, null to clear the list
+     */
+    public void setEarthquakes(EarthquakeTable earthquakes) {
+        mEarthquakes = earthquakes != null ? earthquakes : new EarthquakeTable();
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Replaces the displayed earthquakes with a table showing the same rows at the same
+     * positions, without updating the ListView. Rows which look different have to be rebound
+     * by the caller, see {@link EarthquakeListDiffer}.
+     */
+    void swapEarthquakes(EarthquakeTable earthquakes) {
+        mEarthquakes = earthquakes;
+    }
+
+    /**
+     * Returns the displayed earthquakes.
+     */
+    public EarthquakeTable getEarthquakes() {
+        return mEarthquakes;
+    }
+
+    @Override
+    public int getCount() {
+        return mEarthquakes.size();
+    }
+
+    /**
+     * Returns a view of the earthquake at the given position, or null if it isn't available yet.
+     */
+    @Override
+    public EarthquakeTable.Row getItem(int position) {
+        return mEarthquakes.getRow(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    /**
+     * Returns the precomputed display model of the earthquake at the given position,
+     * or null if the earthquake isn't available yet.
+     */
+    protected EarthquakeDisplayModel getDisplayModel(int position) {
+        EarthquakeDisplayModel displayModel = mEarthquakes.getDisplayModel(position);
+        if (displayModel == null) {
+            // Only tables which didn't go through a loader end up here, format just this row
+            displayModel = mEarthquakes.prepareDisplayModel(position, getFormatter());
+        }
+        return displayModel;
+    }
+
+    private EarthquakeFormatter getFormatter() {
+        if (mFormatter == null) {
+            mFormatter = EarthquakeFormatters.newFormatter(mContext);
+        }
+        return mFormatter;
     }
 
     /**
      * Provides a view for an AdapterView (ListView, GridView, etc.)
+     * <p>
+     * All texts and the magnitude color are precomputed off the main thread, and the views
+     * of a recycled list item are kept in its {@link ViewHolder}, so binding a row only copies
+     * fields without allocating or looking up views.
      *
      * @param position    The position in the list of data that should be displayed in the
      *                    list item view.
@@ -54,74 +129,47 @@ public class EarthquakeAdapter extends ArrayAdapter<Earthquake> {
      */
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
+        long start = Metrics.startTimer();
         // Check if the existing view is being reused, otherwise inflate the view
+        // and find its child views once
         View listItemView = convertView;
+        ViewHolder holder;
         if (listItemView == null) {
             listItemView = LayoutInflater.from(getContext()).inflate(
                     R.layout.earthquake_list_item, parent, false);
-        }
-
-        // Get the {@link Earthquake} object located at this position in the list
-        Earthquake currentEarthquake = getItem(position);
-
-        // Find the TextView in the earthquake_list_item.xmlst_item.xml layout with the ID earthquake_magnitude
-        TextView magnitudeView = (TextView) listItemView.findViewById(R.id.earthquake_magnitude);
-        // Get the magnitude from the current Earthquake object, format decimals and
-        // set this text on the magnitude TextView
-        DecimalFormat decimalFormatter = new DecimalFormat("#0.0");
-        String formattedMagnitude = decimalFormatter.format(currentEarthquake.getMagnitude());
-        magnitudeView.setText(formattedMagnitude);
-
-        // Set the proper background color on the magnitude circle.
-        // Fetch the background from the TextView, which is a GradientDrawable.
-        GradientDrawable magnitudeCircle = (GradientDrawable) magnitudeView.getBackground();
-
-        // Get the appropriate background color based on the current earthquake magnitude
-        int magnitudeColor = getMagnitudeColor(currentEarthquake.getMagnitude());
-
-        // Set the color on the magnitude circle
-        magnitudeCircle.setColor(magnitudeColor);
-
-        // Find the TextView in the earthquake_list_item.xmlst_item.xml layout with the ID earthquake_locationprime
-        TextView locationPrimeTextView = (TextView) listItemView.findViewById(R.id.earthquake_location_prime);
-        TextView locationOffsetTextView = (TextView) listItemView.findViewById(R.id.earthquake_location_offset);
-
-        // Get originalLocation info and check whether it contains "of" (offset information)
-        String originalLocation = currentEarthquake.getLocation();
-        String locationPrime, locationOffset;
-        boolean hasOffsetInfo = originalLocation.contains(LOCATION_SEPERATOR);
-
-
-        if (hasOffsetInfo) {
-            // if originalLocation contains "of" split it to prime and offset
-            String[] locationParts = originalLocation.split(LOCATION_SEPERATOR);
-            locationOffset = locationParts[0] + LOCATION_SEPERATOR;
-            locationPrime = locationParts[1];
+            holder = new ViewHolder(listItemView);
+            listItemView.setTag(holder);
         } else {
-            // if originalLocation don't contain "of", set originalLocation to prime, and "Near the" to offset
-            locationOffset = getContext().getString(R.string.near_the);
-            locationPrime = originalLocation;
+            holder = (ViewHolder) listItemView.getTag();
         }
 
-        // Set the string values of originalLocation prime and offset to TextViews
-        locationPrimeTextView.setText(locationPrime);
-        locationOffsetTextView.setText(locationOffset);
+        // Get the display model of the earthquake located at this position in the list
+        EarthquakeDisplayModel displayModel = getDisplayModel(position);
+
+        // Rows of a page which is still being fetched are shown as empty placeholders
+        if (displayModel == null) {
+            holder.magnitudeView.setText("");
+            holder.locationPrimeTextView.setText("");
+            holder.locationOffsetTextView.setText("");
+            holder.dateTextView.setText("");
+            holder.timeTextView.setText("");
+            Metrics.stopTimer("ui.bind_us", start);
+            return listItemView;
+        }
 
-        // Find the TextView in the earthquake_list_item.xmlst_item.xml layout with the ID earthquake_date
-        TextView dateTextView = (TextView) listItemView.findViewById(R.id.earthquake_date);
-        // Find the TextView in the earthquake_list_item.xmlst_item.xml layout with the ID earthquake_time
-        TextView timeTextView = (TextView) listItemView.findViewById(R.id.earthquake_time);
+        // Set the formatted magnitude and the proper background color on the magnitude circle
+        holder.magnitudeView.setText(displayModel.getMagnitude());
+        holder.magnitudeCircle.setColor(displayModel.getMagnitudeColor());
 
-        /* Get the time in millisec from the current Earthquake object and
-         * convert it to user friendly formatted time and date
-         */
-        Date dateObject = new Date(currentEarthquake.getTimeInMillisec());
-        String formattedDate = formatDate(dateObject);
-        String formattedTime = formatTime(dateObject);
+        // Set the string values of location prime and offset to TextViews
+        holder.locationPrimeTextView.setText(displayModel.getLocationPrime());
+        holder.locationOffsetTextView.setText(displayModel.getLocationOffset());
 
         // set formatted time and date on the TextViews
-        dateTextView.setText(formattedDate);
-        timeTextView.setText(formattedTime);
+        holder.dateTextView.setText(displayModel.getDate());
+        holder.timeTextView.setText(displayModel.getTime());
+
+        Metrics.stopTimer("ui.bind_us", start);
 
         // Return the whole list item layout (containing 2 TextViews and an ImageView)
         // so that it can be shown in the ListView
@@ -129,71 +177,24 @@ public class EarthquakeAdapter extends ArrayAdapter<Earthquake> {
     }
 
     /**
-     * Gets magnitude of earthquake, finds corresponding magnitude color and returns it
-     *
-     * @param magnitude
-     * @return
+     * Views of a list item, looked up once when the item is inflated.
      */
-    private int getMagnitudeColor(double magnitude) {
-        int magnitudeColorID;
-        int magnitudeFloor = (int) Math.floor(magnitude);
-
-        switch (magnitudeFloor) {
-            case 1:
-                magnitudeColorID = ContextCompat.getColor(getContext(), R.color.magnitude1);
-                break;
-            case 2:
-                magnitudeColorID = ContextCompat.getColor(getContext(), R.color.magnitude2);
-                break;
-            case 3:
-                magnitudeColorID = ContextCompat.getColor(getContext(), R.color.magnitude3);
-                break;
-            case 4:
-                magnitudeColorID = ContextCompat.getColor(getContext(), R.color.magnitude4);
-                break;
-            case 5:
-                magnitudeColorID = ContextCompat.getColor(getContext(), R.color.magnitude5);
-                break;
-            case 6:
-                magnitudeColorID = ContextCompat.getColor(getContext(), R.color.magnitude6);
-                break;
-            case 7:
-                magnitudeColorID = ContextCompat.getColor(getContext(), R.color.magnitude7);
-                break;
-            case 8:
-                magnitudeColorID = ContextCompat.getColor(getContext(), R.color.magnitude8);
-                break;
-            case 9:
-                magnitudeColorID = ContextCompat.getColor(getContext(), R.color.magnitude9);
-                break;
-            default:
-                magnitudeColorID = ContextCompat.getColor(getContext(), R.color.magnitude10plus);
-                break;
+    private static class ViewHolder {
+        final TextView magnitudeView;
+        final GradientDrawable magnitudeCircle;
+        final TextView locationPrimeTextView;
+        final TextView locationOffsetTextView;
+        final TextView dateTextView;
+        final TextView timeTextView;
+
+        ViewHolder(View listItemView) {
+            magnitudeView = (TextView) listItemView.findViewById(R.id.earthquake_magnitude);
+            // Fetch the background from the TextView, which is a GradientDrawable.
+            magnitudeCircle = (GradientDrawable) magnitudeView.getBackground();
+            locationPrimeTextView = (TextView) listItemView.findViewById(R.id.earthquake_location_prime);
+            locationOffsetTextView = (TextView) listItemView.findViewById(R.id.earthquake_location_offset);
+            dateTextView = (TextView) listItemView.findViewById(R.id.earthquake_date);
+            timeTextView = (TextView) listItemView.findViewById(R.id.earthquake_time);
         }
-
-        return magnitudeColorID;
     }
-
-    /**
-     * Return the formatted date String (i.e. Mar 03, 2016) from a Date object
-     *
-     * @param dateObject
-     * @return formatted date String
-     */
-    private String formatDate(Date dateObject) {
-        SimpleDateFormat dateFormatter = new SimpleDateFormat("MMM dd, yyyy");
-        return dateFormatter.format(dateObject);
-    }
-
-    /**
-     * Return the formatted time String (i.e. 4:15, PM) from a Date object
-     *
-     * @param dateObject
-     * @return
-     */
-    private String formatTime(Date dateObject) {
-        SimpleDateFormat timeFormatter = new SimpleDateFormat("h:mm a");
-        return timeFormatter.format(dateObject);
-    }
-
-}
\ No newline at end of file
+}
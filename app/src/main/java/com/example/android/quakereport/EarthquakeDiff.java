@@ -0,0 +1,145 @@
+package com.example.android.quakereport;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Difference between two lists of earthquakes, with rows matched by event id.
+ * <p>
+ * A row of the new list is either kept from the old list, where it may have changed its
+ * content or position, or inserted. Rows of the old list which aren't in the new one are
+ * removed. Rows without an id never match, they count as removed and inserted.
+ * <p>
+ * Computing a diff is O(n) and meant to run on a background thread; the result is immutable.
+ */
+public final class EarthquakeDiff {
+
+    private final int[] mOldToNew;
+    private final boolean[] mChanged;
+    private final int mInserted;
+    private final int mRemoved;
+    private final int mChangedCount;
+    private final boolean mMoved;
+
+    private EarthquakeDiff(int[] oldToNew, boolean[] changed, int inserted, int removed, int changedCount,
+                           boolean moved) {
+        mOldToNew = oldToNew;
+        mChanged = changed;
+        mInserted = inserted;
+        mRemoved = removed;
+        mChangedCount = changedCount;
+        mMoved = moved;
+    }
+
+    /**
+     * Computes the difference from the old to the new list.
+     */
+    public static EarthquakeDiff compute(EarthquakeTable oldTable, EarthquakeTable newTable) {
+        int oldSize = oldTable.size();
+        int newSize = newTable.size();
+
+        // Position of every id in the old list; a repeated id only matches its first row
+        Map<String, Integer> oldPositions = new HashMap<>(Math.max(16, oldSize * 4 / 3 + 1));
+        for (int i = 0; i < oldSize; i++) {
+            String id = oldTable.getId(i);
+            if (id != null && !oldPositions.containsKey(id)) {
+                oldPositions.put(id, i);
+            }
+        }
+
+        int[] oldToNew = new int[oldSize];
+        Arrays.fill(oldToNew, -1);
+        boolean[] changed = new boolean[newSize];
+        int inserted = 0;
+        int changedCount = 0;
+        for (int i = 0; i < newSize; i++) {
+            String id = newTable.getId(i);
+            Integer oldPosition = id != null ? oldPositions.get(id) : null;
+            if (oldPosition == null || oldToNew[oldPosition] >= 0) {
+                changed[i] = true;
+                inserted++;
+            } else {
+                oldToNew[oldPosition] = i;
+                if (!sameContent(oldTable, oldPosition, newTable, i)) {
+                    changed[i] = true;
+                    changedCount++;
+                }
+            }
+        }
+
+        // Kept rows have moved if they don't appear in the same order in both lists
+        boolean moved = false;
+        int lastNewPosition = -1;
+        for (int i = 0; i < oldSize && !moved; i++) {
+            if (oldToNew[i] >= 0) {
+                moved = oldToNew[i] < lastNewPosition;
+                lastNewPosition = oldToNew[i];
+            }
+        }
+        int removed = oldSize - (newSize - inserted);
+        return new EarthquakeDiff(oldToNew, changed, inserted, removed, changedCount, moved);
+    }
+
+    /**
+     * Returns true if the two rows are displayed the same way.
+     */
+    private static boolean sameContent(EarthquakeTable oldTable, int oldPosition,
+                                       EarthquakeTable newTable, int newPosition) {
+        return oldTable.getMagnitude(oldPosition) == newTable.getMagnitude(newPosition)
+                && oldTable.getTimeInMillisec(oldPosition) == newTable.getTimeInMillisec(newPosition)
+                && equal(oldTable.getLocation(oldPosition), newTable.getLocation(newPosition))
+                && equal(oldTable.getUrl(oldPosition), newTable.getUrl(newPosition));
+    }
+
+    private static boolean equal(String lhs, String rhs) {
+        return lhs == null ? rhs == null : lhs.equals(rhs);
+    }
+
+    /**
+     * Returns true if both lists show the same rows in the same order.
+     */
+    public boolean isEmpty() {
+        return !isStructural() && mChangedCount == 0;
+    }
+
+    /**
+     * Returns true if rows were inserted, removed or moved, i.e. positions don't carry over.
+     */
+    public boolean isStructural() {
+        return mInserted > 0 || mRemoved > 0 || mMoved;
+    }
+
+    /**
+     * Returns the position of a row of the old list in the new list, or -1 if it was removed.
+     */
+    public int getNewPosition(int oldPosition) {
+        return mOldToNew[oldPosition];
+    }
+
+    /**
+     * Returns true if the row at the given position of the new list was inserted or has
+     * changed its content.
+     */
+    public boolean isChanged(int newPosition) {
+        return mChanged[newPosition];
+    }
+
+    public int getInsertedCount() {
+        return mInserted;
+    }
+
+    public int getRemovedCount() {
+        return mRemoved;
+    }
+
+    public int getChangedCount() {
+        return mChangedCount;
+    }
+
+    @Override
+    public String toString() {
+        return "EarthquakeDiff{inserted=" + mInserted + ", removed=" + mRemoved + ", changed=" + mChangedCount
+                + ", moved=" + mMoved + "}";
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.android.quakereport;
+
+import android.net.Uri;
+
+/**
+ * Picks the {@link EarthquakeFeedDecoder} for the wire format of a USGS request.
+ */
+public final class EarthquakeFeedDecoders {
+
+    /**
+     * USGS query parameter selecting the wire format
+     */
+    public static final String PARAM_FORMAT = "format";
+
+    private static final EarthquakeFeedDecoder GEOJSON = new GeoJsonFeedDecoder();
+    private static final EarthquakeFeedDecoder CSV = new CsvFeedDecoder();
+
+    /**
+     * Decoder of large GeoJSON bodies on several cores, null if there is none
+     */
+    private static volatile ParallelGeoJsonFeedDecoder sParallelGeoJson;
+
+    /**
+     * This class is only meant to hold static methods.
+     */
+    private EarthquakeFeedDecoders() {
+
+    }
+
+    /**
+     * Returns the decoder of the given format, GeoJSON for unknown formats.
+     */
+    public static EarthquakeFeedDecoder forFormat(String format) {
+        if (CsvFeedDecoder.FORMAT.equals(format)) {
+            return CSV;
+        }
+        return GEOJSON;
+    }
+
+    /**
+     * Installs the decoder of GeoJSON bodies which are known to be large, e.g. on devices with
+     * several cores. Pass null to stream all bodies.
+     */
+    public static void setParallelGeoJsonDecoder(ParallelGeoJsonFeedDecoder decoder) {
+        sParallelGeoJson = decoder;
+    }
+
+    /**
+     * Returns the decoder of GeoJSON bodies of the given length if they are large enough to be
+     * decoded on several cores, null if they are better streamed as they arrive.
+     *
+     * @param bodyLength length of the decompressed body in bytes, -1 if unknown
+     */
+    public static ParallelGeoJsonFeedDecoder forLargeGeoJson(long bodyLength) {
+        ParallelGeoJsonFeedDecoder decoder = sParallelGeoJson;
+        return decoder != null && bodyLength >= decoder.getMinParallelBytes() ? decoder : null;
+    }
+
+    /**
+     * Returns the decoder of the format the given USGS URL asks for: the "format" parameter of
+     * a query, or the file extension of a summary feed.
+     */
+    public static EarthquakeFeedDecoder forUrl(String requestUrl) {
+        Uri uri = Uri.parse(requestUrl);
+        String format = uri.getQueryParameter(PARAM_FORMAT);
+        String path = uri.getPath();
+        if (format == null && path != null && path.lastIndexOf('.') > path.lastIndexOf('/')) {
+            format = path.substring(path.lastIndexOf('.') + 1);
+        }
+        return forFormat(format);
+    }
+
+    /**
+     * Returns true if the given format can be decoded.
+     */
+    public static boolean isSupported(String format) {
+        return GeoJsonFeedDecoder.FORMAT.equals(format) || CsvFeedDecoder.FORMAT.equals(format);
+    }
+}
@@ -0,0 +1,45 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+import android.support.v4.content.ContextCompat;
+
+/**
+ * Creates {@link EarthquakeFormatter}s with the colors and strings of the app's resources.
+ */
+public final class EarthquakeFormatters {
+
+    /**
+     * Magnitude circle color resource ids, by the floor of the magnitude (index 0 is unused)
+     */
+    private static final int[] MAGNITUDE_COLOR_IDS = {
+            R.color.magnitude1,
+            R.color.magnitude1,
+            R.color.magnitude2,
+            R.color.magnitude3,
+            R.color.magnitude4,
+            R.color.magnitude5,
+            R.color.magnitude6,
+            R.color.magnitude7,
+            R.color.magnitude8,
+            R.color.magnitude9};
+
+    /**
+     * This class is only meant to hold static methods.
+     */
+    private EarthquakeFormatters() {
+
+    }
+
+    /**
+     * Returns a new formatter using the resources of the given context.
+     */
+    public static EarthquakeFormatter newFormatter(Context context) {
+        int[] magnitudeColors = new int[MAGNITUDE_COLOR_IDS.length];
+        for (int i = 0; i < MAGNITUDE_COLOR_IDS.length; i++) {
+            magnitudeColors[i] = ContextCompat.getColor(context, MAGNITUDE_COLOR_IDS[i]);
+        }
+        return new EarthquakeFormatter(magnitudeColors,
+                ContextCompat.getColor(context, R.color.magnitude10plus),
+                context.getString(R.string.near_the));
+    }
+}
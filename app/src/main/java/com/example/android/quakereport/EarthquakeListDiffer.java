@@ -0,0 +1,155 @@
+package com.example.android.quakereport;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.View;
+import android.widget.ListView;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Updates a list of earthquakes with only what changed between two loads.
+ * <p>
+ * Every submitted table is compared with the displayed one by event id on a background thread
+ * (see {@link EarthquakeDiff}). Back on the main thread:
+ * <ul>
+ * <li>an identical table replaces the displayed one without touching the list,</li>
+ * <li>a table with changed rows only rebinds the visible rows which changed,</li>
+ * <li>a table with inserted, removed or moved rows is swapped in, and a scrolled list is
+ * kept on the same earthquake instead of the same position.</li>
+ * </ul>
+ * So a periodic refresh which changes a handful of events costs next to nothing on the main
+ * thread. Only the last submitted table is shown: diffs which are outdated on arrival are
+ * dropped.
+ * <p>
+ * Call all methods on the main thread.
+ */
+public final class EarthquakeListDiffer {
+
+    private static final String LOG_TAG = EarthquakeListDiffer.class.getSimpleName();
+
+    /**
+     * Computes the diffs of all lists, one after the other
+     */
+    private static final Executor sDiffExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "EarthquakeDiff");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    private final ListView mListView;
+    private final EarthquakeAdapter mAdapter;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Number of the last submitted table, to drop the diffs of earlier ones
+     */
+    private int mGeneration;
+
+    /**
+     * Constructs a new {@link EarthquakeListDiffer}.
+     *
+     * @param listView showing the adapter
+     * @param adapter  whose earthquakes are updated
+     */
+    public EarthquakeListDiffer(ListView listView, EarthquakeAdapter adapter) {
+        mListView = listView;
+        mAdapter = adapter;
+    }
+
+    /**
+     * Shows the given earthquakes once their diff to the displayed ones is known.
+     *
+     * @param earthquakes table of earthquakes to display, null to clear the list
+     */
+    public void submit(EarthquakeTable earthquakes) {
+        final int generation = ++mGeneration;
+        final EarthquakeTable current = mAdapter.getEarthquakes();
+        final EarthquakeTable next = earthquakes != null ? earthquakes : new EarthquakeTable();
+
+        // Nothing to keep when the list is filled or emptied, or shown again as it is
+        if (current.isEmpty() || next.isEmpty() || current == next) {
+            mAdapter.setEarthquakes(next);
+            return;
+        }
+
+        sDiffExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = Metrics.startTimer();
+                final EarthquakeDiff diff = EarthquakeDiff.compute(current, next);
+                Metrics.stopTimer("ui.diff_us", start);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == mGeneration) {
+                            apply(next, diff);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void apply(EarthquakeTable earthquakes, EarthquakeDiff diff) {
+        long start = Metrics.startTimer();
+        if (diff.isEmpty()) {
+            // Same rows in the same order, the list already shows them
+            Metrics.count("ui.diff_unchanged", 1);
+            mAdapter.swapEarthquakes(earthquakes);
+        } else if (!diff.isStructural()) {
+            // Positions carry over, so only the visible rows which changed are rebound
+            Metrics.count("ui.diff_changed_only", 1);
+            mAdapter.swapEarthquakes(earthquakes);
+            int firstPosition = mListView.getFirstVisiblePosition();
+            for (int i = 0; i < mListView.getChildCount(); i++) {
+                int position = firstPosition + i;
+                if (position < mAdapter.getCount() && diff.isChanged(position)) {
+                    mAdapter.getView(position, mListView.getChildAt(i), mListView);
+                }
+            }
+        } else {
+            Metrics.count("ui.diff_structural", 1);
+            applyStructural(earthquakes, diff);
+        }
+        Log.i(LOG_TAG, "Applied " + diff);
+        Metrics.stopTimer("ui.diff_apply_us", start);
+    }
+
+    /**
+     * Swaps in a table with inserted, removed or moved rows. If the list is scrolled, the first
+     * visible earthquake which is still there stays at the same place on the screen.
+     */
+    private void applyStructural(EarthquakeTable earthquakes, EarthquakeDiff diff) {
+        int firstPosition = mListView.getFirstVisiblePosition();
+        View firstChild = mListView.getChildAt(0);
+        boolean scrolled = firstPosition > 0
+                || (firstChild != null && firstChild.getTop() < mListView.getPaddingTop());
+
+        int anchorPosition = -1;
+        int anchorTop = 0;
+        if (scrolled) {
+            for (int i = 0; i < mListView.getChildCount(); i++) {
+                int newPosition = diff.getNewPosition(firstPosition + i);
+                if (newPosition >= 0) {
+                    anchorPosition = newPosition;
+                    anchorTop = mListView.getChildAt(i).getTop();
+                    break;
+                }
+            }
+        }
+
+        // At the top of the list, new earthquakes simply appear above the others
+        mAdapter.setEarthquakes(earthquakes);
+        if (anchorPosition >= 0) {
+            mListView.setSelectionFromTop(anchorPosition, anchorTop);
+        }
+    }
+}
@@ -0,0 +1,428 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.quakereport.data.EarthquakeStore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps a list of earthquakes current by polling a USGS summary feed.
+ * <p>
+ * Summary feeds hold the events of the last hour above a fixed magnitude and are regenerated
+ * by USGS every minute. They are a few KB, where a full query is often hundreds, and they are
+ * requested conditionally, so an unchanged feed costs a 304 response. New, updated and deleted
+ * events of the feed are merged into the displayed list by event id, keeping the filter, order
+ * and limit of its query, and stored like synced events.
+ * <p>
+ * The interval adapts to the activity of the feed: it drops to the minimum as soon as a poll
+ * changes the list, and doubles with every quiet or failed poll up to the maximum. In battery
+ * saver mode the maximum is used. Polling only runs between {@link #start()} and
+ * {@link #stop()}, i.e. while the list is visible.
+ * <p>
+ * All methods must be called on the main thread.
+ */
+public class EarthquakeLivePoller {
+
+    private static final String LOG_TAG = EarthquakeLivePoller.class.getSimpleName();
+
+    /**
+     * Location of the USGS summary feeds
+     */
+    private static final String SUMMARY_FEED_URL = "https://earthquake.usgs.gov/earthquakes/feed/v1.0/summary/";
+
+    /**
+     * Time window of the polled summary feed
+     */
+    private static final String SUMMARY_FEED_WINDOW = "_hour";
+
+    /**
+     * Smallest magnitudes of the summary feeds and their names, largest first
+     */
+    private static final double[] SUMMARY_FEED_MAGNITUDES = {4.5, 2.5, 1.0};
+    private static final String[] SUMMARY_FEED_NAMES = {"4.5", "2.5", "1.0"};
+    private static final String SUMMARY_FEED_ALL = "all";
+
+    /**
+     * USGS query parameters which are applied to the merged list
+     */
+    private static final String PARAM_MIN_MAGNITUDE = "minmag";
+    private static final String PARAM_ORDER_BY = "orderby";
+    private static final String PARAM_LIMIT = "limit";
+    private static final String ORDER_BY_TIME = "time";
+
+    /**
+     * Callback invoked when a poll has changed the list.
+     */
+    public interface OnLiveUpdateListener {
+        void onLiveUpdate(EarthquakeTable earthquakes);
+    }
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Query URL of the displayed list
+     */
+    private final String mRequestUrl;
+
+    /**
+     * Summary feed polled for the query
+     */
+    private final String mFeedUrl;
+
+    private final long mMinIntervalMs;
+    private final long mMaxIntervalMs;
+
+    /**
+     * Time to wait after the current poll
+     */
+    private long mIntervalMs;
+
+    /**
+     * Time of the last poll in {@link SystemClock#elapsedRealtime()}
+     */
+    private long mLastPollTime;
+
+    /**
+     * The displayed list, which polled events are merged into
+     */
+    private EarthquakeTable mEarthquakes;
+
+    /**
+     * Number of the list in {@link #mEarthquakes}, to notice lists set during a poll
+     */
+    private int mGeneration;
+
+    private PollTask mPollTask;
+    private boolean mStarted;
+    private OnLiveUpdateListener mListener;
+
+    private final Runnable mPollRunnable = new Runnable() {
+        @Override
+        public void run() {
+            poll(null);
+        }
+    };
+
+    /**
+     * Constructs a new {@link EarthquakeLivePoller}.
+     *
+     * @param context       used to store and format the polled earthquakes
+     * @param requestUrl    USGS query URL of the displayed list
+     * @param minIntervalMs time between polls while events are coming in, in milliseconds
+     * @param maxIntervalMs upper bound of the time between polls while the feed is quiet, in
+     *                      milliseconds. It must stay well below the hour covered by the feed.
+     */
+    public EarthquakeLivePoller(Context context, String requestUrl, long minIntervalMs, long maxIntervalMs) {
+        mContext = context.getApplicationContext();
+        mRequestUrl = requestUrl;
+        mFeedUrl = buildFeedUrl(requestUrl);
+        mMinIntervalMs = Math.max(1, minIntervalMs);
+        mMaxIntervalMs = Math.max(mMinIntervalMs, maxIntervalMs);
+        mIntervalMs = mMinIntervalMs;
+        mLastPollTime = SystemClock.elapsedRealtime();
+    }
+
+    public void setOnLiveUpdateListener(OnLiveUpdateListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets the list polled events are merged into, e.g. after the query was loaded again.
+     */
+    public void setEarthquakes(EarthquakeTable earthquakes) {
+        mEarthquakes = earthquakes;
+        mGeneration++;
+    }
+
+    /**
+     * Starts polling. The first poll follows the last one after the current interval, or right
+     * away if that time has already passed while polling was stopped.
+     */
+    public void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        scheduleNextPoll();
+    }
+
+    /**
+     * Stops polling and cancels a poll in progress.
+     */
+    public void stop() {
+        mStarted = false;
+        mHandler.removeCallbacks(mPollRunnable);
+        if (mPollTask != null) {
+            mPollTask.cancelPoll();
+            mPollTask = null;
+        }
+    }
+
+    private void scheduleNextPoll() {
+        mHandler.removeCallbacks(mPollRunnable);
+        long intervalMs = isPowerSaveMode() ? mMaxIntervalMs : mIntervalMs;
+        long delayMs = Math.max(0, mLastPollTime + intervalMs - SystemClock.elapsedRealtime());
+        mHandler.postDelayed(mPollRunnable, delayMs);
+    }
+
+    /**
+     * Polls the feed, or only merges the given events again if the list has changed while they
+     * were being merged.
+     */
+    private void poll(List<Earthquake> polled) {
+        if (!mStarted || mPollTask != null) {
+            return;
+        }
+        if (mEarthquakes == null) {
+            // Nothing to merge into before the query is loaded, look again later
+            mLastPollTime = SystemClock.elapsedRealtime();
+            scheduleNextPoll();
+            return;
+        }
+        if (polled == null) {
+            mLastPollTime = SystemClock.elapsedRealtime();
+        }
+        mPollTask = new PollTask(mEarthquakes, mGeneration, polled);
+        mPollTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private void onPollFinished(PollTask task, List<Earthquake> polled, EarthquakeTable merged) {
+        mPollTask = null;
+        if (!mStarted) {
+            return;
+        }
+        if (polled != null && task.mGeneration != mGeneration) {
+            // A new list was set during the poll, the events have to be merged into that one
+            Log.i(LOG_TAG, "List changed during the poll, merging again");
+            poll(polled);
+            return;
+        }
+
+        if (merged != null) {
+            // Events are coming in, look again soon
+            mIntervalMs = mMinIntervalMs;
+            mEarthquakes = merged;
+            mGeneration++;
+            if (mListener != null) {
+                mListener.onLiveUpdate(merged);
+            }
+        } else {
+            mIntervalMs = Math.min(mIntervalMs * 2, mMaxIntervalMs);
+        }
+        Metrics.count(merged != null ? "live.changed" : "live.quiet", 1);
+        Metrics.record("live.interval_ms", mIntervalMs);
+        Log.i(LOG_TAG, (merged != null ? "List changed" : "No changes") + ", next poll in " + mIntervalMs + " ms");
+        scheduleNextPoll();
+    }
+
+    private boolean isPowerSaveMode() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        PowerManager powerManager = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        return powerManager != null && powerManager.isPowerSaveMode();
+    }
+
+    /**
+     * Returns the URL of the smallest summary feed which holds all events the given query
+     * can match, in the wire format of the query.
+     */
+    static String buildFeedUrl(String requestUrl) {
+        Uri uri = Uri.parse(requestUrl);
+        double minMagnitude = parseDouble(uri.getQueryParameter(PARAM_MIN_MAGNITUDE), Double.NEGATIVE_INFINITY);
+        String name = SUMMARY_FEED_ALL;
+        for (int i = 0; i < SUMMARY_FEED_MAGNITUDES.length; i++) {
+            if (minMagnitude >= SUMMARY_FEED_MAGNITUDES[i]) {
+                name = SUMMARY_FEED_NAMES[i];
+                break;
+            }
+        }
+        String format = CsvFeedDecoder.FORMAT.equals(uri.getQueryParameter(EarthquakeFeedDecoders.PARAM_FORMAT))
+                ? CsvFeedDecoder.FORMAT
+                : GeoJsonFeedDecoder.FORMAT;
+        return SUMMARY_FEED_URL + name + SUMMARY_FEED_WINDOW + "." + format;
+    }
+
+    /**
+     * Merges polled events into a list of the given query by event id: updated events replace
+     * their rows, deleted ones are removed and new ones matching the query's minimum magnitude
+     * are added. The result is in the order of the query and cut to its limit.
+     *
+     * @param earthquakes list to merge into, may be null
+     * @param polled      events of the summary feed
+     * @param requestUrl  USGS query URL of the list
+     * @return the merged list, with the display models of unchanged rows, or null if the
+     * events don't change the list
+     */
+    static EarthquakeTable merge(EarthquakeTable earthquakes, List<Earthquake> polled, String requestUrl) {
+        if (earthquakes == null) {
+            earthquakes = new EarthquakeTable();
+        }
+        Uri uri = Uri.parse(requestUrl);
+        double minMagnitude = parseDouble(uri.getQueryParameter(PARAM_MIN_MAGNITUDE), Double.NEGATIVE_INFINITY);
+        int limit = (int) parseDouble(uri.getQueryParameter(PARAM_LIMIT), Integer.MAX_VALUE);
+        final boolean orderByTime = ORDER_BY_TIME.equals(uri.getQueryParameter(PARAM_ORDER_BY));
+
+        // The latest version of every polled event
+        Map<String, Earthquake> updates = new LinkedHashMap<>();
+        for (Earthquake earthquake : polled) {
+            if (earthquake.getId() != null) {
+                updates.put(earthquake.getId(), earthquake);
+            }
+        }
+
+        // Check for changes first, most polls don't change anything
+        Map<String, Integer> positions = new HashMap<>(Math.max(16, earthquakes.size() * 4 / 3 + 1));
+        for (int i = 0; i < earthquakes.size(); i++) {
+            if (earthquakes.getId(i) != null) {
+                positions.put(earthquakes.getId(i), i);
+            }
+        }
+        boolean changed = false;
+        for (Earthquake update : updates.values()) {
+            Integer position = positions.get(update.getId());
+            if (position == null
+                    ? !update.isDeleted() && update.getMagnitude() >= minMagnitude
+                    : update.isDeleted() || update.getUpdatedInMillisec() > earthquakes.getUpdatedInMillisec(position)) {
+                changed = true;
+                break;
+            }
+        }
+        if (!changed) {
+            return null;
+        }
+
+        // Kept rows take their display models along, changed and new ones are formatted again
+        final List<Earthquake> merged = new ArrayList<>(earthquakes.size() + updates.size());
+        final Map<Earthquake, EarthquakeDisplayModel> displayModels = new IdentityHashMap<>();
+        for (int i = 0; i < earthquakes.size(); i++) {
+            Earthquake update = earthquakes.getId(i) != null ? updates.remove(earthquakes.getId(i)) : null;
+            if (update == null || update.getUpdatedInMillisec() <= earthquakes.getUpdatedInMillisec(i)) {
+                Earthquake row = earthquakes.toEarthquake(i);
+                displayModels.put(row, earthquakes.getDisplayModel(i));
+                merged.add(row);
+            } else if (!update.isDeleted()) {
+                merged.add(update);
+            }
+        }
+        for (Earthquake update : updates.values()) {
+            if (!update.isDeleted() && update.getMagnitude() >= minMagnitude) {
+                merged.add(update);
+            }
+        }
+
+        // Like USGS, order by descending time or magnitude; the sort is stable
+        Collections.sort(merged, new Comparator<Earthquake>() {
+            @Override
+            public int compare(Earthquake lhs, Earthquake rhs) {
+                return orderByTime
+                        ? compareDescending(lhs.getTimeInMillisec(), rhs.getTimeInMillisec())
+                        : Double.compare(rhs.getMagnitude(), lhs.getMagnitude());
+            }
+        });
+        List<Earthquake> rows = merged.subList(0, Math.min(merged.size(), Math.max(0, limit)));
+        List<EarthquakeDisplayModel> rowDisplayModels = new ArrayList<>(rows.size());
+        for (Earthquake row : rows) {
+            rowDisplayModels.add(displayModels.get(row));
+        }
+        return EarthquakeTable.from(rows, rowDisplayModels);
+    }
+
+    private static int compareDescending(long lhs, long rhs) {
+        return lhs > rhs ? -1 : (lhs == rhs ? 0 : 1);
+    }
+
+    private static double parseDouble(String value, double defaultValue) {
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Fetches the summary feed on a background thread, stores its events and merges them
+     * into the list.
+     */
+    private class PollTask extends AsyncTask<Void, Void, EarthquakeTable> {
+        private final EarthquakeTable mBase;
+        private final int mGeneration;
+        private final CancellationSignal mSignal = new CancellationSignal();
+        private List<Earthquake> mPolled;
+
+        PollTask(EarthquakeTable base, int generation, List<Earthquake> polled) {
+            mBase = base;
+            mGeneration = generation;
+            mPolled = polled;
+        }
+
+        void cancelPoll() {
+            mSignal.cancel();
+            cancel(false);
+        }
+
+        @Override
+        protected EarthquakeTable doInBackground(Void... params) {
+            if (mPolled == null) {
+                long start = Metrics.startTimer();
+                final List<Earthquake> polled = new ArrayList<>();
+                try {
+                    boolean succeeded = QueryUtils.fetchEarthquakeData(mFeedUrl,
+                            new EarthquakeStreamParser.OnEarthquakeParsedListener() {
+                                @Override
+                                public void onEarthquakeParsed(Earthquake earthquake) {
+                                    polled.add(earthquake);
+                                }
+                            }, mSignal);
+                    if (!succeeded) {
+                        Metrics.count("live.failed", 1);
+                        return null;
+                    }
+                } catch (OperationCanceledException e) {
+                    return null;
+                }
+                Metrics.stopTimer("live.poll_us", start);
+                Metrics.record("live.events", polled.size());
+                EarthquakeStore.getInstance(mContext).save(polled);
+                mPolled = polled;
+            }
+
+            long start = Metrics.startTimer();
+            EarthquakeTable merged = merge(mBase, mPolled, mRequestUrl);
+            if (merged != null) {
+                merged.prepareDisplayModels(EarthquakeFormatters.newFormatter(mContext));
+            }
+            Metrics.stopTimer("live.merge_us", start);
+            return merged;
+        }
+
+        @Override
+        protected void onPostExecute(EarthquakeTable merged) {
+            if (mPollTask == this) {
+                onPollFinished(this, mPolled, merged);
+            }
+        }
+    }
+}
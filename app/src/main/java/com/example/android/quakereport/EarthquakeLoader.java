@@ -2,15 +2,27 @@ package com.example.android.quakereport;
 
 import android.content.AsyncTaskLoader;
 import android.content.Context;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.example.android.quakereport.data.EarthquakeStore;
+
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * Created by kahraman on 2.12.2017.
  */
 
-public class EarthquakeLoader extends AsyncTaskLoader<List<Earthquake>> {
+public class EarthquakeLoader extends AsyncTaskLoader<EarthquakeTable> {
 
     /**
      * Tag for log messages
@@ -23,36 +35,454 @@ public class EarthquakeLoader extends AsyncTaskLoader<List<Earthquake>> {
     private String mUrl;
 
     /**
-     * Constructs a new {@link EarthquakeLoader}.
+     * Default number of earthquakes to parse before the first partial result is published
+     */
+    public static final int DEFAULT_BATCH_SIZE = 20;
+
+    /**
+     * Default minimum time between two partial results, in milliseconds
+     */
+    public static final long DEFAULT_BATCH_INTERVAL_MS = 250;
+
+    /**
+     * Default time a loaded result is delivered again without loading, in milliseconds
+     */
+    public static final long DEFAULT_FRESHNESS_TTL_MS = 5 * 60 * 1000;
+
+    /**
+     * Loads which are running, by query URL. Loaders asking for a URL in here wait for the
+     * running load instead of starting their own.
+     */
+    private static final Map<String, InFlightLoad> sInFlightLoads = new HashMap<>();
+
+    /**
+     * True once a load of this process has looked for the snapshot of the last run
+     */
+    private static volatile boolean sSnapshotChecked;
+
+    /**
+     * Number of parsed earthquakes that triggers a partial result
+     */
+    private final int mBatchSize;
+
+    /**
+     * Minimum time between two partial results, in milliseconds
+     */
+    private final long mBatchIntervalMs;
+
+    /**
+     * Time a loaded result is delivered again without loading, in milliseconds
+     */
+    private final long mFreshnessTtlMs;
+
+    /**
+     * Last complete result delivered by this loader, shown again when it is restarted
+     */
+    private EarthquakeTable mResult;
+
+    /**
+     * True if the result of the last {@link #loadInBackground()} is in sync with USGS
+     */
+    private volatile boolean mLastLoadSynced;
+
+    /**
+     * True while a partial result is being delivered, which must not be kept as {@link #mResult}
+     */
+    private boolean mDeliveringPartialResult;
+
+    /**
+     * Load this loader is running or waiting for, guarded by {@link #sInFlightLoads}
+     */
+    private InFlightLoad mLoad;
+
+    /**
+     * Handler used to deliver partial results on the main thread while the download is running
+     */
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Constructs a new {@link EarthquakeLoader} with the default batching settings.
      *
      * @param context of the activity
      * @param url     to load data from
      */
     public EarthquakeLoader(Context context, String url) {
+        this(context, url, DEFAULT_BATCH_SIZE, DEFAULT_BATCH_INTERVAL_MS, DEFAULT_FRESHNESS_TTL_MS);
+    }
+
+    /**
+     * Constructs a new {@link EarthquakeLoader} which publishes partial results to the UI
+     * while the feed is still being downloaded.
+     *
+     * @param context         of the activity
+     * @param url             to load data from
+     * @param batchSize       number of parsed earthquakes before the first partial result
+     * @param batchIntervalMs minimum time between two partial results, in milliseconds
+     * @param freshnessTtlMs  time a loaded result is delivered again without loading, in
+     *                        milliseconds
+     */
+    public EarthquakeLoader(Context context, String url, int batchSize, long batchIntervalMs,
+                            long freshnessTtlMs) {
         super(context);
         mUrl = url;
+        mBatchSize = Math.max(1, batchSize);
+        mBatchIntervalMs = Math.max(0, batchIntervalMs);
+        mFreshnessTtlMs = Math.max(0, freshnessTtlMs);
         Log.i(LOG_TAG, "EarthquakeLoader created");
     }
 
+    /**
+     * Returns the query URL this loader loads.
+     */
+    public String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * Returns true if the result of the last {@link #loadInBackground()} is in sync with USGS:
+     * synced by that load, or by one less than the freshness TTL ago. It is false if only the
+     * stored earthquakes or the snapshot could be returned, e.g. without network.
+     */
+    public boolean isLastLoadSynced() {
+        return mLastLoadSynced;
+    }
+
+    /**
+     * Delivers a fresh result of the same query instantly, from this loader or from an earlier
+     * one, and only loads if there is none. A stale result is still shown while loading.
+     */
     @Override
     protected void onStartLoading() {
-        forceLoad();
         Log.i(LOG_TAG, "onStartLoading() run");
+        EarthquakeTable fresh = EarthquakeTableCache.getInstance(getContext()).getResident(mUrl, mFreshnessTtlMs);
+        if (fresh != null) {
+            Metrics.count("load.fresh_hit", 1);
+            deliverResult(fresh);
+            return;
+        }
+        if (mResult != null) {
+            deliverResult(mResult);
+        }
+        forceLoad();
+    }
+
+    @Override
+    public void deliverResult(EarthquakeTable data) {
+        if (!mDeliveringPartialResult && data != null) {
+            mResult = data;
+        }
+        super.deliverResult(data);
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        // Drop partial results which haven't been delivered yet
+        mMainHandler.removeCallbacksAndMessages(null);
+        mResult = null;
     }
 
     /**
      * This is on a background thread.
+     * <p>
+     * A result of the same query loaded less than {@link #mFreshnessTtlMs} ago is returned as
+     * it is. If another loader is loading the same query, this one waits for its result instead
+     * of loading it again; only the loader doing the load publishes partial results.
+     * <p>
+     * Queries which stay within the last loaded result set are answered by the
+     * {@link EarthquakeQueryEngine} without touching the store or the network.
+     * <p>
+     * On the first load of a process, the {@link EarthquakeSnapshot} of the last result is
+     * published first if it was taken for the same query, or returned as the result if it was
+     * taken less than {@link #mFreshnessTtlMs} ago. Every complete result replaces it.
+     * <p>
+     * Otherwise earthquakes kept in the {@link EarthquakeStore} from earlier runs are published first,
+     * so the list doesn't have to wait for the network. Then the {@link EarthquakeSyncEngine}
+     * fetches the events which changed since the last sync (or all of them on the first run)
+     * and merges them into the store, from which the complete list is read back.
+     * <p>
+     * If nothing was stored, the first partial result is published once {@link #mBatchSize}
+     * earthquakes are available (or {@link #mBatchIntervalMs} has passed), later ones at most
+     * every {@link #mBatchIntervalMs} milliseconds, so each snapshot copy is amortized over
+     * many rows.
      */
     @Override
-    public List<Earthquake> loadInBackground() {
+    public EarthquakeTable loadInBackground() {
+        mLastLoadSynced = false;
         // Don't perform the request if there are no URLs, or the first URL is null.
-        if (mUrl.isEmpty() || mUrl == null) {
+        if (mUrl == null || mUrl.isEmpty()) {
             return null;
         }
 
+        // A fresh result which was evicted from memory is read back from disk
+        EarthquakeTableCache cache = EarthquakeTableCache.getInstance(getContext());
+        EarthquakeTable fresh = cache.get(mUrl, mFreshnessTtlMs);
+        if (fresh != null) {
+            mLastLoadSynced = true;
+            return fresh;
+        }
+
+        // Share a running load of the same query instead of fetching it twice
+        final InFlightLoad load;
+        boolean ownLoad = false;
+        synchronized (sInFlightLoads) {
+            // A load of the same query may have finished in the meantime
+            fresh = cache.getResident(mUrl, mFreshnessTtlMs);
+            if (fresh != null) {
+                mLastLoadSynced = true;
+                return fresh;
+            }
+            InFlightLoad running = sInFlightLoads.get(mUrl);
+            if (running == null || running.canceled) {
+                load = new InFlightLoad();
+                load.task = new FutureTask<>(new Callable<EarthquakeTable>() {
+                    @Override
+                    public EarthquakeTable call() {
+                        long start = Metrics.startTimer();
+                        try {
+                            return loadEarthquakes(load);
+                        } finally {
+                            Metrics.stopTimer("load.total_us", start);
+                        }
+                    }
+                });
+                sInFlightLoads.put(mUrl, load);
+                ownLoad = true;
+            } else {
+                Log.i(LOG_TAG, "Joining the running load of " + mUrl);
+                Metrics.count("load.coalesced", 1);
+                load = running;
+                load.waiters++;
+            }
+            mLoad = load;
+        }
+
+        try {
+            if (ownLoad) {
+                try {
+                    load.task.run();
+                } finally {
+                    synchronized (sInFlightLoads) {
+                        if (sInFlightLoads.get(mUrl) == load) {
+                            sInFlightLoads.remove(mUrl);
+                        }
+                    }
+                }
+            }
+            EarthquakeTable result = load.task.get();
+            mLastLoadSynced = load.synced;
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            // Let the loader fail the same way as if it had loaded on its own
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            synchronized (sInFlightLoads) {
+                mLoad = null;
+            }
+        }
+    }
+
+    /**
+     * Called on the main thread when the load is superseded, e.g. by a query with other
+     * settings. Aborts the download and stops the parser, unless other loaders are waiting
+     * for the same load.
+     */
+    @Override
+    public void cancelLoadInBackground() {
+        InFlightLoad canceled = null;
+        synchronized (sInFlightLoads) {
+            if (mLoad != null && --mLoad.waiters == 0) {
+                mLoad.canceled = true;
+                canceled = mLoad;
+            }
+            mLoad = null;
+        }
+        if (canceled != null) {
+            Log.i(LOG_TAG, "Canceling the load of " + mUrl);
+            Metrics.count("load.canceled", 1);
+            canceled.signal.cancel();
+        }
+    }
+
+    /**
+     * Keeps a complete result for later loaders of the same query.
+     */
+    private void putRecentResult(String url, EarthquakeTable table) {
+        EarthquakeTableCache.getInstance(getContext()).put(url, table);
+    }
+
+    /**
+     * Loads the earthquakes of the query, marking the load as synced unless only stored ones
+     * could be returned.
+     */
+    private EarthquakeTable loadEarthquakes(InFlightLoad load) {
+        CancellationSignal signal = load.signal;
+        // Everything the list shows is formatted here, off the main thread
+        final EarthquakeFormatter formatter = EarthquakeFormatters.newFormatter(getContext());
+
+        // A query which only narrows or re-sorts the last loaded one is answered from memory
+        long stageStart = Metrics.startTimer();
+        EarthquakeQueryEngine queryEngine = EarthquakeQueryEngine.getInstance();
+        EarthquakeTable local = queryEngine.query(mUrl, mFreshnessTtlMs);
+        Metrics.stopTimer("load.local_query_us", stageStart);
+        if (local != null) {
+            Metrics.count("load.answered_locally", 1);
+            stageStart = Metrics.startTimer();
+            local.prepareDisplayModels(formatter);
+            Metrics.stopTimer("load.format_us", stageStart);
+            putRecentResult(mUrl, local);
+            EarthquakeSnapshot.getInstance(getContext()).writeAsync(mUrl, local);
+            load.synced = true;
+            return local;
+        }
+
+        // On a cold start, show the snapshot of the last run before anything else: it is mapped
+        // into memory as it is, without parsing or formatting
+        EarthquakeSnapshot snapshot = EarthquakeSnapshot.getInstance(getContext());
+        // The stale snapshot on screen, if any, which stands in for stored earthquakes below
+        EarthquakeTable publishedSnapshot = null;
+        if (!sSnapshotChecked) {
+            sSnapshotChecked = true;
+            stageStart = Metrics.startTimer();
+            EarthquakeTable snapshotTable = snapshot.read(mUrl);
+            long snapshotAgeMs = System.currentTimeMillis() - snapshot.getSaveTime();
+            if (snapshotTable != null && snapshotAgeMs >= 0 && snapshotAgeMs < mFreshnessTtlMs) {
+                // Taken moments ago, e.g. by the prefetch job: as good as a result of this load
+                snapshotTable.prepareDisplayModels(formatter);
+                Metrics.stopTimer("load.snapshot_us", stageStart);
+                Metrics.count("load.fresh_snapshot", 1);
+                queryEngine.update(mUrl, snapshotTable);
+                putRecentResult(mUrl, snapshotTable);
+                load.synced = true;
+                return snapshotTable;
+            }
+            if (snapshotTable != null && !snapshotTable.isEmpty()) {
+                snapshotTable.prepareDisplayModels(formatter);
+                publishPartialResult(snapshotTable);
+                publishedSnapshot = snapshotTable;
+            }
+            Metrics.stopTimer("load.snapshot_us", stageStart);
+        }
+
+        // Show the stored earthquakes right away
+        stageStart = Metrics.startTimer();
+        EarthquakeStore store = EarthquakeStore.getInstance(getContext());
+        EarthquakeTable stored = store.queryForRequest(mUrl);
+        Metrics.stopTimer("load.store_query_us", stageStart);
+        stageStart = Metrics.startTimer();
+        stored.prepareDisplayModels(formatter);
+        Metrics.stopTimer("load.format_us", stageStart);
+        if (!stored.isEmpty() && publishedSnapshot == null) {
+            publishPartialResult(stored);
+        }
+        // Partial network results would replace a complete stored list or snapshot with a
+        // shorter one
+        final boolean publishBatches = stored.isEmpty() && publishedSnapshot == null;
+
         Log.i(LOG_TAG, "loadInBackground(): Call for fetching data from UGS");
-        List<Earthquake> result = QueryUtils.fetchEarthquakeData(mUrl);
+        // Earthquakes parsed so far and their display models, used for the partial results
+        final List<Earthquake> result = new ArrayList<>();
+        final List<EarthquakeDisplayModel> displayModels = new ArrayList<>();
+        // Fetch only what changed since the last sync if there are stored results to merge into
+        stageStart = Metrics.startTimer();
+        EarthquakeSyncEngine syncEngine = new EarthquakeSyncEngine(getContext(), store);
+        boolean succeeded = syncEngine.sync(mUrl, !stored.isEmpty(), new EarthquakeStreamParser.OnEarthquakeParsedListener() {
+            private int mUnpublished;
+            private long mLastPublishTime = SystemClock.uptimeMillis();
+            private boolean mFirstBatchPublished;
+
+            @Override
+            public void onEarthquakeParsed(Earthquake earthquake) {
+                if (!publishBatches) {
+                    return;
+                }
+                result.add(earthquake);
+                displayModels.add(formatter.format(earthquake.getMagnitude(), earthquake.getParsedLocation(),
+                        earthquake.getTimeInMillisec()));
+                mUnpublished++;
+
+                // Publish the first rows as early as possible, then throttle to whole batches
+                long now = SystemClock.uptimeMillis();
+                boolean batchFull = mUnpublished >= mBatchSize;
+                boolean intervalElapsed = now - mLastPublishTime >= mBatchIntervalMs;
+                boolean publish = mFirstBatchPublished
+                        ? batchFull && intervalElapsed
+                        : batchFull || intervalElapsed;
+                if (publish) {
+                    publishPartialResult(EarthquakeTable.from(result, displayModels));
+                    mUnpublished = 0;
+                    mLastPublishTime = now;
+                    mFirstBatchPublished = true;
+                }
+            }
+        }, signal);
+        Metrics.stopTimer("load.sync_us", stageStart);
+        signal.throwIfCanceled();
+
+        if (!succeeded) {
+            // Keep showing the stored earthquakes, or the snapshot, if the network isn't available
+            return stored.isEmpty() ? publishedSnapshot : stored;
+        }
+
+        // The store now holds the merged result set, which later queries can select from
+        stageStart = Metrics.startTimer();
+        EarthquakeTable merged = store.queryForRequest(mUrl);
+        Metrics.stopTimer("load.store_query_us", stageStart);
+        stageStart = Metrics.startTimer();
+        merged.prepareDisplayModels(formatter);
+        Metrics.stopTimer("load.format_us", stageStart);
+        stageStart = Metrics.startTimer();
+        queryEngine.update(mUrl, merged);
+        Metrics.stopTimer("load.index_us", stageStart);
+        putRecentResult(mUrl, merged);
+        snapshot.writeAsync(mUrl, merged);
+        load.synced = true;
+        return merged;
+    }
 
-        return result;
+    /**
+     * Posts a snapshot of the earthquakes parsed so far to the main thread, where it is
+     * delivered to the {@link android.app.LoaderManager.LoaderCallbacks} like a regular result.
+     */
+    private void publishPartialResult(final EarthquakeTable snapshot) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isStarted() && !isAbandoned()) {
+                    Log.i(LOG_TAG, "Delivering partial result of " + snapshot.size() + " earthquakes");
+                    mDeliveringPartialResult = true;
+                    try {
+                        deliverResult(snapshot);
+                    } finally {
+                        mDeliveringPartialResult = false;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Load of a query shared by all loaders waiting for it. Guarded by {@link #sInFlightLoads}.
+     */
+    private static final class InFlightLoad {
+        final CancellationSignal signal = new CancellationSignal();
+        FutureTask<EarthquakeTable> task;
+        /**
+         * Loaders which haven't canceled, the load is only canceled once none is left
+         */
+        int waiters = 1;
+        boolean canceled;
+        /**
+         * True if the result is in sync with USGS, not just the stored earthquakes, set before
+         * the task completes
+         */
+        volatile boolean synced;
     }
 }
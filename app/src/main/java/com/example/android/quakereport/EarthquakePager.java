@@ -0,0 +1,319 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * Paged source of earthquakes for endless scrolling.
+ * <p>
+ * Pages are fetched on demand with the USGS "offset" and "limit" parameters. The next page is
+ * prefetched before the user reaches the end of the list, and pages far away from the visible
+ * rows are dropped to keep memory bounded. Fetched pages are kept in the
+ * {@link EarthquakeTableCache} too, which holds them within its memory budget or on disk, so a
+ * dropped page which comes back into view is usually read back instead of fetched again. Until
+ * then its rows are reported as null.
+ * <p>
+ * USGS offsets shift whenever events are added, so pages only fit together if they were
+ * fetched at about the same time. Cached pages are only reused if they were fetched after the
+ * current first page was set, and a new first page drops all other pages.
+ * <p>
+ * All methods must be called on the main thread.
+ */
+public class EarthquakePager {
+
+    private static final String LOG_TAG = EarthquakePager.class.getSimpleName();
+
+    /**
+     * USGS query parameters used for paging
+     */
+    private static final String PARAM_OFFSET = "offset";
+    private static final String PARAM_LIMIT = "limit";
+
+    /**
+     * Number of pages on each side of the visible rows which are kept in memory
+     */
+    private static final int MAX_RESIDENT_DISTANCE = 2;
+
+    /**
+     * Callback invoked when the rows known to the pager have changed.
+     */
+    public interface OnPageLoadedListener {
+        void onPageLoaded();
+    }
+
+    private final Context mContext;
+
+    /**
+     * Keeps fetched pages by their URL beyond the resident ones
+     */
+    private final EarthquakeTableCache mCache;
+
+    /**
+     * Query URL the pages are taken from, without paging parameters
+     */
+    private final String mRequestUrl;
+
+    /**
+     * Number of earthquakes per page
+     */
+    private final int mPageSize;
+
+    /**
+     * Number of rows left below the visible ones when the next page is requested
+     */
+    private final int mPrefetchDistance;
+
+    /**
+     * Pages which are currently in memory, by page index
+     */
+    private final SparseArray<EarthquakeTable> mPages = new SparseArray<>();
+
+    /**
+     * Pages which are currently being fetched, by page index
+     */
+    private final SparseArray<PageLoadTask> mLoadingPages = new SparseArray<>();
+
+    /**
+     * Number of rows fetched so far, including the ones of dropped pages
+     */
+    private int mItemCount;
+
+    /**
+     * True once a page came back shorter than {@link #mPageSize}
+     */
+    private boolean mEndReached;
+
+    /**
+     * {@link SystemClock#elapsedRealtime()} when the current first page was set, -1 before
+     */
+    private long mFirstPageTime = -1;
+
+    private OnPageLoadedListener mListener;
+
+    /**
+     * Constructs a new {@link EarthquakePager}.
+     *
+     * @param context    used to format the fetched earthquakes
+     * @param requestUrl USGS query URL, its "limit" and "offset" parameters are replaced per page
+     * @param pageSize   number of earthquakes per page
+     */
+    public EarthquakePager(Context context, String requestUrl, int pageSize) {
+        mContext = context.getApplicationContext();
+        mCache = EarthquakeTableCache.getInstance(mContext);
+        mRequestUrl = requestUrl;
+        mPageSize = Math.max(1, pageSize);
+        mPrefetchDistance = Math.max(1, mPageSize / 2);
+    }
+
+    public void setOnPageLoadedListener(OnPageLoadedListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets the first page, which is loaded by the {@link EarthquakeLoader} together with the
+     * stored earthquakes. Later pages are fetched by the pager itself.
+     */
+    public void setFirstPage(EarthquakeTable earthquakes) {
+        if (earthquakes != mPages.get(0)) {
+            // A new result: the other pages were cut from an older list
+            cancelLoadingPages();
+            mPages.clear();
+            mItemCount = 0;
+            mEndReached = false;
+            mFirstPageTime = SystemClock.elapsedRealtime();
+        }
+        onPageLoaded(0, earthquakes);
+    }
+
+    /**
+     * Returns the number of rows fetched so far.
+     */
+    public int getCount() {
+        return mItemCount;
+    }
+
+    /**
+     * Returns the earthquake at the given position, or null if its page isn't in memory.
+     * Unlike {@link #getDisplayModel(int)}, this doesn't fetch the page, so it can be called
+     * for any row, e.g. a clicked one, without side effects.
+     */
+    public EarthquakeTable.Row getItem(int position) {
+        EarthquakeTable page = getPage(position);
+        return page != null ? page.getRow(position % mPageSize) : null;
+    }
+
+    /**
+     * Returns the display model of the earthquake at the given position to bind its row, or
+     * null if its page isn't in memory. In that case the page is fetched again.
+     */
+    public EarthquakeDisplayModel getDisplayModel(int position) {
+        EarthquakeTable page = getPage(position);
+        if (page == null) {
+            loadPage(position / mPageSize);
+            return null;
+        }
+        return page.getDisplayModel(position % mPageSize);
+    }
+
+    /**
+     * Returns the page holding the given position, or null if it isn't in memory.
+     */
+    private EarthquakeTable getPage(int position) {
+        EarthquakeTable page = mPages.get(position / mPageSize);
+        return page != null && position % mPageSize < page.size() ? page : null;
+    }
+
+    /**
+     * Tells the pager which rows are on screen, so it can prefetch the next page and drop
+     * pages which are far away.
+     *
+     * @param firstVisibleItem position of the first visible row
+     * @param visibleItemCount number of visible rows
+     */
+    public void onVisibleRangeChanged(int firstVisibleItem, int visibleItemCount) {
+        int lastVisibleItem = firstVisibleItem + Math.max(visibleItemCount, 1) - 1;
+
+        // Fetch the next page before the user reaches the end of the list
+        if (!mEndReached && mItemCount > 0 && lastVisibleItem + mPrefetchDistance >= mItemCount) {
+            loadPage(mItemCount / mPageSize);
+        }
+
+        // Drop pages which are far away from the visible rows
+        int firstResidentPage = firstVisibleItem / mPageSize - MAX_RESIDENT_DISTANCE;
+        int lastResidentPage = lastVisibleItem / mPageSize + MAX_RESIDENT_DISTANCE;
+        for (int i = mPages.size() - 1; i >= 0; i--) {
+            int pageIndex = mPages.keyAt(i);
+            if (pageIndex < firstResidentPage || pageIndex > lastResidentPage) {
+                mPages.removeAt(i);
+                Log.i(LOG_TAG, "Dropped page " + pageIndex);
+            }
+        }
+    }
+
+    /**
+     * Cancels all pending page fetches. The pager must not be used afterwards.
+     */
+    public void release() {
+        cancelLoadingPages();
+        mListener = null;
+    }
+
+    /**
+     * Cancels all pending page fetches, aborting their downloads.
+     */
+    private void cancelLoadingPages() {
+        for (int i = 0; i < mLoadingPages.size(); i++) {
+            mLoadingPages.valueAt(i).cancel();
+        }
+        mLoadingPages.clear();
+    }
+
+    /**
+     * Starts fetching the given page unless it is in memory or already being fetched.
+     */
+    private void loadPage(int pageIndex) {
+        if (mPages.get(pageIndex) != null || mLoadingPages.get(pageIndex) != null) {
+            return;
+        }
+        // Only pages fetched since the first page fit behind it
+        long maxCachedAgeMs = mFirstPageTime >= 0 ? SystemClock.elapsedRealtime() - mFirstPageTime : 0;
+        PageLoadTask task = new PageLoadTask(pageIndex, maxCachedAgeMs);
+        mLoadingPages.put(pageIndex, task);
+        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, buildPageUrl(pageIndex));
+    }
+
+    private void onPageLoaded(int pageIndex, EarthquakeTable earthquakes) {
+        mLoadingPages.remove(pageIndex);
+        if (earthquakes == null) {
+            // The fetch failed, it is tried again when the page is requested the next time
+            return;
+        }
+
+        mPages.put(pageIndex, earthquakes);
+        // Only a page at the end of the list extends it, a short one marks the end of the results
+        int pageEnd = pageIndex * mPageSize + earthquakes.size();
+        if (pageEnd >= mItemCount) {
+            mItemCount = pageEnd;
+            mEndReached = earthquakes.size() < mPageSize;
+        }
+        Log.i(LOG_TAG, "Page " + pageIndex + " loaded, " + mItemCount + " earthquakes known");
+
+        if (mListener != null) {
+            mListener.onPageLoaded();
+        }
+    }
+
+    /**
+     * Returns the query URL of the given page. USGS offsets start at 1.
+     */
+    private String buildPageUrl(int pageIndex) {
+        Uri.Builder builder = QueryUtils.buildUponWithout(mRequestUrl, PARAM_OFFSET, PARAM_LIMIT);
+        builder.appendQueryParameter(PARAM_OFFSET, String.valueOf(pageIndex * mPageSize + 1));
+        builder.appendQueryParameter(PARAM_LIMIT, String.valueOf(mPageSize));
+        return builder.toString();
+    }
+
+    /**
+     * Fetches a single page on a background thread.
+     */
+    private class PageLoadTask extends AsyncTask<String, Void, EarthquakeTable> {
+        private final int mPageIndex;
+        private final long mMaxCachedAgeMs;
+        private final CancellationSignal mSignal = new CancellationSignal();
+
+        PageLoadTask(int pageIndex, long maxCachedAgeMs) {
+            mPageIndex = pageIndex;
+            mMaxCachedAgeMs = maxCachedAgeMs;
+        }
+
+        /**
+         * Cancels the task, aborting its download.
+         */
+        void cancel() {
+            mSignal.cancel();
+            cancel(true);
+        }
+
+        @Override
+        protected EarthquakeTable doInBackground(String... urls) {
+            // A page which was fetched recently enough is read back from memory or disk
+            EarthquakeTable cached = mCache.get(urls[0], mMaxCachedAgeMs);
+            if (cached != null) {
+                cached.prepareDisplayModels(EarthquakeFormatters.newFormatter(mContext));
+                return cached;
+            }
+
+            // Fill the page's table directly while the response is parsed
+            final EarthquakeTable page = new EarthquakeTable();
+            boolean succeeded;
+            try {
+                succeeded = QueryUtils.fetchEarthquakeData(urls[0],
+                        new EarthquakeStreamParser.OnEarthquakeParsedListener() {
+                            @Override
+                            public void onEarthquakeParsed(Earthquake earthquake) {
+                                page.append(earthquake);
+                            }
+                        }, mSignal);
+            } catch (OperationCanceledException e) {
+                return null;
+            }
+            if (!succeeded) {
+                return null;
+            }
+            page.prepareDisplayModels(EarthquakeFormatters.newFormatter(mContext));
+            mCache.put(urls[0], page);
+            return page;
+        }
+
+        @Override
+        protected void onPostExecute(EarthquakeTable earthquakes) {
+            onPageLoaded(mPageIndex, earthquakes);
+        }
+    }
+}
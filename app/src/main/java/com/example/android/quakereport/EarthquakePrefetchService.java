@@ -0,0 +1,157 @@
+package com.example.android.quakereport;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.OperationCanceledException;
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * Loads the query of the saved settings in the background, so the app usually finds fresh
+ * earthquakes when it is opened.
+ * <p>
+ * A run loads the query like the {@link EarthquakeLoader} of the activity does, and through
+ * one: the events are synced into the store, the result is indexed and written as the
+ * snapshot, which the next start of the app shows without a network round trip. A run which
+ * finds a load of the same query in progress, e.g. by the activity, waits for it instead of
+ * fetching twice.
+ * <p>
+ * The job runs periodically while the device is on an unmetered network, and also while it
+ * is charging on any network. JobScheduler constraints all have to hold, so these are two
+ * jobs; a run shortly after the other job's run is skipped.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class EarthquakePrefetchService extends JobService {
+
+    private static final String LOG_TAG = EarthquakePrefetchService.class.getSimpleName();
+
+    /**
+     * Ids of the job which runs on unmetered networks and the one which runs while charging
+     */
+    private static final int JOB_ID_UNMETERED = 1001;
+    private static final int JOB_ID_CHARGING = 1002;
+
+    /**
+     * Name of the preferences file holding the time of the last prefetch
+     */
+    private static final String PREFS_NAME = "earthquake_prefetch";
+    private static final String KEY_LAST_RUN = "last_run";
+
+    /**
+     * Loads of the running jobs, by job id
+     */
+    private final SparseArray<PrefetchTask> mTasks = new SparseArray<>();
+
+    /**
+     * Schedules the prefetch jobs, or cancels them if prefetching is disabled in this build.
+     * Scheduling replaces the jobs scheduled before, so this may be called on every start.
+     */
+    public static void schedule(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (!context.getResources().getBoolean(R.bool.prefetch_enabled)) {
+            scheduler.cancel(JOB_ID_UNMETERED);
+            scheduler.cancel(JOB_ID_CHARGING);
+            return;
+        }
+        long intervalMs = context.getResources().getInteger(R.integer.prefetch_interval_ms);
+        ComponentName service = new ComponentName(context, EarthquakePrefetchService.class);
+        scheduler.schedule(new JobInfo.Builder(JOB_ID_UNMETERED, service)
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                .setPeriodic(intervalMs)
+                .setPersisted(true)
+                .build());
+        scheduler.schedule(new JobInfo.Builder(JOB_ID_CHARGING, service)
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setRequiresCharging(true)
+                .setPeriodic(intervalMs)
+                .setPersisted(true)
+                .build());
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        // Both jobs may become runnable at the same time, e.g. when plugged in at home
+        SharedPreferences preferences = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        long sinceLastRunMs = System.currentTimeMillis() - preferences.getLong(KEY_LAST_RUN, 0);
+        long intervalMs = getResources().getInteger(R.integer.prefetch_interval_ms);
+        if (sinceLastRunMs >= 0 && sinceLastRunMs < intervalMs / 2) {
+            Log.i(LOG_TAG, "Skipping the prefetch, the last one ran " + sinceLastRunMs + " ms ago");
+            Metrics.count("prefetch.skipped", 1);
+            return false;
+        }
+
+        EarthquakeActivity.setUpQueryUtils(this);
+        PrefetchTask task = new PrefetchTask(params);
+        mTasks.put(params.getJobId(), task);
+        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // The constraints don't hold anymore, e.g. the device was unplugged
+        PrefetchTask task = mTasks.get(params.getJobId());
+        mTasks.remove(params.getJobId());
+        if (task != null) {
+            task.mLoader.cancelLoadInBackground();
+            task.cancel(false);
+        }
+        return true;
+    }
+
+    /**
+     * Loads the query of the saved settings on a background thread.
+     */
+    private class PrefetchTask extends AsyncTask<Void, Void, Boolean> {
+        private final JobParameters mParams;
+        private final EarthquakeLoader mLoader;
+
+        PrefetchTask(JobParameters params) {
+            mParams = params;
+            mLoader = new EarthquakeLoader(EarthquakePrefetchService.this,
+                    EarthquakeActivity.buildRequestUrl(EarthquakePrefetchService.this),
+                    EarthquakeLoader.DEFAULT_BATCH_SIZE, EarthquakeLoader.DEFAULT_BATCH_INTERVAL_MS,
+                    getResources().getInteger(R.integer.loader_freshness_ttl_ms));
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... params) {
+            long start = Metrics.startTimer();
+            try {
+                // The result is synced into the store, written as the snapshot and kept in memory.
+                // Without network the stored earthquakes come back, which isn't a successful run.
+                mLoader.loadInBackground();
+                boolean succeeded = mLoader.isLastLoadSynced();
+                Metrics.stopTimer("prefetch.run_us", start);
+                return succeeded;
+            } catch (OperationCanceledException e) {
+                return false;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Boolean succeeded) {
+            mTasks.remove(mParams.getJobId());
+            if (succeeded) {
+                getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                        .putLong(KEY_LAST_RUN, System.currentTimeMillis())
+                        .apply();
+            }
+            Metrics.count(succeeded ? "prefetch.succeeded" : "prefetch.failed", 1);
+            Log.i(LOG_TAG, "Prefetch " + (succeeded ? "succeeded" : "failed"));
+            // A failed periodic job simply runs again in the next period
+            jobFinished(mParams, false);
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package com.example.android.quakereport;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Answers USGS queries from the last loaded result set when possible, so changing the minimum
+ * magnitude, the order or the limit in the settings doesn't download the feed again.
+ * <p>
+ * Besides the loaded earthquakes, the engine keeps two row indexes of them, sorted by descending
+ * magnitude and by descending time, and the "coverage" of the load: the region of
+ * (magnitude, time) for which it is known to hold every matching USGS event.
+ * <ul>
+ * <li>A result shorter than its "limit" holds every event with at least its "minmag".</li>
+ * <li>A full result ordered by magnitude holds every event above its lowest magnitude.</li>
+ * <li>A full result ordered by time holds every event with at least its "minmag" newer
+ * than its oldest event.</li>
+ * </ul>
+ * A query which stays inside the coverage, i.e. only narrows or re-sorts what was loaded, is
+ * answered by scanning an index. Queries which widen beyond it return null and go to the network.
+ * <p>
+ * The loaded earthquakes can also be searched by area through an {@link EarthquakeSpatialIndex}.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class EarthquakeQueryEngine {
+
+    private static final String LOG_TAG = EarthquakeQueryEngine.class.getSimpleName();
+
+    /**
+     * USGS query parameters the engine can evaluate locally
+     */
+    private static final String PARAM_MIN_MAGNITUDE = "minmag";
+    private static final String PARAM_ORDER_BY = "orderby";
+    private static final String PARAM_LIMIT = "limit";
+    private static final String PARAM_START_TIME = "starttime";
+
+    /**
+     * Values of the "orderby" parameter the engine can evaluate locally
+     */
+    private static final String ORDER_BY_TIME = "time";
+    private static final String ORDER_BY_MAGNITUDE = "magnitude";
+
+    /**
+     * USGS returns the events of the last 30 days unless a start time is given
+     */
+    private static final long DEFAULT_WINDOW_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+    private static final EarthquakeQueryEngine sInstance = new EarthquakeQueryEngine();
+
+    /**
+     * Indexed result set of the last load, replaced as a whole
+     */
+    private volatile Snapshot mSnapshot;
+
+    private EarthquakeQueryEngine() {
+
+    }
+
+    /**
+     * Returns the engine shared by the whole app.
+     */
+    public static EarthquakeQueryEngine getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Replaces the indexed earthquakes with the complete result of the given query.
+     * Call this on a background thread: sorting the indexes is O(n log n).
+     *
+     * @param requestUrl USGS query URL the earthquakes were loaded for
+     * @param result     complete result of the query, as USGS returned it
+     */
+    public void update(String requestUrl, EarthquakeTable result) {
+        Query query = Query.parse(requestUrl);
+        if (query == null || result == null) {
+            mSnapshot = null;
+            return;
+        }
+
+        double magnitudeFloor = query.minMagnitude;
+        long timeFloor = Long.MIN_VALUE;
+        if (result.size() >= query.limit) {
+            // The result was cut by "limit", so it only covers its top events
+            if (ORDER_BY_MAGNITUDE.equals(query.orderBy)) {
+                double lowest = Double.POSITIVE_INFINITY;
+                for (int i = 0; i < result.size(); i++) {
+                    lowest = Math.min(lowest, result.getMagnitude(i));
+                }
+                // Other events of the lowest magnitude may have been cut off
+                magnitudeFloor = Math.max(magnitudeFloor, Math.nextUp(lowest));
+            } else {
+                long oldest = Long.MAX_VALUE;
+                for (int i = 0; i < result.size(); i++) {
+                    oldest = Math.min(oldest, result.getTimeInMillisec(i));
+                }
+                // Other events of the oldest time may have been cut off
+                timeFloor = oldest + 1;
+            }
+        }
+
+        mSnapshot = new Snapshot(query.baseKey, result, magnitudeFloor, timeFloor);
+        Log.i(LOG_TAG, "Indexed " + result.size() + " earthquakes, magnitude >= " + magnitudeFloor
+                + (timeFloor != Long.MIN_VALUE ? ", time >= " + timeFloor : ""));
+    }
+
+    /**
+     * Drops the indexed earthquakes, e.g. when they are known to be stale.
+     */
+    public void clear() {
+        mSnapshot = null;
+    }
+
+    /**
+     * Answers the given query from the indexed earthquakes.
+     *
+     * @param requestUrl USGS query URL
+     * @param maxAgeMs   maximum age of the indexed earthquakes, in milliseconds; older ones
+     *                   may miss new events and are not used
+     * @return the earthquakes USGS would return for the query, or null if they can't be told
+     * without asking USGS
+     */
+    public EarthquakeTable query(String requestUrl, long maxAgeMs) {
+        Snapshot snapshot = mSnapshot;
+        Query query = Query.parse(requestUrl);
+        if (snapshot == null || query == null || !snapshot.baseKey.equals(query.baseKey)
+                || query.minMagnitude < snapshot.magnitudeFloor
+                || SystemClock.elapsedRealtime() - snapshot.loadedAt >= maxAgeMs) {
+            return null;
+        }
+
+        long start = System.nanoTime();
+        EarthquakeTable table = snapshot.table;
+        long windowStart = query.hasStartTime
+                ? Long.MIN_VALUE
+                : System.currentTimeMillis() - DEFAULT_WINDOW_MILLIS;
+        int[] rows = new int[Math.min(table.size(), query.limit)];
+        int count = 0;
+
+        if (ORDER_BY_MAGNITUDE.equals(query.orderBy)) {
+            // Older events than the covered ones could outrank all of the loaded ones
+            if (snapshot.timeFloor > windowStart) {
+                return null;
+            }
+            int[] index = snapshot.byMagnitude;
+            for (int i = 0; i < index.length && count < rows.length; i++) {
+                int row = index[i];
+                if (table.getMagnitude(row) < query.minMagnitude) {
+                    break;
+                }
+                if (table.getTimeInMillisec(row) >= windowStart) {
+                    rows[count++] = row;
+                }
+            }
+        } else {
+            int[] index = snapshot.byTime;
+            for (int i = 0; i < index.length && count < rows.length; i++) {
+                int row = index[i];
+                long time = table.getTimeInMillisec(row);
+                if (time < windowStart || time < snapshot.timeFloor) {
+                    break;
+                }
+                if (table.getMagnitude(row) >= query.minMagnitude) {
+                    rows[count++] = row;
+                }
+            }
+            // Running out of covered events before reaching the limit means older events
+            // which weren't loaded would belong to the result
+            if (count < query.limit && snapshot.timeFloor > windowStart) {
+                return null;
+            }
+        }
+
+        EarthquakeTable result = table.select(rows, count);
+        Log.i(LOG_TAG, "Answered query locally with " + count + " earthquakes in "
+                + (System.nanoTime() - start) / 1000 + " us");
+        return result;
+    }
+
+    /**
+     * Returns the loaded earthquakes within the given distance of a point, in loaded order,
+     * or null if nothing is loaded.
+     *
+     * @param latitude  of the point, in degrees
+     * @param longitude of the point, in degrees
+     * @param radiusKm  maximum distance, in kilometers
+     */
+    public EarthquakeTable queryWithinRadius(double latitude, double longitude, double radiusKm) {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            return null;
+        }
+        int[] rows = snapshot.spatialIndex.queryRadius(latitude, longitude, radiusKm);
+        return snapshot.table.select(rows, rows.length);
+    }
+
+    /**
+     * Returns the loaded earthquakes within the given box, in loaded order, or null if nothing
+     * is loaded. A box with west &gt; east crosses the antimeridian.
+     */
+    public EarthquakeTable queryBoundingBox(double south, double west, double north, double east) {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            return null;
+        }
+        int[] rows = snapshot.spatialIndex.queryBoundingBox(south, west, north, east);
+        return snapshot.table.select(rows, rows.length);
+    }
+
+    /**
+     * The parts of a USGS query URL the engine evaluates.
+     */
+    private static final class Query {
+        /**
+         * The URL without the locally evaluated parameters. Only queries with equal base keys
+         * select from the same set of events.
+         */
+        final String baseKey;
+        final double minMagnitude;
+        final String orderBy;
+        final int limit;
+        final boolean hasStartTime;
+
+        private Query(String baseKey, double minMagnitude, String orderBy, int limit, boolean hasStartTime) {
+            this.baseKey = baseKey;
+            this.minMagnitude = minMagnitude;
+            this.orderBy = orderBy;
+            this.limit = limit;
+            this.hasStartTime = hasStartTime;
+        }
+
+        /**
+         * Returns the parsed query, or null if it uses values the engine can't evaluate.
+         */
+        static Query parse(String requestUrl) {
+            if (requestUrl == null) {
+                return null;
+            }
+            Uri uri = Uri.parse(requestUrl);
+
+            String orderBy = uri.getQueryParameter(PARAM_ORDER_BY);
+            if (orderBy == null) {
+                orderBy = ORDER_BY_TIME;
+            } else if (!ORDER_BY_TIME.equals(orderBy) && !ORDER_BY_MAGNITUDE.equals(orderBy)) {
+                return null;
+            }
+
+            double minMagnitude = Double.NEGATIVE_INFINITY;
+            int limit = Integer.MAX_VALUE;
+            try {
+                String minMagnitudeParameter = uri.getQueryParameter(PARAM_MIN_MAGNITUDE);
+                if (minMagnitudeParameter != null && !minMagnitudeParameter.isEmpty()) {
+                    minMagnitude = Double.parseDouble(minMagnitudeParameter);
+                }
+                String limitParameter = uri.getQueryParameter(PARAM_LIMIT);
+                if (limitParameter != null && !limitParameter.isEmpty()) {
+                    limit = Integer.parseInt(limitParameter);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (limit <= 0) {
+                return null;
+            }
+
+            String baseKey = QueryUtils.buildUponWithout(requestUrl, PARAM_MIN_MAGNITUDE, PARAM_ORDER_BY, PARAM_LIMIT)
+                    .toString();
+            return new Query(baseKey, minMagnitude, orderBy, limit,
+                    uri.getQueryParameter(PARAM_START_TIME) != null);
+        }
+    }
+
+    /**
+     * Loaded earthquakes with their sorted and spatial indexes and coverage. Immutable once
+     * constructed.
+     */
+    private static final class Snapshot {
+        final String baseKey;
+        final EarthquakeTable table;
+        final double magnitudeFloor;
+        final long timeFloor;
+        final int[] byMagnitude;
+        final int[] byTime;
+        final EarthquakeSpatialIndex spatialIndex;
+        /**
+         * {@link SystemClock#elapsedRealtime()} when the earthquakes were loaded
+         */
+        final long loadedAt;
+
+        Snapshot(String baseKey, final EarthquakeTable table, double magnitudeFloor, long timeFloor) {
+            this.baseKey = baseKey;
+            this.loadedAt = SystemClock.elapsedRealtime();
+            this.table = table;
+            this.magnitudeFloor = magnitudeFloor;
+            this.timeFloor = timeFloor;
+            byMagnitude = sortedIndex(table.size(), new RowComparator() {
+                @Override
+                public int compare(int lhs, int rhs) {
+                    return Double.compare(table.getMagnitude(rhs), table.getMagnitude(lhs));
+                }
+            });
+            byTime = sortedIndex(table.size(), new RowComparator() {
+                @Override
+                public int compare(int lhs, int rhs) {
+                    long left = table.getTimeInMillisec(lhs);
+                    long right = table.getTimeInMillisec(rhs);
+                    return left > right ? -1 : (left == right ? 0 : 1);
+                }
+            });
+            spatialIndex = EarthquakeSpatialIndex.build(table);
+        }
+    }
+
+    /**
+     * Compares two rows of a table by their indexes, without boxing them.
+     */
+    private interface RowComparator {
+        int compare(int lhs, int rhs);
+    }
+
+    /**
+     * Returns the row indexes 0..size-1 in the order of the comparator. The sort is stable,
+     * so rows with equal keys keep their loaded order.
+     */
+    private static int[] sortedIndex(int size, RowComparator comparator) {
+        int[] index = new int[size];
+        for (int i = 0; i < size; i++) {
+            index[i] = i;
+        }
+        mergeSort(index, new int[size], 0, size, comparator);
+        return index;
+    }
+
+    private static void mergeSort(int[] index, int[] buffer, int from, int to, RowComparator comparator) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(index, buffer, from, middle, comparator);
+        mergeSort(index, buffer, middle, to, comparator);
+        if (comparator.compare(index[middle - 1], index[middle]) <= 0) {
+            // Already in order
+            return;
+        }
+        System.arraycopy(index, from, buffer, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < middle && comparator.compare(buffer[left], buffer[right]) <= 0)) {
+                index[i] = buffer[left++];
+            } else {
+                index[i] = buffer[right++];
+            }
+        }
+    }
+}
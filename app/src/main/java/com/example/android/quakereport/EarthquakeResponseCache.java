@@ -0,0 +1,417 @@
+package com.example.android.quakereport;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Size-bounded on-disk cache of USGS responses, keyed by request URL.
+ * <p>
+ * Every entry stores the raw response body together with its "ETag" and "Last-Modified"
+ * validators, so {@link QueryUtils} can send a conditional GET and parse the cached body
+ * when the server answers "304 Not Modified". Entries are evicted least recently used first
+ * once the total body size goes over the configured limit.
+ */
+public class EarthquakeResponseCache {
+
+    private static final String LOG_TAG = EarthquakeResponseCache.class.getSimpleName();
+
+    private static final String BODY_SUFFIX = ".body";
+    private static final String META_SUFFIX = ".meta";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final String META_URL = "url";
+    private static final String META_ETAG = "etag";
+    private static final String META_LAST_MODIFIED = "last-modified";
+
+    /**
+     * Directory the entries are stored in
+     */
+    private final File mDirectory;
+
+    /**
+     * Upper bound of the total size of cached bodies, in bytes
+     */
+    private final long mMaxSize;
+
+    /**
+     * Body size of every entry by key, in access order (least recently used first)
+     */
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Current total size of cached bodies, in bytes
+     */
+    private long mSize;
+
+    /**
+     * Whether the entries written by earlier runs have been picked up yet
+     */
+    private boolean mJournalRead;
+
+    /**
+     * A cached response: its validators and the file holding its body.
+     */
+    public static final class Entry {
+        private final String mETag;
+        private final String mLastModified;
+        private final File mBody;
+
+        private Entry(String eTag, String lastModified, File body) {
+            mETag = eTag;
+            mLastModified = lastModified;
+            mBody = body;
+        }
+
+        public String getETag() {
+            return mETag;
+        }
+
+        public String getLastModified() {
+            return mLastModified;
+        }
+
+        /**
+         * Returns the length of the cached body in bytes, which is stored decompressed.
+         */
+        public long getBodyLength() {
+            return mBody.length();
+        }
+
+        /**
+         * Opens the cached response body for reading.
+         */
+        public InputStream openBody() throws IOException {
+            return new FileInputStream(mBody);
+        }
+    }
+
+    /**
+     * Creates a cache in the given directory. The directory isn't touched until the cache is
+     * first used, which picks up the entries written by earlier runs, so the cache can be
+     * created on the main thread and used on a background one.
+     *
+     * @param directory where entries are stored, created if needed
+     * @param maxSize   upper bound of the total size of cached bodies, in bytes
+     */
+    public EarthquakeResponseCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Returns the cached response for the given URL, or null if there is none.
+     */
+    public synchronized Entry get(String url) {
+        readJournalIfNeeded();
+        String key = keyFor(url);
+        if (mEntries.get(key) == null) {
+            return null;
+        }
+
+        Properties meta = readMeta(key);
+        File body = bodyFile(key);
+        if (meta == null || !url.equals(meta.getProperty(META_URL)) || !body.isFile()) {
+            remove(key);
+            return null;
+        }
+
+        // Keep the access order across restarts too
+        body.setLastModified(System.currentTimeMillis());
+        return new Entry(meta.getProperty(META_ETAG), meta.getProperty(META_LAST_MODIFIED), body);
+    }
+
+    /**
+     * Wraps a response body so that it is written to the cache while it is being read.
+     * The entry is only stored once {@link CachingInputStream#commit()} is called, after the
+     * caller has successfully consumed the response.
+     *
+     * @param url          request URL the response belongs to
+     * @param body         response body as received from the network
+     * @param eTag         value of the "ETag" response header, may be null
+     * @param lastModified value of the "Last-Modified" response header, may be null
+     */
+    public CachingInputStream put(String url, InputStream body, String eTag, String lastModified)
+            throws IOException {
+        // Picks up earlier entries first, which deletes leftover temporary files
+        synchronized (this) {
+            readJournalIfNeeded();
+        }
+        String key = keyFor(url);
+        File temp = File.createTempFile(key, TEMP_SUFFIX, mDirectory);
+        return new CachingInputStream(body, new FileOutputStream(temp), url, key, temp, eTag, lastModified);
+    }
+
+    /**
+     * Stores a fully written temporary body file as the entry for the given key.
+     */
+    private synchronized void commit(String url, String key, File temp, String eTag, String lastModified)
+            throws IOException {
+        remove(key);
+
+        Properties meta = new Properties();
+        meta.setProperty(META_URL, url);
+        if (eTag != null) {
+            meta.setProperty(META_ETAG, eTag);
+        }
+        if (lastModified != null) {
+            meta.setProperty(META_LAST_MODIFIED, lastModified);
+        }
+        OutputStream metaOut = new FileOutputStream(metaFile(key));
+        try {
+            meta.store(metaOut, null);
+        } finally {
+            metaOut.close();
+        }
+
+        File body = bodyFile(key);
+        if (!temp.renameTo(body)) {
+            metaFile(key).delete();
+            throw new IOException("Could not commit cache entry for " + url);
+        }
+
+        long size = body.length();
+        mEntries.put(key, size);
+        mSize += size;
+        trimToSize();
+    }
+
+    /**
+     * Evicts least recently used entries until the total size fits into the limit.
+     */
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while (mSize > mMaxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            mSize -= eldest.getValue();
+            deleteFiles(eldest.getKey());
+            Log.i(LOG_TAG, "Evicted cache entry " + eldest.getKey());
+        }
+    }
+
+    private void remove(String key) {
+        Long size = mEntries.remove(key);
+        if (size != null) {
+            mSize -= size;
+        }
+        deleteFiles(key);
+    }
+
+    private void deleteFiles(String key) {
+        bodyFile(key).delete();
+        metaFile(key).delete();
+    }
+
+    /**
+     * Rebuilds the in-memory index from the cache directory on first use, creating the
+     * directory if needed.
+     */
+    private void readJournalIfNeeded() {
+        if (mJournalRead) {
+            return;
+        }
+        mJournalRead = true;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.e(LOG_TAG, "Could not create cache directory " + mDirectory);
+        }
+        readJournal();
+    }
+
+    /**
+     * Rebuilds the in-memory index from the cache directory, oldest access first.
+     */
+    private void readJournal() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        List<File> bodies = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(BODY_SUFFIX)) {
+                bodies.add(file);
+            } else if (name.endsWith(TEMP_SUFFIX)) {
+                // Left over from a response which was never completed
+                file.delete();
+            }
+        }
+
+        Collections.sort(bodies, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long left = lhs.lastModified();
+                long right = rhs.lastModified();
+                return left < right ? -1 : (left == right ? 0 : 1);
+            }
+        });
+
+        for (File body : bodies) {
+            String name = body.getName();
+            String key = name.substring(0, name.length() - BODY_SUFFIX.length());
+            long size = body.length();
+            mEntries.put(key, size);
+            mSize += size;
+        }
+        trimToSize();
+    }
+
+    private Properties readMeta(String key) {
+        Properties meta = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(metaFile(key));
+            meta.load(in);
+            return meta;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Problem reading cache entry " + key, e);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private File bodyFile(String key) {
+        return new File(mDirectory, key + BODY_SUFFIX);
+    }
+
+    private File metaFile(String key) {
+        return new File(mDirectory, key + META_SUFFIX);
+    }
+
+    /**
+     * Returns a file name safe key for the given URL.
+     */
+    private static String keyFor(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(url.getBytes(Charset.forName("UTF-8")));
+            StringBuilder key = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16));
+                key.append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-1
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void closeQuietly(InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Input stream which copies every byte it reads into a temporary cache file.
+     */
+    public final class CachingInputStream extends FilterInputStream {
+        private final OutputStream mOut;
+        private final String mUrl;
+        private final String mKey;
+        private final File mTemp;
+        private final String mETag;
+        private final String mLastModified;
+        private boolean mClosed;
+
+        private CachingInputStream(InputStream in, OutputStream out, String url, String key, File temp,
+                                   String eTag, String lastModified) {
+            super(in);
+            mOut = out;
+            mUrl = url;
+            mKey = key;
+            mTemp = temp;
+            mETag = eTag;
+            mLastModified = lastModified;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mOut.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mOut.write(buffer, offset, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes have to end up in the cache file too
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            int read = read(buffer, 0, buffer.length);
+            return Math.max(read, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * Reads the rest of the response and stores it as a cache entry.
+         * Call this only after the response has been consumed successfully.
+         */
+        public void commit() throws IOException {
+            byte[] buffer = new byte[8192];
+            while (read(buffer, 0, buffer.length) != -1) {
+                // Drain trailing bytes the parser didn't need
+            }
+            mOut.close();
+            mClosed = true;
+            try {
+                EarthquakeResponseCache.this.commit(mUrl, mKey, mTemp, mETag, mLastModified);
+            } catch (IOException e) {
+                mTemp.delete();
+                throw e;
+            }
+        }
+
+        /**
+         * Closes the response. If {@link #commit()} wasn't called, the partial copy is discarded.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (!mClosed) {
+                    mClosed = true;
+                    mOut.close();
+                    mTemp.delete();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Binary snapshot of the last loaded result set, so a cold start shows rows without parsing
+ * JSON, querying the database or formatting anything.
+ * <p>
+ * The file is laid out, written and mapped by {@link EarthquakeSnapshotFormat}, which doesn't
+ * depend on Android, so snapshots can also be written off the device, e.g. by the backfill
+ * tool. This class keeps the app's snapshot in its cache directory and records metrics.
+ */
+public final class EarthquakeSnapshot {
+
+    private static final String LOG_TAG = EarthquakeSnapshot.class.getSimpleName();
+
+    private static final String FILE_NAME = "earthquakes.snapshot";
+
+    private static EarthquakeSnapshot sInstance;
+
+    /**
+     * Writes snapshots off the loader thread, one after the other
+     */
+    private static final ExecutorService sWriteExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "EarthquakeSnapshot");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    private final File mFile;
+
+    /**
+     * Constructs a new {@link EarthquakeSnapshot} kept in the given file.
+     */
+    public EarthquakeSnapshot(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Returns the snapshot shared by the whole app, kept in its cache directory.
+     */
+    public static synchronized EarthquakeSnapshot getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new EarthquakeSnapshot(new File(context.getCacheDir(), FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the earthquakes of the snapshot if it was taken for the given query, null if
+     * there is no such snapshot or it can't be read.
+     */
+    public EarthquakeTable read(String requestUrl) {
+        if (!mFile.exists()) {
+            return null;
+        }
+        long start = Metrics.startTimer();
+        try {
+            EarthquakeTable table = EarthquakeSnapshotFormat.read(mFile, requestUrl);
+            Metrics.stopTimer("snapshot.read_us", start);
+            if (table != null) {
+                Log.i(LOG_TAG, "Read " + table.size() + " earthquakes from the snapshot");
+            }
+            return table;
+        } catch (IOException | RuntimeException e) {
+            // A damaged snapshot only costs the head start, the load goes on without it
+            Log.e(LOG_TAG, "Problem reading the snapshot", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the time the snapshot was written, in milliseconds since the epoch, or 0 if
+     * there is no readable snapshot.
+     */
+    public long getSaveTime() {
+        if (!mFile.exists()) {
+            return 0;
+        }
+        return EarthquakeSnapshotFormat.readSaveTime(mFile);
+    }
+
+    /**
+     * Replaces the snapshot on a background thread. The table must not be modified anymore.
+     */
+    public void writeAsync(final String requestUrl, final EarthquakeTable table) {
+        sWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(requestUrl, table);
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Problem writing the snapshot", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Replaces the snapshot with the given result of the given query.
+     */
+    public synchronized void write(String requestUrl, EarthquakeTable table) throws IOException {
+        long start = Metrics.startTimer();
+        long length = EarthquakeSnapshotFormat.write(mFile, requestUrl, table);
+        Metrics.stopTimer("snapshot.write_us", start);
+        Metrics.record("snapshot.bytes", length);
+        Log.i(LOG_TAG, "Wrote " + table.size() + " earthquakes, " + length + " bytes");
+    }
+
+    /**
+     * Removes the snapshot, e.g. when the stored earthquakes were cleared.
+     */
+    public synchronized void delete() {
+        mFile.delete();
+    }
+}
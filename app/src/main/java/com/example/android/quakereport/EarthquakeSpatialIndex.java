@@ -0,0 +1,216 @@
+package com.example.android.quakereport;
+
+import java.util.Arrays;
+
+/**
+ * Grid index over the epicenters of an {@link EarthquakeTable}, answering radius and
+ * bounding-box queries without scanning every row.
+ * <p>
+ * The globe is divided into {@link #CELL_DEGREES} x {@link #CELL_DEGREES} degree cells. The row
+ * indexes of each cell are stored back to back in one int array, with a second array holding
+ * where each cell starts, so the whole index is two primitive arrays. A query visits the cells
+ * overlapping its area and only compares the coordinates of the rows in those cells.
+ * Rows with unknown coordinates are not indexed.
+ * <p>
+ * The index is immutable once built and can be queried from any thread.
+ */
+public final class EarthquakeSpatialIndex {
+
+    /**
+     * Edge length of a grid cell, in degrees
+     */
+    private static final double CELL_DEGREES = 2.0;
+
+    private static final int LATITUDE_CELLS = (int) Math.ceil(180 / CELL_DEGREES);
+    private static final int LONGITUDE_CELLS = (int) Math.ceil(360 / CELL_DEGREES);
+
+    /**
+     * Mean radius of the earth, in kilometers
+     */
+    private static final double EARTH_RADIUS_KM = 6371.0;
+
+    private final EarthquakeTable mTable;
+
+    /**
+     * Rows of cell c are mCellRows[mCellStarts[c]] to mCellRows[mCellStarts[c + 1] - 1]
+     */
+    private final int[] mCellStarts;
+    private final int[] mCellRows;
+
+    private EarthquakeSpatialIndex(EarthquakeTable table, int[] cellStarts, int[] cellRows) {
+        mTable = table;
+        mCellStarts = cellStarts;
+        mCellRows = cellRows;
+    }
+
+    /**
+     * Builds the index of the given table in O(n). The table must not be modified afterwards.
+     */
+    public static EarthquakeSpatialIndex build(EarthquakeTable table) {
+        int size = table.size();
+        int[] cells = new int[size];
+        int[] cellStarts = new int[LATITUDE_CELLS * LONGITUDE_CELLS + 1];
+        int indexed = 0;
+
+        // Count the rows of every cell
+        for (int row = 0; row < size; row++) {
+            double latitude = table.getLatitude(row);
+            double longitude = table.getLongitude(row);
+            if (Double.isNaN(latitude) || Double.isNaN(longitude)) {
+                cells[row] = -1;
+                continue;
+            }
+            cells[row] = cellOf(latitudeCell(latitude), longitudeCell(longitude));
+            cellStarts[cells[row] + 1]++;
+            indexed++;
+        }
+        for (int cell = 0; cell < LATITUDE_CELLS * LONGITUDE_CELLS; cell++) {
+            cellStarts[cell + 1] += cellStarts[cell];
+        }
+
+        // Place every row at the next free slot of its cell, keeping table order within cells
+        int[] cellRows = new int[indexed];
+        int[] next = Arrays.copyOf(cellStarts, cellStarts.length - 1);
+        for (int row = 0; row < size; row++) {
+            if (cells[row] >= 0) {
+                cellRows[next[cells[row]]++] = row;
+            }
+        }
+        return new EarthquakeSpatialIndex(table, cellStarts, cellRows);
+    }
+
+    /**
+     * Returns the indexed table.
+     */
+    public EarthquakeTable getTable() {
+        return mTable;
+    }
+
+    /**
+     * Returns the rows whose epicenter is within the given great-circle distance of a point,
+     * in table order.
+     *
+     * @param latitude  of the point, in degrees
+     * @param longitude of the point, in degrees
+     * @param radiusKm  maximum distance, in kilometers
+     */
+    public int[] queryRadius(double latitude, double longitude, double radiusKm) {
+        double angularRadius = radiusKm / EARTH_RADIUS_KM;
+        double latitudeDelta = Math.toDegrees(angularRadius);
+        double south = latitude - latitudeDelta;
+        double north = latitude + latitudeDelta;
+
+        // Widest longitude extent of the circle; near the poles it spans every longitude
+        double west = -180;
+        double east = 180;
+        double sinRadius = Math.sin(angularRadius);
+        double cosLatitude = Math.cos(Math.toRadians(latitude));
+        if (north < 90 && south > -90 && sinRadius < cosLatitude) {
+            double longitudeDelta = Math.toDegrees(Math.asin(sinRadius / cosLatitude));
+            west = normalizeLongitude(longitude - longitudeDelta);
+            east = normalizeLongitude(longitude + longitudeDelta);
+        }
+
+        int[] candidates = queryBoundingBox(south, west, north, east);
+        int count = 0;
+        double latitudeRadians = Math.toRadians(latitude);
+        for (int candidate : candidates) {
+            if (distanceKm(latitudeRadians, cosLatitude, Math.toRadians(longitude),
+                    mTable.getLatitude(candidate), mTable.getLongitude(candidate)) <= radiusKm) {
+                candidates[count++] = candidate;
+            }
+        }
+        return Arrays.copyOf(candidates, count);
+    }
+
+    /**
+     * Returns the rows whose epicenter lies in the given box, in table order. A box with
+     * west &gt; east crosses the antimeridian.
+     *
+     * @param south southern edge, in degrees latitude
+     * @param west  western edge, in degrees longitude
+     * @param north northern edge, in degrees latitude
+     * @param east  eastern edge, in degrees longitude
+     */
+    public int[] queryBoundingBox(double south, double west, double north, double east) {
+        south = Math.max(-90, south);
+        north = Math.min(90, north);
+        if (south > north) {
+            return new int[0];
+        }
+        boolean crossesAntimeridian = west > east;
+
+        int[] rows = new int[Math.max(1, Math.min(64, mCellRows.length))];
+        int count = 0;
+        int firstRow = latitudeCell(south);
+        int lastRow = latitudeCell(north);
+        int firstColumn = longitudeCell(west);
+        int lastColumn = longitudeCell(east);
+        // A box crossing the antimeridian covers the columns from west to the last one and
+        // from the first one to east
+        int columns = crossesAntimeridian
+                ? Math.min(LONGITUDE_CELLS, lastColumn + LONGITUDE_CELLS - firstColumn + 1)
+                : lastColumn - firstColumn + 1;
+        for (int latitudeCell = firstRow; latitudeCell <= lastRow; latitudeCell++) {
+            for (int step = 0; step < columns; step++) {
+                int cell = cellOf(latitudeCell, (firstColumn + step) % LONGITUDE_CELLS);
+                for (int i = mCellStarts[cell]; i < mCellStarts[cell + 1]; i++) {
+                    int row = mCellRows[i];
+                    double latitude = mTable.getLatitude(row);
+                    double longitude = mTable.getLongitude(row);
+                    boolean inLongitude = crossesAntimeridian
+                            ? longitude >= west || longitude <= east
+                            : longitude >= west && longitude <= east;
+                    if (latitude >= south && latitude <= north && inLongitude) {
+                        if (count == rows.length) {
+                            rows = Arrays.copyOf(rows, rows.length * 2);
+                        }
+                        rows[count++] = row;
+                    }
+                }
+            }
+        }
+
+        rows = Arrays.copyOf(rows, count);
+        Arrays.sort(rows);
+        return rows;
+    }
+
+    /**
+     * Haversine distance between a point given in radians (with the cosine of its latitude)
+     * and one given in degrees.
+     */
+    private static double distanceKm(double latitude1, double cosLatitude1, double longitude1,
+                                     double latitude2Degrees, double longitude2Degrees) {
+        double latitude2 = Math.toRadians(latitude2Degrees);
+        double sinHalfLatitude = Math.sin((latitude2 - latitude1) / 2);
+        double sinHalfLongitude = Math.sin((Math.toRadians(longitude2Degrees) - longitude1) / 2);
+        double a = sinHalfLatitude * sinHalfLatitude
+                + cosLatitude1 * Math.cos(latitude2) * sinHalfLongitude * sinHalfLongitude;
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    private static double normalizeLongitude(double longitude) {
+        while (longitude < -180) {
+            longitude += 360;
+        }
+        while (longitude > 180) {
+            longitude -= 360;
+        }
+        return longitude;
+    }
+
+    private static int latitudeCell(double latitude) {
+        int cell = (int) Math.floor((latitude + 90) / CELL_DEGREES);
+        return Math.max(0, Math.min(LATITUDE_CELLS - 1, cell));
+    }
+
+    private static int longitudeCell(double longitude) {
+        int cell = (int) Math.floor((normalizeLongitude(longitude) + 180) / CELL_DEGREES);
+        return Math.max(0, Math.min(LONGITUDE_CELLS - 1, cell));
+    }
+
+    private static int cellOf(int latitudeCell, int longitudeCell) {
+        return latitudeCell * LONGITUDE_CELLS + longitudeCell;
+    }
+}
@@ -0,0 +1,205 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.util.Log;
+
+import com.example.android.quakereport.data.EarthquakeStore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the {@link EarthquakeStore} in sync with USGS.
+ * <p>
+ * After a full fetch of a query, the engine remembers the latest "updated" time it has seen
+ * (its high-water mark). Later syncs of the same query only ask USGS for the events updated
+ * after that mark and merge them into the store by event id, so refresh traffic and parse time
+ * scale with what changed instead of with the size of the result set.
+ * <p>
+ * A query with a "limit" only stores its top events, so changes can't bring in the events
+ * ranked right below them. Once a top event ages out of the time window or is deleted, or the
+ * ranking may have drifted for too long, such a query is fetched in full again.
+ */
+public class EarthquakeSyncEngine {
+
+    private static final String LOG_TAG = EarthquakeSyncEngine.class.getSimpleName();
+
+    /**
+     * Name of the preferences file holding the high-water mark of every query
+     */
+    private static final String PREFS_NAME = "earthquake_sync";
+
+    /**
+     * USGS query parameters used for incremental fetches
+     */
+    private static final String PARAM_UPDATED_AFTER = "updatedafter";
+    private static final String PARAM_INCLUDE_DELETED = "includedeleted";
+    private static final String PARAM_LIMIT = "limit";
+    private static final String PARAM_ORDER_BY = "orderby";
+
+    /**
+     * Suffixes of the preference keys holding the time of the last full fetch of a query and
+     * whether it filled its limit
+     */
+    private static final String KEY_SUFFIX_FULL_SYNC_TIME = "#full_sync_time";
+    private static final String KEY_SUFFIX_SATURATED = "#saturated";
+
+    /**
+     * Longest time a limited query is only synced incrementally, in milliseconds. Changes can
+     * move an event which was never stored into its top events, which only a full fetch finds.
+     */
+    private static final long MAX_INCREMENTAL_AGE_MS = 6 * 60 * 60 * 1000;
+
+    private final SharedPreferences mPreferences;
+    private final EarthquakeStore mStore;
+
+    /**
+     * Constructs a new {@link EarthquakeSyncEngine}.
+     *
+     * @param context of the app
+     * @param store   to merge fetched earthquakes into
+     */
+    public EarthquakeSyncEngine(Context context, EarthquakeStore store) {
+        mPreferences = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mStore = store;
+    }
+
+    /**
+     * Brings the stored earthquakes for the given query up to date.
+     * <p>
+     * If the store already holds results of this query and a high-water mark is known, only
+     * the changes since that mark are fetched. Otherwise the full query is fetched.
+     * Every fetched earthquake is passed on to the listener as it is parsed.
+     *
+     * @param requestUrl  USGS query URL
+     * @param incremental false to force a full fetch
+     * @param listener    receives the fetched earthquakes, may be null
+     * @return true if the store is now in sync with USGS, false if the fetch failed
+     */
+    public boolean sync(String requestUrl, boolean incremental,
+                        EarthquakeStreamParser.OnEarthquakeParsedListener listener) {
+        return sync(requestUrl, incremental, listener, null);
+    }
+
+    /**
+     * Brings the stored earthquakes for the given query up to date, unless the signal is
+     * canceled first. A canceled sync leaves the store and the high-water mark unchanged.
+     *
+     * @param requestUrl  USGS query URL
+     * @param incremental false to force a full fetch
+     * @param listener    receives the fetched earthquakes, may be null
+     * @param signal      cancels the fetch, may be null
+     * @return true if the store is now in sync with USGS, false if the fetch failed
+     * @throws OperationCanceledException if the signal was canceled
+     */
+    public boolean sync(String requestUrl, boolean incremental,
+                        final EarthquakeStreamParser.OnEarthquakeParsedListener listener,
+                        CancellationSignal signal) {
+        long highWaterMark = mPreferences.getLong(requestUrl, 0);
+        int limit = getLimit(requestUrl);
+        boolean delta = incremental && highWaterMark > 0 && !needsFullSync(requestUrl, limit);
+        String fetchUrl = delta ? buildDeltaUrl(requestUrl, highWaterMark) : requestUrl;
+        Log.i(LOG_TAG, (delta ? "Incremental" : "Full") + " sync of " + requestUrl);
+
+        final List<Earthquake> fetched = new ArrayList<>();
+        EarthquakeStreamParser.OnEarthquakeParsedListener collector = new EarthquakeStreamParser.OnEarthquakeParsedListener() {
+            @Override
+            public void onEarthquakeParsed(Earthquake earthquake) {
+                fetched.add(earthquake);
+                if (listener != null) {
+                    listener.onEarthquakeParsed(earthquake);
+                }
+            }
+        };
+        boolean succeeded;
+        if (!delta && ShardedEarthquakeFetcher.isWorthSharding(fetchUrl)) {
+            // Large full fetches are split into time windows downloaded in parallel
+            succeeded = ShardedEarthquakeFetcher.fetch(fetchUrl, collector, signal);
+        } else {
+            // Every delta URL carries a new "updatedafter", caching it would only evict others
+            succeeded = QueryUtils.fetchEarthquakeData(fetchUrl, collector, signal, !delta);
+        }
+        if (!succeeded) {
+            return false;
+        }
+
+        // Merge the fetched events into the store and move the mark forward
+        long saveStart = Metrics.startTimer();
+        mStore.save(fetched);
+        Metrics.stopTimer("sync.save_us", saveStart);
+        Metrics.count(delta ? "sync.incremental" : "sync.full", 1);
+        long newHighWaterMark = highWaterMark;
+        for (Earthquake earthquake : fetched) {
+            newHighWaterMark = Math.max(newHighWaterMark, earthquake.getUpdatedInMillisec());
+        }
+        SharedPreferences.Editor editor = mPreferences.edit().putLong(requestUrl, newHighWaterMark);
+        if (!delta) {
+            editor.putLong(requestUrl + KEY_SUFFIX_FULL_SYNC_TIME, System.currentTimeMillis())
+                    .putBoolean(requestUrl + KEY_SUFFIX_SATURATED, limit > 0 && fetched.size() >= limit);
+        }
+        editor.apply();
+        Log.i(LOG_TAG, "Merged " + fetched.size() + " earthquakes, high-water mark " + newHighWaterMark);
+
+        // A deleted top event leaves a gap which only the full query can fill
+        if (delta && hasLostRows(requestUrl, limit)) {
+            Log.i(LOG_TAG, "Stored top events of " + requestUrl + " were deleted, fetching them again");
+            Metrics.count("sync.refill", 1);
+            return sync(requestUrl, false, listener, signal);
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the stored result of the given limited query can't be trusted anymore
+     * and has to be fetched in full.
+     */
+    private boolean needsFullSync(String requestUrl, int limit) {
+        if (limit <= 0) {
+            return false;
+        }
+        long sinceFullSyncMs = System.currentTimeMillis()
+                - mPreferences.getLong(requestUrl + KEY_SUFFIX_FULL_SYNC_TIME, 0);
+        if (sinceFullSyncMs < 0 || sinceFullSyncMs >= MAX_INCREMENTAL_AGE_MS) {
+            return true;
+        }
+        // Top events may have aged out of the time window since the last sync
+        return hasLostRows(requestUrl, limit);
+    }
+
+    /**
+     * Returns true if the given limited query filled its limit when it was last fetched in full
+     * but the store now holds fewer of its events, so the ones ranked right below are missing.
+     */
+    private boolean hasLostRows(String requestUrl, int limit) {
+        return limit > 0 && mPreferences.getBoolean(requestUrl + KEY_SUFFIX_SATURATED, false)
+                && mStore.queryForRequest(requestUrl).size() < limit;
+    }
+
+    /**
+     * Returns the "limit" of the given query, or 0 if it has none.
+     */
+    private static int getLimit(String requestUrl) {
+        try {
+            return Math.max(0, Integer.parseInt(Uri.parse(requestUrl).getQueryParameter(PARAM_LIMIT)));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the query URL restricted to the events updated after the given time.
+     * "limit" and "orderby" are dropped: they apply to the full result set, which is rebuilt
+     * from the store, and a limit on the changes would silently lose some of them.
+     */
+    private static String buildDeltaUrl(String requestUrl, long highWaterMark) {
+        Uri.Builder builder = QueryUtils.buildUponWithout(requestUrl, PARAM_LIMIT, PARAM_ORDER_BY);
+        builder.appendQueryParameter(PARAM_UPDATED_AFTER, QueryUtils.formatQueryTime(highWaterMark));
+        // Deleted events have to be removed from the store too
+        builder.appendQueryParameter(PARAM_INCLUDE_DELETED, "true");
+        return builder.toString();
+    }
+}
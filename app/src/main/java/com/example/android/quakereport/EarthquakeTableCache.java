@@ -0,0 +1,427 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Memory-budgeted cache of loaded {@link EarthquakeTable}s, e.g. results of queries and pages
+ * of an endless list, by key.
+ * <p>
+ * Tables in memory are bounded by an estimated number of bytes and by their number. When a
+ * budget is exceeded, the least recently used tables are evicted to disk in the
+ * {@link EarthquakeSnapshot} format, from where a later {@link #get} maps them back into
+ * memory at a fraction of the cost of fetching and parsing them again. The files are bounded
+ * by their own byte budget, and a table which is evicted again keeps its file. Tables older
+ * than the age window are dropped from memory and disk alike, so a long session keeps a flat
+ * heap and a bounded cache directory.
+ * <p>
+ * Tables must not be modified once they are put into the cache. All methods are thread-safe;
+ * {@link #getResident} never touches the disk and can be called on the main thread.
+ */
+public final class EarthquakeTableCache {
+
+    private static final String LOG_TAG = EarthquakeTableCache.class.getSimpleName();
+
+    /**
+     * Name of the directory in the app's cache directory holding evicted tables
+     */
+    private static final String SPILL_DIR = "tables";
+    private static final String SPILL_FILE_PREFIX = "table-";
+
+    private static EarthquakeTableCache sInstance;
+
+    /**
+     * Writes evicted tables to disk, one after the other
+     */
+    private static final ExecutorService sSpillExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "EarthquakeTableCache");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    private final File mSpillDir;
+    private final long mMaxBytes;
+    private final int mMaxEntries;
+    private final long mMaxAgeMs;
+    private final long mMaxDiskBytes;
+
+    /**
+     * All entries in memory or on disk, least recently used first
+     */
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long mResidentBytes;
+    private int mResidentCount;
+    private long mDiskBytes;
+    private int mNextFileId;
+
+    private long mHitCount;
+    private long mRehydrateCount;
+    private long mMissCount;
+    private long mEvictionCount;
+    private long mExpirationCount;
+
+    /**
+     * Constructs a new {@link EarthquakeTableCache}. Files left in the spill directory by an
+     * earlier process are deleted.
+     *
+     * @param spillDir     directory evicted tables are written to
+     * @param maxBytes     upper bound of the estimated size of the tables in memory, in bytes
+     * @param maxEntries   upper bound of the number of tables in memory
+     * @param maxAgeMs     time after which a table is dropped, in milliseconds
+     * @param maxDiskBytes upper bound of the size of the evicted tables on disk, in bytes
+     */
+    public EarthquakeTableCache(File spillDir, long maxBytes, int maxEntries, long maxAgeMs, long maxDiskBytes) {
+        mSpillDir = spillDir;
+        mMaxBytes = Math.max(0, maxBytes);
+        mMaxEntries = Math.max(0, maxEntries);
+        mMaxAgeMs = Math.max(0, maxAgeMs);
+        mMaxDiskBytes = Math.max(0, maxDiskBytes);
+        sSpillExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                File[] files = mSpillDir.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        file.delete();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the cache shared by the whole app, with the budgets of this build.
+     */
+    public static synchronized EarthquakeTableCache getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            sInstance = new EarthquakeTableCache(new File(appContext.getCacheDir(), SPILL_DIR),
+                    appContext.getResources().getInteger(R.integer.table_cache_max_bytes),
+                    appContext.getResources().getInteger(R.integer.table_cache_max_entries),
+                    appContext.getResources().getInteger(R.integer.table_cache_max_age_ms),
+                    appContext.getResources().getInteger(R.integer.table_cache_max_disk_bytes));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Puts the given table into the cache, replacing the one of the same key.
+     */
+    public void put(String key, EarthquakeTable table) {
+        long bytes = table.estimateMemoryBytes();
+        synchronized (this) {
+            Entry previous = mEntries.remove(key);
+            if (previous != null) {
+                drop(previous);
+            }
+            Entry entry = new Entry(key);
+            entry.putTime = SystemClock.elapsedRealtime();
+            entry.table = table;
+            entry.bytes = bytes;
+            mEntries.put(key, entry);
+            mResidentBytes += bytes;
+            mResidentCount++;
+            trim();
+        }
+    }
+
+    /**
+     * Returns the table of the given key if it is in memory and was put less than maxAgeMs
+     * milliseconds ago, null otherwise. Never reads from disk.
+     */
+    public synchronized EarthquakeTable getResident(String key, long maxAgeMs) {
+        Entry entry = mEntries.get(key);
+        EarthquakeTable table = entry != null && isYoungerThan(entry, maxAgeMs) ? entry.table : null;
+        if (table != null) {
+            countHit();
+        }
+        return table;
+    }
+
+    /**
+     * Returns the table of the given key if it was put less than maxAgeMs milliseconds ago,
+     * reading it back from disk if it was evicted, null otherwise. Call this on a background
+     * thread.
+     */
+    public EarthquakeTable get(String key, long maxAgeMs) {
+        Entry entry;
+        synchronized (this) {
+            trim();
+            entry = mEntries.get(key);
+            if (entry == null || !isYoungerThan(entry, maxAgeMs)) {
+                countMiss();
+                return null;
+            }
+            if (entry.table != null) {
+                countHit();
+                return entry.table;
+            }
+            if (entry.file == null) {
+                // Evicted, but not written yet
+                countHit();
+                return entry.spilling;
+            }
+        }
+
+        long start = Metrics.startTimer();
+        EarthquakeTable table = new EarthquakeSnapshot(entry.file).read(key);
+        long bytes = table != null ? table.estimateMemoryBytes() : 0;
+        synchronized (this) {
+            if (mEntries.get(key) != entry) {
+                // Replaced or dropped while it was being read
+                countMiss();
+                return table;
+            }
+            if (table == null) {
+                mEntries.remove(key);
+                drop(entry);
+                countMiss();
+                return null;
+            }
+            if (entry.table == null) {
+                // Back in memory; the file stays valid for the next eviction
+                entry.table = table;
+                entry.bytes = bytes;
+                mResidentBytes += bytes;
+                mResidentCount++;
+            }
+            mRehydrateCount++;
+            Metrics.count("table_cache.rehydrated", 1);
+            Metrics.stopTimer("table_cache.rehydrate_us", start);
+            table = entry.table;
+            trim();
+            return table;
+        }
+    }
+
+    /**
+     * Removes the table of the given key from memory and disk.
+     */
+    public synchronized void remove(String key) {
+        Entry entry = mEntries.remove(key);
+        if (entry != null) {
+            drop(entry);
+        }
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * Returns the number of gets answered from disk.
+     */
+    public synchronized long getRehydrateCount() {
+        return mRehydrateCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Returns the number of tables evicted from memory to disk.
+     */
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * Returns the number of tables dropped for their age or for the disk budget.
+     */
+    public synchronized long getExpirationCount() {
+        return mExpirationCount;
+    }
+
+    /**
+     * Returns the estimated size of the tables in memory, in bytes.
+     */
+    public synchronized long getResidentBytes() {
+        return mResidentBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "EarthquakeTableCache{resident=" + mResidentCount + " (" + mResidentBytes + " bytes)"
+                + ", entries=" + mEntries.size() + ", disk=" + mDiskBytes + " bytes"
+                + ", hits=" + mHitCount + ", rehydrated=" + mRehydrateCount + ", misses=" + mMissCount
+                + ", evictions=" + mEvictionCount + ", expirations=" + mExpirationCount + "}";
+    }
+
+    private boolean isYoungerThan(Entry entry, long maxAgeMs) {
+        return SystemClock.elapsedRealtime() - entry.putTime < maxAgeMs;
+    }
+
+    private void countHit() {
+        mHitCount++;
+        Metrics.count("table_cache.hit", 1);
+    }
+
+    private void countMiss() {
+        mMissCount++;
+        Metrics.count("table_cache.miss", 1);
+    }
+
+    /**
+     * Drops tables past the age window, evicts the least recently used tables until the
+     * memory budgets hold and deletes the least recently used files until the disk budget
+     * holds. Called with the lock held.
+     */
+    private void trim() {
+        long now = SystemClock.elapsedRealtime();
+        List<Entry> spills = new ArrayList<>();
+        Iterator<Entry> entries = mEntries.values().iterator();
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            if (now - entry.putTime >= mMaxAgeMs) {
+                entries.remove();
+                drop(entry);
+                mExpirationCount++;
+                Metrics.count("table_cache.expired", 1);
+            }
+        }
+
+        entries = mEntries.values().iterator();
+        while ((mResidentBytes > mMaxBytes || mResidentCount > mMaxEntries) && entries.hasNext()) {
+            Entry entry = entries.next();
+            if (entry.table == null) {
+                continue;
+            }
+            mResidentBytes -= entry.bytes;
+            mResidentCount--;
+            if (entry.file == null) {
+                entry.spilling = entry.table;
+                spills.add(entry);
+            }
+            entry.table = null;
+            mEvictionCount++;
+            Metrics.count("table_cache.evicted", 1);
+        }
+
+        entries = mEntries.values().iterator();
+        while (mDiskBytes > mMaxDiskBytes && entries.hasNext()) {
+            Entry entry = entries.next();
+            if (entry.table == null && entry.file != null) {
+                entries.remove();
+                drop(entry);
+                mExpirationCount++;
+                Metrics.count("table_cache.expired", 1);
+            }
+        }
+        Metrics.record("table_cache.resident_bytes", mResidentBytes);
+
+        for (Entry entry : spills) {
+            spill(entry);
+        }
+    }
+
+    /**
+     * Forgets an entry which was removed from {@link #mEntries}. Called with the lock held.
+     */
+    private void drop(Entry entry) {
+        if (entry.table != null) {
+            mResidentBytes -= entry.bytes;
+            mResidentCount--;
+            entry.table = null;
+        }
+        entry.spilling = null;
+        if (entry.file != null) {
+            mDiskBytes -= entry.diskBytes;
+            final File file = entry.file;
+            entry.file = null;
+            sSpillExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    file.delete();
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes an evicted table to disk on the spill thread. Until then it is still returned
+     * by {@link #get}.
+     */
+    private void spill(final Entry entry) {
+        final EarthquakeTable table = entry.spilling;
+        final File file = new File(mSpillDir, SPILL_FILE_PREFIX + (mNextFileId++));
+        sSpillExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean written;
+                try {
+                    if (!mSpillDir.isDirectory() && !mSpillDir.mkdirs()) {
+                        throw new IOException("Could not create " + mSpillDir);
+                    }
+                    new EarthquakeSnapshot(file).write(entry.key, table);
+                    written = true;
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Problem evicting " + entry.key, e);
+                    written = false;
+                }
+                synchronized (EarthquakeTableCache.this) {
+                    if (mEntries.get(entry.key) != entry || entry.spilling != table) {
+                        // Dropped or put again meanwhile, the file is of no use
+                        file.delete();
+                        return;
+                    }
+                    entry.spilling = null;
+                    if (!written) {
+                        mEntries.remove(entry.key);
+                        return;
+                    }
+                    entry.file = file;
+                    entry.diskBytes = file.length();
+                    mDiskBytes += entry.diskBytes;
+                    trim();
+                }
+            }
+        });
+    }
+
+    /**
+     * A table in memory, on disk or on its way there.
+     */
+    private static final class Entry {
+        final String key;
+        /**
+         * Time the table was put, in {@link SystemClock#elapsedRealtime()}
+         */
+        long putTime;
+        /**
+         * The table if it is in memory, counted against the memory budgets
+         */
+        EarthquakeTable table;
+        long bytes;
+        /**
+         * The table while it is being written to {@link #file} after its eviction
+         */
+        EarthquakeTable spilling;
+        /**
+         * File holding the table once it has been evicted
+         */
+        File file;
+        long diskBytes;
+
+        Entry(String key) {
+            this.key = key;
+        }
+    }
+}
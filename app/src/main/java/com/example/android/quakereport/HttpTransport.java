@@ -0,0 +1,662 @@
+package com.example.android.quakereport;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Shared HTTP transport used for all USGS requests.
+ * <p>
+ * Connections are never disconnected explicitly: once a response body has been read to the
+ * end and closed, the platform keeps the connection alive and reuses it for the next request
+ * to the same host. Responses are requested gzip-compressed and decompressed in a stream, so
+ * the parser reads the decoded bytes as they arrive.
+ * <p>
+ * Requests which fail before their body is read (connection errors, timeouts, throttling and
+ * server errors) are sent again as the {@link RetryPolicy} allows, within the total timeout.
+ * With hedging enabled, a second identical request is sent when the first one hasn't been
+ * answered within the usual ({@link #HEDGE_PERCENTILE}th percentile) time to first byte, and
+ * whichever is answered first is used. A request can be canceled through a
+ * {@link CancellationSignal}, which aborts its connections.
+ */
+public class HttpTransport {
+
+    private static final String LOG_TAG = HttpTransport.class.getSimpleName();
+
+    /**
+     * Default timeouts, in milliseconds
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 15000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 10000;
+    public static final int DEFAULT_TOTAL_TIMEOUT_MS = 60000;
+
+    /**
+     * Percentile of the recent times to first byte after which a hedged request is sent
+     */
+    private static final int HEDGE_PERCENTILE = 95;
+
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+    private static final String HEADER_CONTENT_LENGTH = "Content-Length";
+    private static final String HEADER_RETRY_AFTER = "Retry-After";
+    private static final String ENCODING_GZIP = "gzip";
+
+    /**
+     * Runs hedged requests and aborts connections off the calling thread, which may be the
+     * main thread when a request is canceled
+     */
+    private static final ExecutorService sExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "HttpTransport #" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final int mConnectTimeoutMs;
+    private final int mReadTimeoutMs;
+    private final int mTotalTimeoutMs;
+    private final RetryPolicy mRetryPolicy;
+    private final boolean mHedgingEnabled;
+    private final LatencyTracker mTimesToFirstByte = new LatencyTracker();
+    private final Random mRandom = new Random();
+
+    /**
+     * Constructs a new {@link HttpTransport}.
+     *
+     * @param connectTimeoutMs time allowed to establish a connection, in milliseconds
+     * @param readTimeoutMs    time allowed between two reads from the connection, in milliseconds
+     * @param totalTimeoutMs   time allowed for the whole request including retries and the body,
+     *                         in milliseconds
+     * @param retryPolicy      how failed requests are retried
+     * @param hedgingEnabled   true to send a second request when the first one is slow
+     */
+    public HttpTransport(int connectTimeoutMs, int readTimeoutMs, int totalTimeoutMs,
+                         RetryPolicy retryPolicy, boolean hedgingEnabled) {
+        mConnectTimeoutMs = connectTimeoutMs;
+        mReadTimeoutMs = readTimeoutMs;
+        mTotalTimeoutMs = totalTimeoutMs;
+        mRetryPolicy = retryPolicy;
+        mHedgingEnabled = hedgingEnabled;
+    }
+
+    /**
+     * Constructs a new {@link HttpTransport} with the default retries and without hedging.
+     */
+    public HttpTransport(int connectTimeoutMs, int readTimeoutMs, int totalTimeoutMs) {
+        this(connectTimeoutMs, readTimeoutMs, totalTimeoutMs, RetryPolicy.DEFAULT, false);
+    }
+
+    /**
+     * Constructs a new {@link HttpTransport} with the default timeouts and retries.
+     */
+    public HttpTransport() {
+        this(DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS, DEFAULT_TOTAL_TIMEOUT_MS);
+    }
+
+    public int getConnectTimeoutMs() {
+        return mConnectTimeoutMs;
+    }
+
+    public int getReadTimeoutMs() {
+        return mReadTimeoutMs;
+    }
+
+    public int getTotalTimeoutMs() {
+        return mTotalTimeoutMs;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return mRetryPolicy;
+    }
+
+    public boolean isHedgingEnabled() {
+        return mHedgingEnabled;
+    }
+
+    /**
+     * Sends a GET request and returns its response. The caller must close the response.
+     *
+     * @param url     to request
+     * @param headers additional request headers, may be null
+     */
+    public Response get(URL url, Map<String, String> headers) throws IOException {
+        return get(url, headers, null);
+    }
+
+    /**
+     * Sends a GET request, retrying it as the {@link RetryPolicy} allows, and returns the first
+     * response which isn't worth retrying, or the last one. The caller must close the response.
+     *
+     * @param url     to request
+     * @param headers additional request headers, may be null
+     * @param signal  aborts the request and the reading of its body when canceled, may be null
+     * @throws OperationCanceledException if the signal was canceled
+     */
+    public Response get(URL url, Map<String, String> headers, CancellationSignal signal) throws IOException {
+        long deadline = System.currentTimeMillis() + mTotalTimeoutMs;
+        Call call = new Call(signal);
+        Response response = null;
+        try {
+            for (int attempt = 1; ; attempt++) {
+                call.throwIfCanceled();
+                long delayMs = mRetryPolicy.getDelayMs(attempt, mRandom);
+                boolean lastAttempt = attempt >= mRetryPolicy.getMaxAttempts()
+                        || System.currentTimeMillis() + delayMs >= deadline;
+                try {
+                    response = exchange(url, headers, call, deadline);
+                    int responseCode = response.getResponseCode();
+                    if (!RetryPolicy.isRetryable(responseCode)) {
+                        return response;
+                    }
+                    // Wait at least as long as the server asks to
+                    delayMs = Math.max(delayMs, response.getRetryAfterMs());
+                    if (lastAttempt || System.currentTimeMillis() + delayMs >= deadline) {
+                        return response;
+                    }
+                    Log.w(LOG_TAG, "Retrying after response code " + responseCode + " in " + delayMs + " ms");
+                    response.release();
+                    response = null;
+                } catch (IOException e) {
+                    // An aborted connection fails like a broken one
+                    call.throwIfCanceled();
+                    if (lastAttempt || System.currentTimeMillis() + delayMs >= deadline) {
+                        throw e;
+                    }
+                    Log.w(LOG_TAG, "Retrying after " + e + " in " + delayMs + " ms");
+                }
+                Metrics.count("http.retries", 1);
+                call.sleep(delayMs);
+            }
+        } finally {
+            if (response == null) {
+                call.finish();
+            }
+        }
+    }
+
+    /**
+     * Sends the request once, or twice if hedging is enabled and the first one is slow.
+     */
+    private Response exchange(URL url, Map<String, String> headers, Call call, long deadline)
+            throws IOException {
+        long hedgeDelayMs = mHedgingEnabled ? mTimesToFirstByte.getPercentile(HEDGE_PERCENTILE) : -1;
+        if (hedgeDelayMs < 0) {
+            return new Exchange(url, headers, call, deadline).call();
+        }
+
+        CompletionService<Response> race = new ExecutorCompletionService<>(sExecutor);
+        List<Exchange> exchanges = new ArrayList<>(2);
+        List<Future<Response>> futures = new ArrayList<>(2);
+        Future<Response> winner = null;
+        IOException failure = null;
+        try {
+            Exchange first = new Exchange(url, headers, call, deadline);
+            exchanges.add(first);
+            futures.add(race.submit(first));
+            int pending = 1;
+            while (pending > 0) {
+                boolean hedged = exchanges.size() > 1;
+                long waitMs = hedged ? deadline - System.currentTimeMillis() : hedgeDelayMs;
+                Future<Response> done = race.poll(Math.max(0, waitMs), TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    if (hedged) {
+                        throw new SocketTimeoutException("Total request timeout exceeded");
+                    }
+                    Log.i(LOG_TAG, "No response after " + hedgeDelayMs + " ms, sending a hedged request");
+                    Metrics.count("http.hedged", 1);
+                    Exchange hedge = new Exchange(url, headers, call, deadline);
+                    exchanges.add(hedge);
+                    futures.add(race.submit(hedge));
+                    pending++;
+                    continue;
+                }
+                pending--;
+                try {
+                    Response response = done.get();
+                    winner = done;
+                    if (futures.indexOf(done) > 0) {
+                        Metrics.count("http.hedge_won", 1);
+                    }
+                    return response;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        // The other request may still succeed
+                        failure = (IOException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else {
+                        throw new IOException(cause);
+                    }
+                }
+            }
+            throw failure;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a response");
+        } finally {
+            // Release the request which lost the race, whether it is still running or done
+            for (int i = 0; i < exchanges.size(); i++) {
+                if (futures.get(i) != winner) {
+                    exchanges.get(i).abort();
+                }
+            }
+        }
+    }
+
+    /**
+     * Disconnects the connection on a background thread, as closing a TLS socket may write to
+     * the network.
+     */
+    private static void disconnectAsync(final HttpURLConnection connection) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                connection.disconnect();
+            }
+        });
+    }
+
+    /**
+     * One attempt of a request: opens a connection, sends the request and waits for the
+     * response headers.
+     */
+    private final class Exchange implements Callable<Response> {
+        private final URL mUrl;
+        private final Map<String, String> mHeaders;
+        private final Call mCall;
+        private final long mDeadline;
+        private HttpURLConnection mConnection;
+        private boolean mAborted;
+
+        Exchange(URL url, Map<String, String> headers, Call call, long deadline) {
+            mUrl = url;
+            mHeaders = headers;
+            mCall = call;
+            mDeadline = deadline;
+        }
+
+        @Override
+        public Response call() throws IOException {
+            long start = System.nanoTime();
+            long metricsStart = Metrics.startTimer();
+            HttpURLConnection urlConnection = (HttpURLConnection) mUrl.openConnection();
+            urlConnection.setRequestMethod("GET");
+            urlConnection.setReadTimeout(mReadTimeoutMs);
+            urlConnection.setConnectTimeout(mConnectTimeoutMs);
+            urlConnection.setRequestProperty(HEADER_ACCEPT_ENCODING, ENCODING_GZIP);
+            if (mHeaders != null) {
+                for (Map.Entry<String, String> header : mHeaders.entrySet()) {
+                    urlConnection.setRequestProperty(header.getKey(), header.getValue());
+                }
+            }
+            synchronized (this) {
+                if (mAborted) {
+                    throw new InterruptedIOException("Request aborted");
+                }
+                mConnection = urlConnection;
+            }
+
+            boolean answered = false;
+            mCall.register(urlConnection);
+            try {
+                urlConnection.connect();
+                Metrics.stopTimer("http.connect_us", metricsStart);
+                // Blocks until the response headers have arrived
+                urlConnection.getResponseCode();
+                Metrics.stopTimer("http.ttfb_us", metricsStart);
+                mTimesToFirstByte.record((System.nanoTime() - start) / 1000000);
+                answered = true;
+                return new Response(urlConnection, mDeadline, mCall);
+            } finally {
+                if (!answered) {
+                    mCall.unregister(urlConnection);
+                    urlConnection.disconnect();
+                }
+            }
+        }
+
+        /**
+         * Drops the connection of this attempt, if it has one.
+         */
+        void abort() {
+            HttpURLConnection connection;
+            synchronized (this) {
+                mAborted = true;
+                connection = mConnection;
+            }
+            if (connection != null) {
+                mCall.unregister(connection);
+                disconnectAsync(connection);
+            }
+        }
+    }
+
+    /**
+     * All attempts of one request, with the connections which are open, so they can be aborted
+     * when its {@link CancellationSignal} is canceled.
+     */
+    private static final class Call implements CancellationSignal.OnCancelListener {
+        private final CancellationSignal mSignal;
+        private final List<HttpURLConnection> mConnections = new ArrayList<>(2);
+        private boolean mCanceled;
+
+        Call(CancellationSignal signal) {
+            mSignal = signal;
+            if (signal != null) {
+                // Called right away if the signal is already canceled
+                signal.setOnCancelListener(this);
+            }
+        }
+
+        @Override
+        public void onCancel() {
+            List<HttpURLConnection> connections;
+            synchronized (this) {
+                mCanceled = true;
+                connections = new ArrayList<>(mConnections);
+                mConnections.clear();
+                notifyAll();
+            }
+            Log.i(LOG_TAG, "Request canceled, aborting " + connections.size() + " connections");
+            Metrics.count("http.canceled", 1);
+            for (HttpURLConnection connection : connections) {
+                disconnectAsync(connection);
+            }
+        }
+
+        synchronized void throwIfCanceled() {
+            if (mCanceled) {
+                throw new OperationCanceledException();
+            }
+        }
+
+        synchronized void register(HttpURLConnection connection) {
+            throwIfCanceled();
+            mConnections.add(connection);
+        }
+
+        synchronized void unregister(HttpURLConnection connection) {
+            mConnections.remove(connection);
+        }
+
+        /**
+         * Waits for the given time unless the call is canceled first.
+         */
+        synchronized void sleep(long delayMs) throws InterruptedIOException {
+            long end = System.currentTimeMillis() + delayMs;
+            try {
+                for (long remaining = delayMs; remaining > 0 && !mCanceled; ) {
+                    wait(remaining);
+                    remaining = end - System.currentTimeMillis();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to retry");
+            }
+            throwIfCanceled();
+        }
+
+        /**
+         * Stops listening to the signal once the response has been released.
+         */
+        void finish() {
+            if (mSignal != null) {
+                mSignal.setOnCancelListener(null);
+            }
+        }
+    }
+
+    /**
+     * Recent times to first byte, to tell how long a response usually takes.
+     */
+    private static final class LatencyTracker {
+        private static final int SIZE = 64;
+        /**
+         * Fewer samples don't tell a slow response from a usual one
+         */
+        private static final int MIN_SAMPLES = 8;
+
+        private final long[] mSamples = new long[SIZE];
+        private int mCount;
+
+        synchronized void record(long latencyMs) {
+            mSamples[mCount % SIZE] = latencyMs;
+            mCount++;
+        }
+
+        /**
+         * Returns the given percentile of the recent samples, or -1 if there are too few.
+         */
+        synchronized long getPercentile(int percentile) {
+            int size = Math.min(mCount, SIZE);
+            if (size < MIN_SAMPLES) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(mSamples, size);
+            Arrays.sort(sorted);
+            return sorted[Math.min(size - 1, (size * percentile + 99) / 100 - 1)];
+        }
+    }
+
+    /**
+     * Response of a request made with {@link #get(URL, Map, CancellationSignal)}.
+     */
+    public static final class Response {
+        private final HttpURLConnection mConnection;
+        private final long mDeadline;
+        private final Call mCall;
+        private InputStream mBody;
+        private boolean mClosed;
+
+        private Response(HttpURLConnection connection, long deadline, Call call) {
+            mConnection = connection;
+            mDeadline = deadline;
+            mCall = call;
+        }
+
+        public int getResponseCode() throws IOException {
+            return mConnection.getResponseCode();
+        }
+
+        public String getHeaderField(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        /**
+         * Returns the length of the decompressed body in bytes, or -1 if it isn't known up
+         * front: the Content-Length of a gzip-encoded response is its compressed length.
+         */
+        public long getBodyLength() {
+            String contentLength = getHeaderField(HEADER_CONTENT_LENGTH);
+            if (contentLength == null
+                    || ENCODING_GZIP.equalsIgnoreCase(getHeaderField(HEADER_CONTENT_ENCODING))) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        /**
+         * Returns the delay asked for by a "Retry-After" header in seconds, in milliseconds,
+         * or 0 if there is none.
+         */
+        long getRetryAfterMs() {
+            String retryAfter = getHeaderField(HEADER_RETRY_AFTER);
+            if (retryAfter != null) {
+                try {
+                    return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+                } catch (NumberFormatException ignored) {
+                    // An HTTP date, which USGS doesn't send
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Returns the decompressed response body. Reading it fails once the total timeout
+         * of the request has passed.
+         */
+        public InputStream getBody() throws IOException {
+            if (mBody == null) {
+                InputStream in = mConnection.getInputStream();
+                if (Metrics.isEnabled()) {
+                    in = new ByteCountingInputStream(in);
+                }
+                in = new BufferedInputStream(in);
+                if (ENCODING_GZIP.equalsIgnoreCase(mConnection.getHeaderField(HEADER_CONTENT_ENCODING))) {
+                    in = new GZIPInputStream(in);
+                }
+                mBody = new DeadlineInputStream(in, mDeadline);
+            }
+            return mBody;
+        }
+
+        /**
+         * Releases the response. The connection is kept alive for reuse if its body was read
+         * to the end.
+         */
+        public void close() throws IOException {
+            try {
+                release();
+            } finally {
+                mCall.finish();
+            }
+        }
+
+        /**
+         * Releases the response, but keeps listening for the cancellation of its request,
+         * which may be retried.
+         */
+        private void release() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                if (mBody != null) {
+                    mBody.close();
+                } else {
+                    InputStream in = mConnection.getErrorStream();
+                    if (in == null && mConnection.getResponseCode() < HttpURLConnection.HTTP_BAD_REQUEST) {
+                        in = mConnection.getInputStream();
+                    }
+                    if (in != null) {
+                        in.close();
+                    }
+                }
+            } finally {
+                mCall.unregister(mConnection);
+            }
+        }
+    }
+
+    /**
+     * Input stream which fails once a deadline has passed, to bound the total request time.
+     */
+    private static final class DeadlineInputStream extends FilterInputStream {
+        private final long mDeadline;
+
+        DeadlineInputStream(InputStream in, long deadline) {
+            super(in);
+            mDeadline = deadline;
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkDeadline();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            checkDeadline();
+            return super.read(buffer, offset, count);
+        }
+
+        private void checkDeadline() throws SocketTimeoutException {
+            if (System.currentTimeMillis() > mDeadline) {
+                throw new SocketTimeoutException("Total request timeout exceeded");
+            }
+        }
+    }
+
+    /**
+     * Input stream which records the number of bytes read from the connection, i.e. before
+     * decompression, once it is closed.
+     */
+    private static final class ByteCountingInputStream extends FilterInputStream {
+        private long mCount;
+        private boolean mClosed;
+
+        ByteCountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            mCount += skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!mClosed) {
+                mClosed = true;
+                Metrics.record("http.response_bytes", mCount);
+            }
+            super.close();
+        }
+    }
+}
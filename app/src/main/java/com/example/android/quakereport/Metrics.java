@@ -0,0 +1,288 @@
+package com.example.android.quakereport;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counters and histograms of the stages of the earthquake pipeline (download, parse, load,
+ * display), to tell where load latency goes.
+ * <p>
+ * Metrics are named by stage, with the unit as suffix, e.g. "http.ttfb_us" or
+ * "http.response_bytes". Timers are histograms of microseconds:
+ * <pre>
+ * long start = Metrics.startTimer();
+ * ...
+ * Metrics.stopTimer("parse.feed_us", start);
+ * </pre>
+ * Recording is disabled by default. While disabled, every method returns after reading one
+ * volatile field, so the instrumentation can stay in release builds. The recorded values can be
+ * logged as a summary, periodically or on demand, or written to a dump file.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class Metrics {
+
+    private static final String LOG_TAG = Metrics.class.getSimpleName();
+
+    private static volatile boolean sEnabled;
+
+    /**
+     * Counters and histograms by name, sorted so summaries are easy to read
+     */
+    private static final Map<String, long[]> sCounters = new TreeMap<>();
+    private static final Map<String, Histogram> sHistograms = new TreeMap<>();
+
+    private static ScheduledExecutorService sSummaryExecutor;
+    private static ScheduledFuture<?> sSummaryTask;
+
+    /**
+     * This class is only meant to hold static methods.
+     */
+    private Metrics() {
+
+    }
+
+    /**
+     * Turns recording on or off. Values recorded so far are kept.
+     */
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Returns the start time of a timer, or 0 if recording is disabled.
+     */
+    public static long startTimer() {
+        return sEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the time passed since the given start of a timer, in microseconds.
+     *
+     * @param name  of the timer, ending in "_us"
+     * @param start as returned by {@link #startTimer()}
+     */
+    public static void stopTimer(String name, long start) {
+        if (sEnabled && start != 0) {
+            record(name, (System.nanoTime() - start) / 1000);
+        }
+    }
+
+    /**
+     * Adds a value, e.g. a size in bytes, to the histogram of the given name.
+     */
+    public static void record(String name, long value) {
+        if (!sEnabled) {
+            return;
+        }
+        synchronized (sHistograms) {
+            Histogram histogram = sHistograms.get(name);
+            if (histogram == null) {
+                histogram = new Histogram();
+                sHistograms.put(name, histogram);
+            }
+            histogram.record(value);
+        }
+    }
+
+    /**
+     * Adds the given amount to the counter of the given name.
+     */
+    public static void count(String name, long delta) {
+        if (!sEnabled) {
+            return;
+        }
+        synchronized (sCounters) {
+            long[] counter = sCounters.get(name);
+            if (counter == null) {
+                counter = new long[1];
+                sCounters.put(name, counter);
+            }
+            counter[0] += delta;
+        }
+    }
+
+    /**
+     * Drops all recorded values.
+     */
+    public static void reset() {
+        synchronized (sCounters) {
+            sCounters.clear();
+        }
+        synchronized (sHistograms) {
+            sHistograms.clear();
+        }
+    }
+
+    /**
+     * Returns a table of all counters and of the count, mean, percentiles and maximum of all
+     * histograms.
+     */
+    public static String summary() {
+        StringBuilder summary = new StringBuilder();
+        synchronized (sCounters) {
+            for (Map.Entry<String, long[]> counter : sCounters.entrySet()) {
+                summary.append(String.format(Locale.US, "%-28s %12d%n", counter.getKey(), counter.getValue()[0]));
+            }
+        }
+        synchronized (sHistograms) {
+            if (!sHistograms.isEmpty()) {
+                summary.append(String.format(Locale.US, "%-28s %8s %10s %10s %10s %10s %10s%n",
+                        "histogram", "count", "mean", "p50", "p95", "p99", "max"));
+            }
+            for (Map.Entry<String, Histogram> entry : sHistograms.entrySet()) {
+                Histogram histogram = entry.getValue();
+                summary.append(String.format(Locale.US, "%-28s %8d %10d %10d %10d %10d %10d%n",
+                        entry.getKey(), histogram.getCount(), histogram.getMean(),
+                        histogram.getPercentile(50), histogram.getPercentile(95),
+                        histogram.getPercentile(99), histogram.getMax()));
+            }
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Writes the current summary to the log.
+     */
+    public static void logSummary() {
+        if (!sEnabled) {
+            return;
+        }
+        for (String line : summary().split("\n")) {
+            Log.i(LOG_TAG, line);
+        }
+    }
+
+    /**
+     * Writes the current summary to the log every intervalMs milliseconds until
+     * {@link #stopPeriodicSummary()} is called. Replaces an earlier schedule.
+     */
+    public static synchronized void startPeriodicSummary(long intervalMs) {
+        stopPeriodicSummary();
+        if (sSummaryExecutor == null) {
+            sSummaryExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "MetricsSummary");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        sSummaryTask = sSummaryExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                logSummary();
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized void stopPeriodicSummary() {
+        if (sSummaryTask != null) {
+            sSummaryTask.cancel(false);
+            sSummaryTask = null;
+        }
+    }
+
+    /**
+     * Writes the current summary to the given file, replacing its contents.
+     */
+    public static void dump(File file) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8"));
+        try {
+            writer.write(summary());
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Histogram of non-negative values with logarithmic buckets: each power of two is split into
+     * {@link #SUB_BUCKETS} buckets, so percentiles are accurate to 1/{@link #SUB_BUCKETS} of the
+     * value while the memory use stays fixed. Callers synchronize.
+     */
+    private static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final long[] mBuckets = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+        private long mCount;
+        private long mSum;
+        private long mMax;
+
+        void record(long value) {
+            value = Math.max(0, value);
+            mBuckets[bucketOf(value)]++;
+            mCount++;
+            mSum += value;
+            mMax = Math.max(mMax, value);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        long getMean() {
+            return mCount == 0 ? 0 : mSum / mCount;
+        }
+
+        long getMax() {
+            return mMax;
+        }
+
+        /**
+         * Returns the upper bound of the bucket holding the given percentile of the values.
+         */
+        long getPercentile(double percentile) {
+            long rank = (long) Math.ceil(mCount * percentile / 100);
+            long seen = 0;
+            for (int bucket = 0; bucket < mBuckets.length; bucket++) {
+                seen += mBuckets[bucket];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(mMax, upperBoundOf(bucket));
+                }
+            }
+            return mMax;
+        }
+
+        /**
+         * Values below {@link #SUB_BUCKETS} get a bucket each; above, the bucket is given by the
+         * position of the highest bit and the {@link #SUB_BUCKET_BITS} bits below it.
+         */
+        private static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+        }
+
+        private static long upperBoundOf(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            long subBucket = bucket % SUB_BUCKETS + SUB_BUCKETS;
+            return ((subBucket + 1) << shift) - 1;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.android.quakereport;
+
+import android.app.Activity;
+
+/**
+ * {@link EarthquakeAdapter} which takes its rows from an {@link EarthquakePager} instead of
+ * its own table, for endless scrolling. Rows of pages which aren't in memory are shown as
+ * placeholders until their page has been fetched again.
+ */
+public class PagedEarthquakeAdapter extends EarthquakeAdapter {
+
+    private EarthquakePager mPager;
+
+    public PagedEarthquakeAdapter(Activity context) {
+        super(context);
+    }
+
+    /**
+     * Switches the adapter to the given pager, releasing the previous one.
+     */
+    public void setPager(EarthquakePager pager) {
+        if (mPager != null) {
+            mPager.release();
+        }
+        mPager = pager;
+        if (mPager != null) {
+            mPager.setOnPageLoadedListener(new EarthquakePager.OnPageLoadedListener() {
+                @Override
+                public void onPageLoaded() {
+                    notifyDataSetChanged();
+                }
+            });
+        }
+        notifyDataSetChanged();
+    }
+
+    public EarthquakePager getPager() {
+        return mPager;
+    }
+
+    @Override
+    public int getCount() {
+        return mPager != null ? mPager.getCount() : 0;
+    }
+
+    @Override
+    public EarthquakeTable.Row getItem(int position) {
+        return mPager != null ? mPager.getItem(position) : null;
+    }
+
+    @Override
+    protected EarthquakeDisplayModel getDisplayModel(int position) {
+        return mPager != null ? mPager.getDisplayModel(position) : null;
+    }
+}
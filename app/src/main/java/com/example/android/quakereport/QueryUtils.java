@@ -4,13 +4,11 @@ package com.example.android.quakereport;
  * Created by kahra on 8.11.2017.
  */
 
-import android.text.TextUtils;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.util.Log;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
@@ -18,24 +16,45 @@ import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.nio.charset.Charset;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
-
-import static com.example.android.quakereport.EarthquakeActivity.LOG_TAG;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
 
 /**
  * Helper methods related to requesting and receiving earthquake data from USGS.
  */
 public final class QueryUtils {
 
+    private static final String LOG_TAG = QueryUtils.class.getSimpleName();
+
+    /**
+     * Last path segments of the USGS "query" and "count" methods, which take the same parameters
+     */
+    private static final String QUERY_METHOD = "/query";
+    private static final String COUNT_METHOD = "/count";
+
     /**
-     * String keys of the propeerties to be extracted from JSON
+     * USGS query parameters which don't change which events a query matches
      */
-    private static final String KEY_MAGNITUDE = "mag";
-    private static final String KEY_LOCATION = "place";
-    private static final String KEY_TIME = "time";
-    private static final String KEY_WEBSITE = "url";
+    private static final String PARAM_LIMIT = "limit";
+    private static final String PARAM_OFFSET = "offset";
+    private static final String PARAM_ORDER_BY = "orderby";
+
+    /**
+     * Time formats understood by USGS for time parameters, the first one is used for output
+     */
+    private static final String[] QUERY_TIME_FORMATS = {
+            "yyyy-MM-dd'T'HH:mm:ss.SSS",
+            "yyyy-MM-dd'T'HH:mm:ss",
+            "yyyy-MM-dd'T'HH:mm",
+            "yyyy-MM-dd"};
 
     /**
      * Create a private constructor because no one should ever create a {@link QueryUtils} object.
@@ -46,36 +65,232 @@ public final class QueryUtils {
 
     }
 
+    /**
+     * Cache of earlier responses used for conditional requests, null if caching is disabled
+     */
+    private static EarthquakeResponseCache sResponseCache;
+
+    /**
+     * Installs the cache used to revalidate and replay earlier responses.
+     * Pass null to disable response caching.
+     */
+    public static synchronized void setResponseCache(EarthquakeResponseCache responseCache) {
+        sResponseCache = responseCache;
+    }
+
+    /**
+     * Returns the installed response cache, or null if caching is disabled.
+     */
+    public static synchronized EarthquakeResponseCache getResponseCache() {
+        return sResponseCache;
+    }
+
+    /**
+     * Transport shared by all requests, so connections to USGS can be reused
+     */
+    private static HttpTransport sTransport = new HttpTransport();
+
+    /**
+     * Replaces the transport used for all requests, e.g. to change its timeouts.
+     */
+    public static synchronized void setTransport(HttpTransport transport) {
+        sTransport = transport;
+    }
+
+    /**
+     * Returns the transport used for all requests.
+     */
+    public static synchronized HttpTransport getTransport() {
+        return sTransport;
+    }
+
     /**
      * Query the USGS dataset and return a list of {@link Earthquake} objects.
      */
     public static List<Earthquake> fetchEarthquakeData(String requestUrl) {
+        return fetchEarthquakeData(requestUrl, (CancellationSignal) null);
+    }
 
-        /*
-        // Added to pretend like network process take some time to display progress bar longer
-        try {
-            Thread.sleep(2000);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-        */
+    /**
+     * Query the USGS dataset and return a list of {@link Earthquake} objects.
+     *
+     * @param signal cancels the request, may be null
+     * @throws OperationCanceledException if the signal was canceled
+     */
+    public static List<Earthquake> fetchEarthquakeData(String requestUrl, CancellationSignal signal) {
+        // Collect the streamed earthquakes into a list
+        final List<Earthquake> earthquakes = new ArrayList<>();
+        boolean succeeded = fetchEarthquakeData(requestUrl, new EarthquakeStreamParser.OnEarthquakeParsedListener() {
+            @Override
+            public void onEarthquakeParsed(Earthquake earthquake) {
+                earthquakes.add(earthquake);
+            }
+        }, signal);
+
+        // Return the list of {@link Earthquake}s, or null if nothing could be received
+        return succeeded ? earthquakes : null;
+    }
+
+    /**
+     * Query the USGS dataset and hand each {@link Earthquake} to the listener as soon as it
+     * has been parsed off the network stream.
+     *
+     * @return true if a response was received and parsed, false otherwise
+     */
+    public static boolean fetchEarthquakeData(String requestUrl,
+                                              EarthquakeStreamParser.OnEarthquakeParsedListener listener) {
+        return fetchEarthquakeData(requestUrl, listener, null);
+    }
 
+    /**
+     * Query the USGS dataset and hand each {@link Earthquake} to the listener as soon as it
+     * has been parsed off the network stream.
+     * <p>
+     * Canceling the signal aborts the connection and stops the parser before the next
+     * earthquake, so a superseded query doesn't keep downloading and parsing.
+     *
+     * @param signal cancels the request, may be null
+     * @return true if a response was received and parsed, false otherwise
+     * @throws OperationCanceledException if the signal was canceled
+     */
+    public static boolean fetchEarthquakeData(String requestUrl,
+                                              EarthquakeStreamParser.OnEarthquakeParsedListener listener,
+                                              CancellationSignal signal) {
+        return fetchEarthquakeData(requestUrl, listener, signal, true);
+    }
+
+    /**
+     * Query the USGS dataset and hand each {@link Earthquake} to the listener as soon as it
+     * has been parsed off the network stream.
+     *
+     * @param signal    cancels the request, may be null
+     * @param cacheable false to bypass the response cache, for URLs which are only requested
+     *                  once and would only evict useful responses
+     * @return true if a response was received and parsed, false otherwise
+     * @throws OperationCanceledException if the signal was canceled
+     */
+    public static boolean fetchEarthquakeData(String requestUrl,
+                                              EarthquakeStreamParser.OnEarthquakeParsedListener listener,
+                                              CancellationSignal signal, boolean cacheable) {
         // Create URL object
         URL url = createUrl(requestUrl);
 
-        // Perform HTTP request to the URL and receive a JSON response back
-        String jsonResponse = null;
+        // Perform HTTP request to the URL and stream the JSON response into the listener
+        long start = Metrics.startTimer();
         try {
-            jsonResponse = makeHttpRequest(url);
+            return makeHttpRequest(url, listener, signal, cacheable ? getResponseCache() : null);
         } catch (IOException e) {
+            if (signal != null && signal.isCanceled()) {
+                throw new OperationCanceledException();
+            }
             Log.e(LOG_TAG, "Problem making the HTTP request.", e);
+            return false;
+        } finally {
+            Metrics.stopTimer("fetch.total_us", start);
         }
+    }
 
-        // Extract relevant fields from the JSON response and create a list of {@link Earthquake}s
-        List<Earthquake> earthquakes = extractFeatureFromJson(jsonResponse);
+    /**
+     * Asks the USGS "count" method how many events the given query matches, regardless of its
+     * "limit". The count is never cached, it is only good for planning the fetch that follows.
+     *
+     * @param signal cancels the request, may be null
+     * @return the number of matching events, or -1 if they couldn't be counted
+     * @throws OperationCanceledException if the signal was canceled
+     */
+    public static int fetchEarthquakeCount(String requestUrl, CancellationSignal signal) {
+        Uri uri = Uri.parse(requestUrl);
+        String path = uri.getPath();
+        if (path == null || !path.endsWith(QUERY_METHOD)) {
+            return -1;
+        }
+        // The count method answers in plain text unless a format is asked for
+        URL url = createUrl(buildUponWithout(requestUrl, EarthquakeFeedDecoders.PARAM_FORMAT, PARAM_LIMIT,
+                PARAM_OFFSET, PARAM_ORDER_BY)
+                .path(path.substring(0, path.length() - QUERY_METHOD.length()) + COUNT_METHOD)
+                .toString());
+        if (url == null) {
+            return -1;
+        }
+
+        HttpTransport.Response response = null;
+        try {
+            response = getTransport().get(url, new HashMap<String, String>(), signal);
+            if (response.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                Log.e(LOG_TAG, "Error -HTTP- response code of count: " + response.getResponseCode());
+                return -1;
+            }
+            String count = new BufferedReader(new InputStreamReader(response.getBody(), "UTF-8")).readLine();
+            return count != null ? Integer.parseInt(count.trim()) : -1;
+        } catch (NumberFormatException e) {
+            Log.e(LOG_TAG, "Problem parsing the count", e);
+            return -1;
+        } catch (IOException e) {
+            if (signal != null && signal.isCanceled()) {
+                throw new OperationCanceledException();
+            }
+            Log.e(LOG_TAG, "Problem counting earthquakes", e);
+            return -1;
+        } finally {
+            if (response != null) {
+                try {
+                    response.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Problem closing the count response", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a builder for the given URL with all query parameters but the named ones.
+     */
+    public static Uri.Builder buildUponWithout(String requestUrl, String... excludedParameters) {
+        Uri uri = Uri.parse(requestUrl);
+        Uri.Builder builder = uri.buildUpon().clearQuery();
+        for (String name : uri.getQueryParameterNames()) {
+            if (Arrays.asList(excludedParameters).contains(name)) {
+                continue;
+            }
+            for (String value : uri.getQueryParameters(name)) {
+                builder.appendQueryParameter(name, value);
+            }
+        }
+        return builder;
+    }
+
+    /**
+     * Formats a time in milliseconds since the epoch for a USGS time parameter (in UTC).
+     */
+    public static String formatQueryTime(long timeInMillisec) {
+        return createQueryTimeFormat(QUERY_TIME_FORMATS[0]).format(new Date(timeInMillisec));
+    }
+
+    /**
+     * Parses the value of a USGS time parameter (in UTC).
+     *
+     * @return the time in milliseconds since the epoch, or -1 if the value can't be parsed
+     */
+    public static long parseQueryTime(String value) {
+        if (value == null) {
+            return -1;
+        }
+        for (String format : QUERY_TIME_FORMATS) {
+            SimpleDateFormat timeFormat = createQueryTimeFormat(format);
+            ParsePosition position = new ParsePosition(0);
+            Date date = timeFormat.parse(value, position);
+            if (date != null && position.getIndex() == value.length()) {
+                return date.getTime();
+            }
+        }
+        return -1;
+    }
 
-        // Return the list of {@link Earthquake}s
-        return earthquakes;
+    private static SimpleDateFormat createQueryTimeFormat(String format) {
+        SimpleDateFormat timeFormat = new SimpleDateFormat(format, Locale.US);
+        timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        timeFormat.setLenient(false);
+        return timeFormat;
     }
 
     /**
@@ -93,121 +308,197 @@ public final class QueryUtils {
     }
 
     /**
-     * Make an HTTP request to the given URL and return a String as the response.
+     * Make an HTTP request to the given URL and stream the parsed response to the listener.
+     * <p>
+     * If an earlier response for the same URL is cached, its validators are sent along and
+     * the cached body is parsed instead when the server answers "304 Not Modified".
+     *
+     * @param responseCache cache of earlier responses, null to bypass it
      */
-    private static String makeHttpRequest(URL url) throws IOException {
-        String jsonResponse = "";
+    private static boolean makeHttpRequest(URL url, EarthquakeStreamParser.OnEarthquakeParsedListener listener,
+                                           final CancellationSignal signal,
+                                           EarthquakeResponseCache responseCache) throws IOException {
+        boolean succeeded = false;
         // If the url is null don't advance to try connecting to the server, return early
         if (url == null) {
-            return jsonResponse;
+            return succeeded;
         }
 
         Log.i(LOG_TAG, "Http Request URL: " + url.toString());
 
-        HttpURLConnection urlConnection = null;
+        HttpTransport.Response response = null;
         InputStream inputStream = null;
 
+        // Stop the parser at the next earthquake once the request is canceled
+        if (signal != null) {
+            final EarthquakeStreamParser.OnEarthquakeParsedListener target = listener;
+            listener = new EarthquakeStreamParser.OnEarthquakeParsedListener() {
+                @Override
+                public void onEarthquakeParsed(Earthquake earthquake) {
+                    signal.throwIfCanceled();
+                    target.onEarthquakeParsed(earthquake);
+                }
+            };
+        }
+
+        // Look up an earlier response to revalidate instead of downloading it again
+        EarthquakeResponseCache.Entry cachedResponse =
+                responseCache != null ? responseCache.get(url.toString()) : null;
+        // Decode the body in the wire format the request asked for
+        EarthquakeFeedDecoder decoder = EarthquakeFeedDecoders.forUrl(url.toString());
+
         try {
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.setReadTimeout(10000 /* milliseconds */);
-            urlConnection.setConnectTimeout(15000 /* milliseconds */);
-            urlConnection.connect();
+            Map<String, String> headers = new HashMap<>();
+            if (cachedResponse != null) {
+                if (cachedResponse.getETag() != null) {
+                    headers.put("If-None-Match", cachedResponse.getETag());
+                }
+                if (cachedResponse.getLastModified() != null) {
+                    headers.put("If-Modified-Since", cachedResponse.getLastModified());
+                }
+            }
+            // Failed attempts are retried by the transport until a response is worth reading
+            response = getTransport().get(url, headers, signal);
             // Check the HTTP response by status code,
             // Try reading the inputStream and parsing
-            // only if connection is succeeded that is response code = 200
-            if (urlConnection.getResponseCode() == 200) {
-                inputStream = urlConnection.getInputStream();
-                jsonResponse = readFromStream(inputStream);
+            // only if connection is succeeded that is response code = 200,
+            // or replay the cached body if it is still valid (response code = 304)
+            int responseCode = response.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cachedResponse != null) {
+                Log.i(LOG_TAG, "Response not modified, reading it from cache");
+                Metrics.count("http.not_modified", 1);
+                inputStream = cachedResponse.openBody();
+                // The cache holds the decompressed body, so its length is the one parsed
+                readFromStream(inputStream, decoder, cachedResponse.getBodyLength(), listener, signal);
+                succeeded = true;
+            } else if (responseCode == 200) {
+                Metrics.count("http.ok", 1);
+                inputStream = response.getBody();
+                long bodyLength = response.getBodyLength();
+                String eTag = response.getHeaderField("ETag");
+                String lastModified = response.getHeaderField("Last-Modified");
+                if (responseCache != null && (eTag != null || lastModified != null)) {
+                    // Copy the body into the cache while it is being parsed
+                    EarthquakeResponseCache.CachingInputStream cachingStream =
+                            responseCache.put(url.toString(), inputStream, eTag, lastModified);
+                    inputStream = cachingStream;
+                    readFromStream(inputStream, decoder, bodyLength, listener, signal);
+                    try {
+                        cachingStream.commit();
+                    } catch (IOException e) {
+                        // The response was parsed, only the next request has to download it again
+                        Log.e(LOG_TAG, "Problem caching the response", e);
+                        Metrics.count("http.cache_failed", 1);
+                    }
+                } else {
+                    readFromStream(inputStream, decoder, bodyLength, listener, signal);
+                    // Read the trailing bytes too, so the connection can be reused
+                    skipRemaining(inputStream);
+                }
+                succeeded = true;
             } else {
                 Log.e(LOG_TAG,
-                        "Error -HTTP- response code: "
-                                + urlConnection.getResponseCode());
+                        "Error -HTTP- response code: " + responseCode);
+                Metrics.count("http.error_status", 1);
             }
         } catch (IOException e) {
-            Log.e(LOG_TAG, "Error with HTTP connection / retrieving JSON response", e);
-        } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
+            // Aborting the connection fails the read in progress
+            if (signal != null && signal.isCanceled()) {
+                throw new OperationCanceledException();
             }
+            Log.e(LOG_TAG, "Error with HTTP connection / parsing JSON response", e);
+            Metrics.count("http.failed", 1);
+        } finally {
+            // Closing instead of disconnecting keeps the connection alive for the next request
             if (inputStream != null) {
                 // function must handle java.io.IOException here
                 inputStream.close();
             }
+            if (response != null) {
+                response.close();
+            }
         }
 
-        return jsonResponse;
+        return succeeded;
     }
 
     /**
-     * Convert the {@link InputStream} into a String which contains the
-     * whole JSON response from the server.
+     * Read the {@link InputStream} to the end, discarding its content.
      */
-    private static String readFromStream(InputStream inputStream) throws IOException {
-        StringBuilder output = new StringBuilder();
-        if (inputStream != null) {
-            InputStreamReader inputStreamReader = new InputStreamReader(inputStream, Charset.forName("UTF-8"));
-            BufferedReader reader = new BufferedReader(inputStreamReader);
-            String line = reader.readLine();
-            while (line != null) {
-                output.append(line);
-                line = reader.readLine();
-            }
+    private static void skipRemaining(InputStream inputStream) throws IOException {
+        byte[] buffer = new byte[1024];
+        while (inputStream.read(buffer) != -1) {
+            // Nothing to do with the bytes
         }
-        return output.toString();
     }
 
     /**
-     * Return a list of {@link Earthquake} objects that has been built up from
-     * parsing a JSON response.
+     * Decode the {@link InputStream} as it arrives with the given decoder, and emit every
+     * {@link Earthquake} to the listener.
+     *
+     * @return number of earthquakes read from the stream
      */
-    private static ArrayList<Earthquake> extractFeatureFromJson(String jsonResponse) {
-        // If JSON response has no content e.g. it is empty or null, return early
-        if (TextUtils.isEmpty(jsonResponse)) {
-            return null;
-        }
-
-        // Create an empty ArrayList that we can start adding earthquakes to
-        ArrayList<Earthquake> earthquakes = new ArrayList<>();
-
-        // Try to parse the SAMPLE_JSON_RESPONSE. If there's a problem with the way the JSON
-        // is formatted, a JSONException exception object will be thrown.
-        // Catch the exception so the app doesn't crash, and print the error message to the logs.
-        try {
-
-            // Get root JSON object
-            JSONObject root = new JSONObject(jsonResponse);
-
-            // Extract "features" JSONArray to extract properties JSONObjects of each earthquake
-            JSONArray featuresArray = root.getJSONArray("features");
-
-            // Find the size of features array and loop through each feature in the array
-            int numOfEarthquakes = featuresArray.length();
-            for (int i = 0; i < numOfEarthquakes; i++) {
-                // Extract "properties" JSONObject to extract earthquake information
-                JSONObject feature = (JSONObject) featuresArray.get(i);
-                JSONObject properties = feature.getJSONObject("properties");
+    static int readFromStream(InputStream inputStream, EarthquakeFeedDecoder decoder,
+                              EarthquakeStreamParser.OnEarthquakeParsedListener listener)
+            throws IOException {
+        return readFromStream(inputStream, decoder, -1, listener);
+    }
 
-                // Extract desired earthquake information from properties JSONObject
-                Double magnitude = properties.getDouble(KEY_MAGNITUDE);
-                String location = properties.getString(KEY_LOCATION);
-                Long timeInMillisec = properties.getLong(KEY_TIME);
-                String website = properties.getString(KEY_WEBSITE);
+    /**
+     * Decode the {@link InputStream} with the given decoder, and emit every {@link Earthquake}
+     * to the listener. GeoJSON bodies which are known to be large are read as a whole and
+     * decoded on several cores if a parallel decoder is installed, all others are decoded as
+     * they arrive, so the first rows can be shown early and memory stays bounded.
+     *
+     * @param bodyLength length of the decompressed body in bytes, -1 if unknown
+     * @return number of earthquakes read from the stream
+     */
+    static int readFromStream(InputStream inputStream, EarthquakeFeedDecoder decoder, long bodyLength,
+                              EarthquakeStreamParser.OnEarthquakeParsedListener listener)
+            throws IOException {
+        return readFromStream(inputStream, decoder, bodyLength, listener, null);
+    }
 
-                // Create an earthquake object than add it to the ArrayList of earthquakes
-                Earthquake earthquake = new Earthquake(magnitude, location, timeInMillisec, website);
-                earthquakes.add(earthquake);
+    /**
+     * Like {@link #readFromStream(InputStream, EarthquakeFeedDecoder, long,
+     * EarthquakeStreamParser.OnEarthquakeParsedListener)}, but a body decoded on several cores
+     * also stops between two chunks once the given signal is canceled.
+     *
+     * @param signal cancels decoding, may be null
+     */
+    static int readFromStream(InputStream inputStream, EarthquakeFeedDecoder decoder, long bodyLength,
+                              EarthquakeStreamParser.OnEarthquakeParsedListener listener,
+                              final CancellationSignal signal) throws IOException {
+        if (inputStream == null) {
+            return 0;
+        }
+        long start = Metrics.startTimer();
+        ParallelGeoJsonFeedDecoder parallelDecoder = GeoJsonFeedDecoder.FORMAT.equals(decoder.getFormat())
+                ? EarthquakeFeedDecoders.forLargeGeoJson(bodyLength)
+                : null;
+        int count;
+        if (parallelDecoder != null) {
+            ParallelGeoJsonFeedDecoder.Cancellation cancellation = null;
+            if (signal != null) {
+                cancellation = new ParallelGeoJsonFeedDecoder.Cancellation() {
+                    @Override
+                    public boolean isCanceled() {
+                        return signal.isCanceled();
+                    }
+                };
             }
-
-        } catch (JSONException e) {
-            // If an error is thrown when executing any of the above statements in the "try" block,
-            // catch the exception here, so the app doesn't crash. Print a log message
-            // with the message from the exception.
-            Log.e("QueryUtils", "Problem parsing the earthquake JSON results", e);
+            count = parallelDecoder.decode(inputStream, bodyLength, listener, cancellation);
+        } else {
+            count = decoder.decode(inputStream, listener);
         }
-
-        // Return the list of earthquakes
-        return earthquakes;
+        if (Metrics.isEnabled()) {
+            long elapsedUs = Math.max(1, (System.nanoTime() - start) / 1000);
+            Metrics.record("parse.feed_us", elapsedUs);
+            Metrics.record("parse." + decoder.getFormat() + "_us", elapsedUs);
+            Metrics.record("parse.events", count);
+            Metrics.record("parse.events_per_sec", count * 1000000L / elapsedUs);
+        }
+        return count;
     }
 
 }
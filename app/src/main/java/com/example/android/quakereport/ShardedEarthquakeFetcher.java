@@ -0,0 +1,462 @@
+package com.example.android.quakereport;
+
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetches large USGS queries as several time windows in parallel.
+ * <p>
+ * The query's time range is split into equally long, disjoint "starttime"/"endtime" shards.
+ * The events of every shard are counted first with the USGS "count" method, and each shard
+ * gets a "limit" of its own, so the shards together download little more than the query's
+ * limit: if the query matches no more events than its limit, every shard is fetched whole,
+ * without a limit; if it is ordered by time, the shards are walked in that order and each
+ * gets what is left of the limit, up to its count plus {@link #SHARD_LIMIT_MARGIN}. Otherwise
+ * the top events by magnitude could come from any shard, each would need the whole limit, and
+ * the query is fetched in one piece instead. Events published between the count and the
+ * download are thus still fetched, and the results are cut to the query's limit.
+ * <p>
+ * The shards are downloaded and parsed concurrently on a bounded thread pool. Shards of a
+ * query ordered by time are handed to the listener in that order, each as soon as it and the
+ * shards before it are done; shards of a query ordered by magnitude are merged once all of
+ * them are done.
+ */
+public final class ShardedEarthquakeFetcher {
+
+    private static final String LOG_TAG = ShardedEarthquakeFetcher.class.getSimpleName();
+
+    /**
+     * USGS query parameters used for sharding
+     */
+    private static final String PARAM_START_TIME = "starttime";
+    private static final String PARAM_END_TIME = "endtime";
+    private static final String PARAM_ORDER_BY = "orderby";
+    private static final String PARAM_LIMIT = "limit";
+
+    /**
+     * Values of the "orderby" parameter
+     */
+    private static final String ORDER_BY_TIME_ASC = "time-asc";
+    private static final String ORDER_BY_MAGNITUDE = "magnitude";
+    private static final String ORDER_BY_MAGNITUDE_ASC = "magnitude-asc";
+
+    /**
+     * Queries with a smaller "limit" are fetched in one piece
+     */
+    public static final int SHARDING_THRESHOLD = 1000;
+
+    /**
+     * Events a shard fetched up to its count may download beyond it, for the events published
+     * (or revised into its window) between the count and the download
+     */
+    static final int SHARD_LIMIT_MARGIN = 50;
+
+    /**
+     * Shard limit which leaves the "limit" parameter out, fetching the whole window
+     */
+    static final int NO_LIMIT = -1;
+
+    /**
+     * USGS returns the events of the last 30 days unless a start time is given
+     */
+    private static final long DEFAULT_WINDOW_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Upper bound of shards downloaded at the same time
+     */
+    private static final int MAX_PARALLEL_SHARDS =
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Pool shared by all sharded fetches
+     */
+    private static final ExecutorService sExecutor = Executors.newFixedThreadPool(MAX_PARALLEL_SHARDS,
+            new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "EarthquakeShard #" + mCount.incrementAndGet());
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+
+    /**
+     * This class is only meant to hold static methods.
+     */
+    private ShardedEarthquakeFetcher() {
+
+    }
+
+    /**
+     * Returns true if the query is large enough for sharding to pay off.
+     */
+    public static boolean isWorthSharding(String requestUrl) {
+        String limit = Uri.parse(requestUrl).getQueryParameter(PARAM_LIMIT);
+        try {
+            return limit != null && Integer.parseInt(limit) >= SHARDING_THRESHOLD;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Fetches the query as {@link #MAX_PARALLEL_SHARDS} time windows in parallel.
+     *
+     * @return the earthquakes in "orderby" order, or null if the fetch failed
+     */
+    public static List<Earthquake> fetch(String requestUrl) {
+        return fetch(requestUrl, (CancellationSignal) null);
+    }
+
+    /**
+     * Fetches the query as {@link #MAX_PARALLEL_SHARDS} time windows in parallel.
+     *
+     * @param signal cancels all shards, may be null
+     * @return the earthquakes in "orderby" order, or null if the fetch failed
+     * @throws OperationCanceledException if the signal was canceled
+     */
+    public static List<Earthquake> fetch(String requestUrl, CancellationSignal signal) {
+        final List<Earthquake> earthquakes = new ArrayList<>();
+        boolean succeeded = fetch(requestUrl, new EarthquakeStreamParser.OnEarthquakeParsedListener() {
+            @Override
+            public void onEarthquakeParsed(Earthquake earthquake) {
+                earthquakes.add(earthquake);
+            }
+        }, signal);
+        return succeeded ? earthquakes : null;
+    }
+
+    /**
+     * Fetches the query as {@link #MAX_PARALLEL_SHARDS} time windows in parallel and hands the
+     * earthquakes to the listener in "orderby" order, on the calling thread.
+     *
+     * @param signal cancels all shards, may be null
+     * @return true if all earthquakes were received, false if the fetch failed
+     * @throws OperationCanceledException if the signal was canceled
+     */
+    public static boolean fetch(String requestUrl, EarthquakeStreamParser.OnEarthquakeParsedListener listener,
+                                CancellationSignal signal) {
+        return fetch(requestUrl, MAX_PARALLEL_SHARDS, listener, signal);
+    }
+
+    /**
+     * Fetches the query as the given number of time windows in parallel and hands the
+     * earthquakes to the listener in "orderby" order, on the calling thread.
+     *
+     * @param signal cancels all shards, may be null
+     * @return true if all earthquakes were received, false if the fetch failed
+     * @throws OperationCanceledException if the signal was canceled
+     */
+    public static boolean fetch(String requestUrl, int shardCount,
+                                EarthquakeStreamParser.OnEarthquakeParsedListener listener,
+                                CancellationSignal signal) {
+        Uri uri = Uri.parse(requestUrl);
+        long endTime = QueryUtils.parseQueryTime(uri.getQueryParameter(PARAM_END_TIME));
+        if (endTime < 0) {
+            endTime = System.currentTimeMillis();
+        }
+        long startTime = QueryUtils.parseQueryTime(uri.getQueryParameter(PARAM_START_TIME));
+        if (startTime < 0) {
+            startTime = endTime - DEFAULT_WINDOW_MILLIS;
+        }
+        if (shardCount < 2 || endTime <= startTime) {
+            return QueryUtils.fetchEarthquakeData(requestUrl, listener, signal);
+        }
+
+        // Every shard has a signal of its own, as a signal only takes one listener
+        final List<CancellationSignal> shardSignals = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            shardSignals.add(new CancellationSignal());
+        }
+        if (signal != null) {
+            signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    for (CancellationSignal shardSignal : shardSignals) {
+                        shardSignal.cancel();
+                    }
+                }
+            });
+        }
+        try {
+            return fetchShards(requestUrl, uri, startTime, endTime, listener, shardSignals);
+        } finally {
+            if (signal != null) {
+                signal.setOnCancelListener(null);
+                signal.throwIfCanceled();
+            }
+        }
+    }
+
+    /**
+     * Counts the time range as one shard per signal, then fetches the shards with the limits
+     * planned from the counts, or the whole query if sharding would download more than it.
+     */
+    private static boolean fetchShards(String requestUrl, Uri uri, long startTime, long endTime,
+                                       EarthquakeStreamParser.OnEarthquakeParsedListener listener,
+                                       List<CancellationSignal> shardSignals) {
+        String orderBy = uri.getQueryParameter(PARAM_ORDER_BY);
+        boolean orderedByTime = !ORDER_BY_MAGNITUDE.equals(orderBy) && !ORDER_BY_MAGNITUDE_ASC.equals(orderBy);
+        int limit = Integer.MAX_VALUE;
+        String limitParameter = uri.getQueryParameter(PARAM_LIMIT);
+        if (limitParameter != null) {
+            try {
+                limit = Integer.parseInt(limitParameter);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+
+        // Disjoint time windows, listed in the order the query hands out their events
+        List<String> shardUrls = new ArrayList<>(shardSignals.size());
+        // Both ends of a window are included, so the range spans one millisecond more than its length
+        long shardLength = (endTime - startTime + shardSignals.size()) / shardSignals.size();
+        for (long shardStart = startTime; shardStart <= endTime; shardStart += shardLength) {
+            long shardEnd = Math.min(endTime, shardStart + shardLength - 1);
+            String shardUrl = QueryUtils.buildUponWithout(requestUrl, PARAM_START_TIME, PARAM_END_TIME)
+                    .appendQueryParameter(PARAM_START_TIME, QueryUtils.formatQueryTime(shardStart))
+                    .appendQueryParameter(PARAM_END_TIME, QueryUtils.formatQueryTime(shardEnd))
+                    .toString();
+            if (orderedByTime && !ORDER_BY_TIME_ASC.equals(orderBy)) {
+                shardUrls.add(0, shardUrl);
+            } else {
+                shardUrls.add(shardUrl);
+            }
+        }
+        int shardCount = shardUrls.size();
+
+        // Count the shards in parallel, so the limits can be sized before any download
+        List<Future<Integer>> counts = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            final String shardUrl = shardUrls.get(i);
+            final CancellationSignal shardSignal = shardSignals.get(i);
+            counts.add(sExecutor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return QueryUtils.fetchEarthquakeCount(shardUrl, shardSignal);
+                }
+            }));
+        }
+        int[] shardLimits = null;
+        try {
+            int[] shardCounts = new int[shardCount];
+            boolean counted = true;
+            for (int i = 0; i < shardCount && counted; i++) {
+                shardCounts[i] = counts.get(i).get();
+                counted = shardCounts[i] >= 0;
+            }
+            if (counted) {
+                shardLimits = planLimits(shardCounts, limit, orderedByTime);
+            }
+        } catch (InterruptedException e) {
+            cancelAll(counts, shardSignals);
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            Log.e(LOG_TAG, "Problem counting a shard", e);
+        }
+        if (shardLimits == null) {
+            // The first shard's signal, which is canceled along with the query, is kept for it
+            cancelAll(counts, shardSignals.subList(1, shardSignals.size()));
+            Log.i(LOG_TAG, "Fetching " + requestUrl + " in one piece");
+            return QueryUtils.fetchEarthquakeData(requestUrl, listener, shardSignals.get(0));
+        }
+
+        // Submit one download per window that contributes, cached windows would only evict others
+        List<Future<List<Earthquake>>> shards = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            if (shardLimits[i] == 0) {
+                shards.add(null);
+                continue;
+            }
+            Uri.Builder shardUri = QueryUtils.buildUponWithout(shardUrls.get(i), PARAM_LIMIT);
+            if (shardLimits[i] != NO_LIMIT) {
+                shardUri.appendQueryParameter(PARAM_LIMIT, String.valueOf(shardLimits[i]));
+            }
+            final String shardUrl = shardUri.toString();
+            final CancellationSignal shardSignal = shardSignals.get(i);
+            shards.add(sExecutor.submit(new Callable<List<Earthquake>>() {
+                @Override
+                public List<Earthquake> call() {
+                    final List<Earthquake> earthquakes = new ArrayList<>();
+                    boolean succeeded = QueryUtils.fetchEarthquakeData(shardUrl,
+                            new EarthquakeStreamParser.OnEarthquakeParsedListener() {
+                                @Override
+                                public void onEarthquakeParsed(Earthquake earthquake) {
+                                    earthquakes.add(earthquake);
+                                }
+                            }, shardSignal, false);
+                    return succeeded ? earthquakes : null;
+                }
+            }));
+        }
+
+        // Wait for all of them, a missing shard would leave a gap in the results
+        List<List<Earthquake>> results = new ArrayList<>(shardCount);
+        int received = 0;
+        try {
+            for (Future<List<Earthquake>> shard : shards) {
+                if (shard == null) {
+                    continue;
+                }
+                List<Earthquake> result = shard.get();
+                if (result == null) {
+                    cancelAll(shards, shardSignals);
+                    return false;
+                }
+                if (orderedByTime) {
+                    // The windows follow each other in query order, so they are done in order
+                    for (int i = 0; i < result.size() && received < limit; i++) {
+                        listener.onEarthquakeParsed(result.get(i));
+                        received++;
+                    }
+                    if (received == limit) {
+                        // The margins added up to the limit, the later windows are not needed
+                        cancelAll(shards, shardSignals);
+                        break;
+                    }
+                } else {
+                    results.add(result);
+                }
+            }
+        } catch (InterruptedException e) {
+            cancelAll(shards, shardSignals);
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            Log.e(LOG_TAG, "Problem fetching a shard", e);
+            cancelAll(shards, shardSignals);
+            return false;
+        }
+
+        if (!orderedByTime) {
+            List<Earthquake> merged = merge(results, comparatorFor(orderBy), limit);
+            for (Earthquake earthquake : merged) {
+                listener.onEarthquakeParsed(earthquake);
+            }
+            received = merged.size();
+        }
+        Log.i(LOG_TAG, "Fetched " + received + " earthquakes from " + shardCount + " shards");
+        return true;
+    }
+
+    /**
+     * Returns the "limit" of every shard, given their counts in query order, so that the shards
+     * together hand out the query's results even if events were published since the count:
+     * {@link #NO_LIMIT} for a shard fetched whole, 0 for a shard not fetched at all. Returns
+     * null if that takes shards which together return more than the query's limit.
+     */
+    static int[] planLimits(int[] counts, int limit, boolean orderedByTime) {
+        long total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        int[] limits = new int[counts.length];
+        if (total <= limit) {
+            // Every shard contributes all of its events, however many there are by now
+            Arrays.fill(limits, NO_LIMIT);
+            return limits;
+        }
+        if (!orderedByTime) {
+            return null;
+        }
+        int remaining = limit;
+        for (int i = 0; i < counts.length; i++) {
+            // No shard is asked for more than what is left of the limit after the ones before it
+            limits[i] = (int) Math.min((long) counts[i] + SHARD_LIMIT_MARGIN, remaining);
+            remaining -= Math.min(counts[i], remaining);
+        }
+        return limits;
+    }
+
+    /**
+     * Merges lists which are each sorted by the comparator into one sorted list of at most
+     * limit earthquakes. Events found in two shards (on a shared boundary) are only kept once.
+     */
+    private static List<Earthquake> merge(final List<List<Earthquake>> lists,
+                                          final Comparator<Earthquake> comparator, int limit) {
+        // Heap of {list index, position in list}, ordered by the earthquake at that position
+        PriorityQueue<int[]> heads = new PriorityQueue<>(Math.max(1, lists.size()), new Comparator<int[]>() {
+            @Override
+            public int compare(int[] lhs, int[] rhs) {
+                return comparator.compare(lists.get(lhs[0]).get(lhs[1]), lists.get(rhs[0]).get(rhs[1]));
+            }
+        });
+        for (int i = 0; i < lists.size(); i++) {
+            if (!lists.get(i).isEmpty()) {
+                heads.add(new int[]{i, 0});
+            }
+        }
+
+        List<Earthquake> merged = new ArrayList<>();
+        Set<String> ids = new HashSet<>();
+        while (!heads.isEmpty() && merged.size() < limit) {
+            int[] head = heads.poll();
+            List<Earthquake> list = lists.get(head[0]);
+            Earthquake earthquake = list.get(head[1]);
+            if (earthquake.getId() == null || ids.add(earthquake.getId())) {
+                merged.add(earthquake);
+            }
+            if (++head[1] < list.size()) {
+                heads.add(head);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Returns the comparator matching the USGS "orderby" value (default: newest first).
+     */
+    private static Comparator<Earthquake> comparatorFor(String orderBy) {
+        if (ORDER_BY_MAGNITUDE.equals(orderBy) || ORDER_BY_MAGNITUDE_ASC.equals(orderBy)) {
+            final int direction = ORDER_BY_MAGNITUDE.equals(orderBy) ? -1 : 1;
+            return new Comparator<Earthquake>() {
+                @Override
+                public int compare(Earthquake lhs, Earthquake rhs) {
+                    return direction * Double.compare(lhs.getMagnitude(), rhs.getMagnitude());
+                }
+            };
+        }
+        final int direction = ORDER_BY_TIME_ASC.equals(orderBy) ? 1 : -1;
+        return new Comparator<Earthquake>() {
+            @Override
+            public int compare(Earthquake lhs, Earthquake rhs) {
+                long left = lhs.getTimeInMillisec();
+                long right = rhs.getTimeInMillisec();
+                return direction * (left < right ? -1 : (left == right ? 0 : 1));
+            }
+        };
+    }
+
+    /**
+     * Stops the remaining shards, aborting the downloads in progress.
+     */
+    private static void cancelAll(List<? extends Future<?>> shards, List<CancellationSignal> shardSignals) {
+        for (Future<?> shard : shards) {
+            if (shard != null) {
+                shard.cancel(true);
+            }
+        }
+        for (CancellationSignal shardSignal : shardSignals) {
+            shardSignal.cancel();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.example.android.quakereport.data;
+
+import android.provider.BaseColumns;
+
+/**
+ * API Contract for the earthquakes stored on the device.
+ */
+public final class EarthquakeContract {
+
+    /**
+     * To prevent someone from accidentally instantiating the contract class,
+     * give it an empty constructor.
+     */
+    private EarthquakeContract() {
+
+    }
+
+    /**
+     * Inner class that defines constant values for the earthquakes database table.
+     * Each entry in the table represents a single earthquake.
+     */
+    public static final class EarthquakeEntry implements BaseColumns {
+
+        /**
+         * Name of database table for earthquakes
+         */
+        public static final String TABLE_NAME = "earthquakes";
+
+        /**
+         * Unique ID number for the earthquake (only for use in the database table).
+         * <p>
+         * Type: INTEGER
+         */
+        public static final String _ID = BaseColumns._ID;
+
+        /**
+         * Stable USGS event id of the earthquake, used to merge updates into the store.
+         * <p>
+         * Type: TEXT
+         */
+        public static final String COLUMN_EVENT_ID = "event_id";
+
+        /**
+         * Magnitude of the earthquake.
+         * <p>
+         * Type: REAL
+         */
+        public static final String COLUMN_MAGNITUDE = "magnitude";
+
+        /**
+         * Location description of the earthquake, as given by USGS.
+         * <p>
+         * Type: TEXT
+         */
+        public static final String COLUMN_LOCATION = "location";
+
+        /**
+         * Time of the earthquake in milliseconds since the epoch.
+         * <p>
+         * Type: INTEGER
+         */
+        public static final String COLUMN_TIME = "time";
+
+        /**
+         * USGS web page of the earthquake.
+         * <p>
+         * Type: TEXT
+         */
+        public static final String COLUMN_URL = "url";
+
+        /**
+         * Time the earthquake was last updated by USGS, in milliseconds since the epoch.
+         * <p>
+         * Type: INTEGER
+         */
+        public static final String COLUMN_UPDATED = "updated";
+
+        /**
+         * Longitude of the epicenter in degrees, null if unknown.
+         * <p>
+         * Type: REAL
+         */
+        public static final String COLUMN_LONGITUDE = "longitude";
+
+        /**
+         * Latitude of the epicenter in degrees, null if unknown.
+         * <p>
+         * Type: REAL
+         */
+        public static final String COLUMN_LATITUDE = "latitude";
+
+        /**
+         * Depth of the hypocenter in kilometers, null if unknown.
+         * <p>
+         * Type: REAL
+         */
+        public static final String COLUMN_DEPTH = "depth";
+    }
+}
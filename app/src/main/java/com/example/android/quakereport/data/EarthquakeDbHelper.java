@@ -0,0 +1,68 @@
+package com.example.android.quakereport.data;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import com.example.android.quakereport.data.EarthquakeContract.EarthquakeEntry;
+
+/**
+ * Database helper for the earthquake store. Manages database creation and version management.
+ */
+public class EarthquakeDbHelper extends SQLiteOpenHelper {
+
+    /**
+     * Name of the database file
+     */
+    private static final String DATABASE_NAME = "earthquakes.db";
+
+    /**
+     * Database version. If you change the database schema, you must increment the database version.
+     */
+    private static final int DATABASE_VERSION = 3;
+
+    /**
+     * Constructs a new instance of {@link EarthquakeDbHelper}.
+     *
+     * @param context of the app
+     */
+    public EarthquakeDbHelper(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    /**
+     * This is called when the database is created for the first time.
+     */
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        // Create a String that contains the SQL statement to create the earthquakes table
+        String SQL_CREATE_EARTHQUAKES_TABLE = "CREATE TABLE " + EarthquakeEntry.TABLE_NAME + " ("
+                + EarthquakeEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + EarthquakeEntry.COLUMN_EVENT_ID + " TEXT NOT NULL UNIQUE, "
+                + EarthquakeEntry.COLUMN_MAGNITUDE + " REAL NOT NULL, "
+                + EarthquakeEntry.COLUMN_LOCATION + " TEXT, "
+                + EarthquakeEntry.COLUMN_TIME + " INTEGER NOT NULL, "
+                + EarthquakeEntry.COLUMN_URL + " TEXT, "
+                + EarthquakeEntry.COLUMN_UPDATED + " INTEGER NOT NULL DEFAULT 0, "
+                + EarthquakeEntry.COLUMN_LONGITUDE + " REAL, "
+                + EarthquakeEntry.COLUMN_LATITUDE + " REAL, "
+                + EarthquakeEntry.COLUMN_DEPTH + " REAL);";
+        db.execSQL(SQL_CREATE_EARTHQUAKES_TABLE);
+
+        // Index the columns the list can be filtered and ordered by
+        db.execSQL("CREATE INDEX " + EarthquakeEntry.TABLE_NAME + "_magnitude_idx ON "
+                + EarthquakeEntry.TABLE_NAME + " (" + EarthquakeEntry.COLUMN_MAGNITUDE + ");");
+        db.execSQL("CREATE INDEX " + EarthquakeEntry.TABLE_NAME + "_time_idx ON "
+                + EarthquakeEntry.TABLE_NAME + " (" + EarthquakeEntry.COLUMN_TIME + ");");
+    }
+
+    /**
+     * This is called when the database needs to be upgraded.
+     */
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // The store only caches data that can be downloaded again, so start over
+        db.execSQL("DROP TABLE IF EXISTS " + EarthquakeEntry.TABLE_NAME);
+        onCreate(db);
+    }
+}
@@ -0,0 +1,190 @@
+package com.example.android.quakereport.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.util.Log;
+
+import com.example.android.quakereport.Earthquake;
+import com.example.android.quakereport.EarthquakeTable;
+import com.example.android.quakereport.data.EarthquakeContract.EarthquakeEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * On-device store of the earthquakes received from USGS, so the last results can be shown
+ * right away on the next start, before (or without) a network round trip.
+ */
+public final class EarthquakeStore {
+
+    private static final String LOG_TAG = EarthquakeStore.class.getSimpleName();
+
+    /**
+     * USGS query parameters which are applied to the stored earthquakes too
+     */
+    private static final String PARAM_MIN_MAGNITUDE = "minmag";
+    private static final String PARAM_ORDER_BY = "orderby";
+    private static final String PARAM_LIMIT = "limit";
+    private static final String PARAM_START_TIME = "starttime";
+    private static final String ORDER_BY_TIME = "time";
+
+    /**
+     * USGS only returns events of the last 30 days unless a start time is given
+     */
+    private static final long DEFAULT_WINDOW_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+    private static EarthquakeStore sInstance;
+
+    private final EarthquakeDbHelper mDbHelper;
+
+    private EarthquakeStore(Context context) {
+        mDbHelper = new EarthquakeDbHelper(context.getApplicationContext());
+    }
+
+    /**
+     * Returns the store shared by the whole app.
+     */
+    public static synchronized EarthquakeStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new EarthquakeStore(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the stored earthquakes which match the filter and order of the given
+     * USGS query URL, i.e. its "minmag", "orderby" and "limit" parameters.
+     * Like USGS, only events of the last 30 days are returned if the URL has no "starttime".
+     */
+    public EarthquakeTable queryForRequest(String requestUrl) {
+        Uri uri = Uri.parse(requestUrl);
+
+        StringBuilder selection = new StringBuilder();
+        List<String> selectionArgs = new ArrayList<>();
+        String minMagnitude = uri.getQueryParameter(PARAM_MIN_MAGNITUDE);
+        if (minMagnitude != null && !minMagnitude.isEmpty()) {
+            selection.append(EarthquakeEntry.COLUMN_MAGNITUDE).append(" >= ?");
+            selectionArgs.add(minMagnitude);
+        }
+        if (uri.getQueryParameter(PARAM_START_TIME) == null) {
+            if (selection.length() > 0) {
+                selection.append(" AND ");
+            }
+            selection.append(EarthquakeEntry.COLUMN_TIME).append(" >= ?");
+            selectionArgs.add(String.valueOf(System.currentTimeMillis() - DEFAULT_WINDOW_MILLIS));
+        }
+
+        // USGS orders by descending magnitude or time
+        String orderBy = ORDER_BY_TIME.equals(uri.getQueryParameter(PARAM_ORDER_BY))
+                ? EarthquakeEntry.COLUMN_TIME + " DESC"
+                : EarthquakeEntry.COLUMN_MAGNITUDE + " DESC";
+
+        String limit = uri.getQueryParameter(PARAM_LIMIT);
+        if (limit != null && !limit.matches("\\d+")) {
+            limit = null;
+        }
+
+        return query(selection.length() > 0 ? selection.toString() : null,
+                selectionArgs.toArray(new String[selectionArgs.size()]), orderBy, limit);
+    }
+
+    /**
+     * Writes the given earthquakes to the store, replacing stored copies of the same events
+     * (matched by event id). Events reported as deleted are removed from the store.
+     */
+    public void save(List<Earthquake> earthquakes) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (Earthquake earthquake : earthquakes) {
+                if (earthquake.getId() == null) {
+                    continue;
+                }
+                if (earthquake.isDeleted()) {
+                    db.delete(EarthquakeEntry.TABLE_NAME, EarthquakeEntry.COLUMN_EVENT_ID + " = ?",
+                            new String[]{earthquake.getId()});
+                    continue;
+                }
+                values.clear();
+                values.put(EarthquakeEntry.COLUMN_EVENT_ID, earthquake.getId());
+                values.put(EarthquakeEntry.COLUMN_MAGNITUDE, earthquake.getMagnitude());
+                values.put(EarthquakeEntry.COLUMN_LOCATION, earthquake.getLocation());
+                values.put(EarthquakeEntry.COLUMN_TIME, earthquake.getTimeInMillisec());
+                values.put(EarthquakeEntry.COLUMN_URL, earthquake.getUrl());
+                values.put(EarthquakeEntry.COLUMN_UPDATED, earthquake.getUpdatedInMillisec());
+                putCoordinate(values, EarthquakeEntry.COLUMN_LONGITUDE, earthquake.getLongitude());
+                putCoordinate(values, EarthquakeEntry.COLUMN_LATITUDE, earthquake.getLatitude());
+                putCoordinate(values, EarthquakeEntry.COLUMN_DEPTH, earthquake.getDepth());
+                db.insertWithOnConflict(EarthquakeEntry.TABLE_NAME, null, values,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Log.i(LOG_TAG, "Stored " + earthquakes.size() + " earthquakes");
+    }
+
+    private EarthquakeTable query(String selection, String[] selectionArgs, String orderBy, String limit) {
+        String[] projection = {
+                EarthquakeEntry.COLUMN_EVENT_ID,
+                EarthquakeEntry.COLUMN_MAGNITUDE,
+                EarthquakeEntry.COLUMN_LOCATION,
+                EarthquakeEntry.COLUMN_TIME,
+                EarthquakeEntry.COLUMN_URL,
+                EarthquakeEntry.COLUMN_UPDATED,
+                EarthquakeEntry.COLUMN_LONGITUDE,
+                EarthquakeEntry.COLUMN_LATITUDE,
+                EarthquakeEntry.COLUMN_DEPTH};
+
+        EarthquakeTable earthquakes = new EarthquakeTable();
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        Cursor cursor = db.query(EarthquakeEntry.TABLE_NAME, projection, selection, selectionArgs,
+                null, null, orderBy, limit);
+        try {
+            int eventIdColumnIndex = cursor.getColumnIndex(EarthquakeEntry.COLUMN_EVENT_ID);
+            int magnitudeColumnIndex = cursor.getColumnIndex(EarthquakeEntry.COLUMN_MAGNITUDE);
+            int locationColumnIndex = cursor.getColumnIndex(EarthquakeEntry.COLUMN_LOCATION);
+            int timeColumnIndex = cursor.getColumnIndex(EarthquakeEntry.COLUMN_TIME);
+            int urlColumnIndex = cursor.getColumnIndex(EarthquakeEntry.COLUMN_URL);
+            int updatedColumnIndex = cursor.getColumnIndex(EarthquakeEntry.COLUMN_UPDATED);
+            int longitudeColumnIndex = cursor.getColumnIndex(EarthquakeEntry.COLUMN_LONGITUDE);
+            int latitudeColumnIndex = cursor.getColumnIndex(EarthquakeEntry.COLUMN_LATITUDE);
+            int depthColumnIndex = cursor.getColumnIndex(EarthquakeEntry.COLUMN_DEPTH);
+            while (cursor.moveToNext()) {
+                earthquakes.append(
+                        cursor.getString(eventIdColumnIndex),
+                        cursor.getDouble(magnitudeColumnIndex),
+                        cursor.getString(locationColumnIndex),
+                        cursor.getLong(timeColumnIndex),
+                        cursor.getString(urlColumnIndex),
+                        cursor.getLong(updatedColumnIndex),
+                        getCoordinate(cursor, longitudeColumnIndex),
+                        getCoordinate(cursor, latitudeColumnIndex),
+                        getCoordinate(cursor, depthColumnIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+        return earthquakes;
+    }
+
+    /**
+     * Stores unknown ({@link Double#NaN}) coordinates as null.
+     */
+    private static void putCoordinate(ContentValues values, String column, double value) {
+        if (Double.isNaN(value)) {
+            values.putNull(column);
+        } else {
+            values.put(column, value);
+        }
+    }
+
+    private static double getCoordinate(Cursor cursor, int columnIndex) {
+        return cursor.isNull(columnIndex) ? Double.NaN : cursor.getDouble(columnIndex);
+    }
+}
@@ -0,0 +1,46 @@
+package com.example.android.quakereport;
+
+import org.junit.Test;
+
+import static com.example.android.quakereport.ShardedEarthquakeFetcher.NO_LIMIT;
+import static com.example.android.quakereport.ShardedEarthquakeFetcher.SHARD_LIMIT_MARGIN;
+import static com.example.android.quakereport.ShardedEarthquakeFetcher.planLimits;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+public class ShardedEarthquakeFetcherTest {
+
+    @Test
+    public void fetchesEveryShardWholeWhenTheQueryFitsTheLimit() {
+        int[] whole = {NO_LIMIT, NO_LIMIT, NO_LIMIT, NO_LIMIT};
+        assertArrayEquals(whole, planLimits(new int[]{300, 0, 250, 450}, 1000, true));
+        assertArrayEquals(whole, planLimits(new int[]{300, 0, 250, 450}, 1000, false));
+        assertArrayEquals(whole, planLimits(new int[]{0, 0, 0, 0}, 1000, true));
+    }
+
+    @Test
+    public void fetchesMagnitudeOrderInOnePieceBeyondTheLimit() {
+        assertNull(planLimits(new int[]{300, 300, 300, 300}, 1000, false));
+        assertNull(planLimits(new int[]{1001, 0}, 1000, false));
+    }
+
+    @Test
+    public void walksTimeOrderedShardsUpToTheLimit() {
+        int margin = SHARD_LIMIT_MARGIN;
+        assertArrayEquals(new int[]{300 + margin, 300 + margin, 300 + margin, 100},
+                planLimits(new int[]{300, 300, 300, 300}, 1000, true));
+        assertArrayEquals(new int[]{1000, 0, 0, 0},
+                planLimits(new int[]{1200, 10, 10, 10}, 1000, true));
+        assertArrayEquals(new int[]{margin, 600 + margin, 400, 0},
+                planLimits(new int[]{0, 600, 500, 700}, 1000, true));
+    }
+
+    @Test
+    public void neverAsksAShardForMoreThanIsLeftOfTheLimit() {
+        // The margins are cut to what the shards before leave of the limit
+        assertArrayEquals(new int[]{1000, 10, 5},
+                planLimits(new int[]{990, 5, 100}, 1000, true));
+        assertArrayEquals(new int[]{1000, 0},
+                planLimits(new int[]{1000, 1}, 1000, true));
+    }
+}
@@ -0,0 +1,416 @@
+package com.example.android.quakereport;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Command-line tool which reads earthquake history from local USGS feed files and writes it as
+ * a snapshot in the app's storage format (see {@link EarthquakeSnapshotFormat}).
+ * <p>
+ * Files are decoded in parallel, one file per task on a pool with a thread per core, and large
+ * GeoJSON files are in addition split across a fork-join pool by the
+ * {@link ParallelGeoJsonFeedDecoder}. They are merged in the order they were given: an event
+ * which shows up in several files is kept in the version updated last, and dropped if that
+ * version is deleted. The merged events are then selected like the USGS service answers the
+ * query: events below its minimum magnitude are left out, so are events outside its
+ * "starttime" and "endtime", or older than 30 days if it has neither, and the rest are ordered
+ * by time or magnitude, newest or largest first, and cut to its limit.
+ * <pre>
+ * EarthquakeBackfill [-threads n] -query url output input...
+ * </pre>
+ * Inputs are GeoJSON or CSV files, or directories which are searched for them. The snapshot is
+ * stored under the given query URL; the app only shows it for that query. Query URLs with
+ * parameters other than "format", "limit", "minmag", "orderby", "starttime" and "endtime" are
+ * refused, since the snapshot couldn't honour them.
+ */
+public final class EarthquakeBackfill {
+
+    private static final String USAGE = "Usage: EarthquakeBackfill [-threads n] -query url output input...";
+
+    private static final String PARAM_FORMAT = "format";
+    private static final String PARAM_LIMIT = "limit";
+    private static final String PARAM_MIN_MAGNITUDE = "minmag";
+    private static final String PARAM_ORDER_BY = "orderby";
+    private static final String PARAM_START_TIME = "starttime";
+    private static final String PARAM_END_TIME = "endtime";
+    private static final String ORDER_BY_TIME = "time";
+    private static final String ORDER_BY_MAGNITUDE = "magnitude";
+
+    /**
+     * Time formats understood by USGS for time parameters, read in UTC
+     */
+    private static final String[] QUERY_TIME_FORMATS = {
+            "yyyy-MM-dd'T'HH:mm:ss.SSS",
+            "yyyy-MM-dd'T'HH:mm:ss",
+            "yyyy-MM-dd'T'HH:mm",
+            "yyyy-MM-dd"};
+
+    /**
+     * Span of a query without a start or end time, the same as the USGS service uses
+     */
+    private static final long DEFAULT_WINDOW_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Files decoded ahead of the one being merged, per thread, so that decoded files which
+     * can't be merged yet don't pile up in memory
+     */
+    private static final int FILES_AHEAD_PER_THREAD = 2;
+
+    /**
+     * Decoder of the GeoJSON files, which splits large files across its own pool and streams
+     * the others on the calling thread
+     */
+    private final ParallelGeoJsonFeedDecoder mGeoJsonDecoder;
+    private final int mThreads;
+
+    /**
+     * Constructs a new {@link EarthquakeBackfill} which decodes the given number of files, or
+     * chunks of a large file, at the same time.
+     */
+    public EarthquakeBackfill(int threads) {
+        mThreads = threads;
+        mGeoJsonDecoder = new ParallelGeoJsonFeedDecoder(threads, ParallelGeoJsonFeedDecoder.DEFAULT_MIN_PARALLEL_BYTES);
+    }
+
+    public static void main(String[] args) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        String requestUrl = null;
+        Query query;
+        int i = 0;
+        try {
+            for (; i < args.length && args[i].startsWith("-"); i++) {
+                if (args[i].equals("-threads") && i + 1 < args.length) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-query") && i + 1 < args.length) {
+                    requestUrl = args[++i];
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (requestUrl == null || threads < 1 || args.length - i < 2) {
+                throw new IllegalArgumentException(USAGE);
+            }
+            query = Query.parse(requestUrl);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+
+        File output = new File(args[i]);
+        List<File> inputs = new ArrayList<>();
+        for (String path : Arrays.copyOfRange(args, i + 1, args.length)) {
+            collectFeedFiles(new File(path), inputs);
+        }
+        try {
+            new EarthquakeBackfill(threads).run(inputs, output, requestUrl, query);
+        } catch (IOException e) {
+            System.err.println("Backfill failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Decodes the given feed files, merges them, selects the earthquakes the given query URL
+     * asks for and writes them to the given snapshot file, stored under that URL.
+     *
+     * @throws IllegalArgumentException if the query URL has parameters the backfill can't honour
+     */
+    public void run(List<File> inputs, File output, String requestUrl) throws IOException {
+        run(inputs, output, requestUrl, Query.parse(requestUrl));
+    }
+
+    private void run(List<File> inputs, File output, String requestUrl, Query query) throws IOException {
+        long start = System.nanoTime();
+        long bytes = 0;
+        for (File input : inputs) {
+            bytes += input.length();
+        }
+
+        // Each file is merged as it is decoded, so only the merged events are held at a time.
+        // Later files win over earlier ones with the same update time, like a later poll would
+        final Map<String, Earthquake> events = new HashMap<>();
+        final List<Earthquake> earthquakes = new ArrayList<>();
+        EarthquakeStreamParser.OnEarthquakeParsedListener merger = new EarthquakeStreamParser.OnEarthquakeParsedListener() {
+            @Override
+            public void onEarthquakeParsed(Earthquake earthquake) {
+                String id = earthquake.getId();
+                if (id == null) {
+                    if (!earthquake.isDeleted()) {
+                        earthquakes.add(earthquake);
+                    }
+                    return;
+                }
+                Earthquake known = events.get(id);
+                if (known == null || known.getUpdatedInMillisec() <= earthquake.getUpdatedInMillisec()) {
+                    events.put(id, earthquake);
+                }
+            }
+        };
+        int read = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+        try {
+            Deque<Future<List<Earthquake>>> pending = new ArrayDeque<>();
+            int submitted = 0;
+            for (File input : inputs) {
+                while (submitted < inputs.size() && pending.size() < FILES_AHEAD_PER_THREAD * mThreads) {
+                    pending.add(executor.submit(decodeTask(inputs.get(submitted++))));
+                }
+                List<Earthquake> file;
+                try {
+                    file = pending.remove().get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw new IOException("Problem decoding " + input + ": " + cause.getMessage(), cause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while decoding " + input);
+                }
+                read += file.size();
+                for (Earthquake earthquake : file) {
+                    merger.onEarthquakeParsed(earthquake);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        long decodedAt = System.nanoTime();
+
+        for (Earthquake earthquake : events.values()) {
+            if (!earthquake.isDeleted()) {
+                earthquakes.add(earthquake);
+            }
+        }
+        events.clear();
+        List<Earthquake> selected = query.select(earthquakes, System.currentTimeMillis());
+
+        long length = EarthquakeSnapshotFormat.write(output, requestUrl, EarthquakeTable.from(selected));
+        long end = System.nanoTime();
+        double decodeSeconds = (decodedAt - start) / 1e9;
+        System.out.println(String.format(Locale.US,
+                "Decoded %d earthquakes from %d files (%.1f MB) in %.2f s on %d threads, %.1f MB/s",
+                read, inputs.size(), bytes / 1e6, decodeSeconds, mThreads, bytes / 1e6 / decodeSeconds));
+        System.out.println(String.format(Locale.US, "Wrote %d of %d earthquakes to %s (%.1f MB) in %.2f s total",
+                selected.size(), earthquakes.size(), output, length / 1e6, (end - start) / 1e9));
+    }
+
+    /**
+     * Returns a task which decodes the given feed file by its extension.
+     */
+    private Callable<List<Earthquake>> decodeTask(final File input) {
+        return new Callable<List<Earthquake>>() {
+            @Override
+            public List<Earthquake> call() throws IOException {
+                final List<Earthquake> earthquakes = new ArrayList<>();
+                EarthquakeStreamParser.OnEarthquakeParsedListener listener =
+                        new EarthquakeStreamParser.OnEarthquakeParsedListener() {
+                            @Override
+                            public void onEarthquakeParsed(Earthquake earthquake) {
+                                earthquakes.add(earthquake);
+                            }
+                        };
+                InputStream in = new BufferedInputStream(new FileInputStream(input), 64 * 1024);
+                try {
+                    if (isCsv(input)) {
+                        new CsvFeedDecoder().decode(in, listener);
+                    } else {
+                        // Only files of at least the decoder's threshold are split, the length
+                        // also lets it read them into a buffer of their size in one go
+                        mGeoJsonDecoder.decode(in, input.length(), listener);
+                    }
+                } finally {
+                    in.close();
+                }
+                return earthquakes;
+            }
+        };
+    }
+
+    /**
+     * Adds the given file, or the feed files below the given directory in name order.
+     */
+    private static void collectFeedFiles(File file, List<File> files) {
+        if (!file.isDirectory()) {
+            files.add(file);
+            return;
+        }
+        File[] children = file.listFiles();
+        if (children == null) {
+            return;
+        }
+        Arrays.sort(children);
+        for (File child : children) {
+            String name = child.getName().toLowerCase(Locale.US);
+            if (child.isDirectory() || name.endsWith(".geojson") || name.endsWith(".json") || isCsv(child)) {
+                collectFeedFiles(child, files);
+            }
+        }
+    }
+
+    private static boolean isCsv(File file) {
+        return file.getName().toLowerCase(Locale.US).endsWith(".csv");
+    }
+
+    /**
+     * Selection of a query URL, evaluated like the app's store evaluates it.
+     */
+    private static final class Query {
+        final double minMagnitude;
+        final boolean orderByTime;
+        final int limit;
+
+        /**
+         * Bounds of the event times, both included, or Long.MIN_VALUE and Long.MAX_VALUE where
+         * the query doesn't give one
+         */
+        final long startTime;
+        final long endTime;
+
+        private Query(double minMagnitude, boolean orderByTime, int limit, long startTime, long endTime) {
+            this.minMagnitude = minMagnitude;
+            this.orderByTime = orderByTime;
+            this.limit = limit;
+            this.startTime = startTime;
+            this.endTime = endTime;
+        }
+
+        /**
+         * Returns the selection of the given query URL.
+         *
+         * @throws IllegalArgumentException if the URL has parameters or values the backfill
+         *                                  can't honour
+         */
+        static Query parse(String requestUrl) {
+            String rawQuery;
+            try {
+                rawQuery = new URI(requestUrl).getRawQuery();
+            } catch (URISyntaxException e) {
+                throw new IllegalArgumentException("Invalid query URL " + requestUrl);
+            }
+            double minMagnitude = Double.NEGATIVE_INFINITY;
+            String orderBy = ORDER_BY_TIME;
+            int limit = Integer.MAX_VALUE;
+            long startTime = Long.MIN_VALUE;
+            long endTime = Long.MAX_VALUE;
+            for (String parameter : rawQuery == null ? new String[0] : rawQuery.split("&")) {
+                if (parameter.isEmpty()) {
+                    continue;
+                }
+                int equals = parameter.indexOf('=');
+                String name = decodeComponent(equals < 0 ? parameter : parameter.substring(0, equals));
+                String value = equals < 0 ? "" : decodeComponent(parameter.substring(equals + 1));
+                try {
+                    if (name.equals(PARAM_FORMAT)) {
+                        continue;
+                    } else if (name.equals(PARAM_MIN_MAGNITUDE)) {
+                        if (!value.isEmpty()) {
+                            minMagnitude = Double.parseDouble(value);
+                        }
+                    } else if (name.equals(PARAM_ORDER_BY)) {
+                        if (!ORDER_BY_TIME.equals(value) && !ORDER_BY_MAGNITUDE.equals(value)) {
+                            throw new IllegalArgumentException("Unsupported orderby " + value);
+                        }
+                        orderBy = value;
+                    } else if (name.equals(PARAM_START_TIME)) {
+                        startTime = parseTime(name, value);
+                    } else if (name.equals(PARAM_END_TIME)) {
+                        endTime = parseTime(name, value);
+                    } else if (name.equals(PARAM_LIMIT)) {
+                        // The store ignores limits which aren't plain numbers
+                        if (value.matches("\\d+")) {
+                            limit = Integer.parseInt(value);
+                        }
+                    } else {
+                        throw new IllegalArgumentException("Unsupported query parameter " + name);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid " + name + " " + value);
+                }
+            }
+            return new Query(minMagnitude, ORDER_BY_TIME.equals(orderBy), limit, startTime, endTime);
+        }
+
+        /**
+         * Returns the time in milliseconds since the epoch of the given time parameter.
+         *
+         * @throws IllegalArgumentException if it isn't in one of the USGS time formats
+         */
+        private static long parseTime(String name, String value) {
+            for (String format : QUERY_TIME_FORMATS) {
+                SimpleDateFormat dateFormat = new SimpleDateFormat(format, Locale.US);
+                dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+                dateFormat.setLenient(false);
+                ParsePosition position = new ParsePosition(0);
+                Date date = dateFormat.parse(value, position);
+                if (date != null && position.getIndex() == value.length()) {
+                    return date.getTime();
+                }
+            }
+            throw new IllegalArgumentException("Invalid " + name + " " + value);
+        }
+
+        private static String decodeComponent(String component) {
+            try {
+                return URLDecoder.decode(component, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        /**
+         * Returns the given earthquakes which match the query at the given time, in its order
+         * and cut to its limit.
+         */
+        List<Earthquake> select(List<Earthquake> earthquakes, long now) {
+            long windowStart = startTime;
+            if (startTime == Long.MIN_VALUE && endTime == Long.MAX_VALUE) {
+                windowStart = now - DEFAULT_WINDOW_MILLIS;
+            }
+            List<Earthquake> selected = new ArrayList<>();
+            for (Earthquake earthquake : earthquakes) {
+                long time = earthquake.getTimeInMillisec();
+                if (earthquake.getMagnitude() >= minMagnitude && time >= windowStart && time <= endTime) {
+                    selected.add(earthquake);
+                }
+            }
+            Collections.sort(selected, new Comparator<Earthquake>() {
+                @Override
+                public int compare(Earthquake first, Earthquake second) {
+                    if (orderByTime) {
+                        long firstTime = first.getTimeInMillisec();
+                        long secondTime = second.getTimeInMillisec();
+                        return firstTime < secondTime ? 1 : (firstTime == secondTime ? 0 : -1);
+                    }
+                    return Double.compare(second.getMagnitude(), first.getMagnitude());
+                }
+            });
+            return selected.size() > limit ? selected.subList(0, limit) : selected;
+        }
+    }
+}
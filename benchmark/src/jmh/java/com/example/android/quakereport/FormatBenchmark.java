@@ -0,0 +1,81 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Measures the per-row work behind a list item: formatting magnitude, date and time, picking the
+ * magnitude color and splitting the location. Binding itself only copies the formatted fields
+ * into views (see EarthquakeAdapter).
+ */
+@State(Scope.Thread)
+public class FormatBenchmark {
+
+    /**
+     * Number of distinct rows cycled through, so results aren't specific to one value
+     */
+    private static final int ROWS = 1024;
+
+    private final double[] mMagnitudes = new double[ROWS];
+    private final long[] mTimes = new long[ROWS];
+    private final String[] mLocations = new String[ROWS];
+    private final EarthquakeLocation[] mParsedLocations = new EarthquakeLocation[ROWS];
+    private EarthquakeFormatter mFormatter;
+    private int mRow;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            mMagnitudes[i] = Math.round((random.nextDouble() * 11) * 10) / 10.0;
+            mTimes[i] = 1510000000000L - random.nextInt(Integer.MAX_VALUE);
+            mLocations[i] = SyntheticFeeds.place(random);
+            mParsedLocations[i] = EarthquakeLocationParser.parse(mLocations[i]);
+        }
+        // Distinct colors, so picking one can't be folded to a constant
+        int[] magnitudeColors = new int[10];
+        for (int i = 0; i < magnitudeColors.length; i++) {
+            magnitudeColors[i] = 0xff000000 | i;
+        }
+        mFormatter = new EarthquakeFormatter(magnitudeColors, 0xff00000a, "Near the");
+    }
+
+    private int nextRow() {
+        mRow = (mRow + 1) & (ROWS - 1);
+        return mRow;
+    }
+
+    /**
+     * Everything shown by one list item, as computed off the main thread for every row.
+     */
+    @Benchmark
+    public EarthquakeDisplayModel formatRow() {
+        int row = nextRow();
+        return mFormatter.format(mMagnitudes[row], mParsedLocations[row], mTimes[row]);
+    }
+
+    @Benchmark
+    public int magnitudeColor() {
+        return mFormatter.getMagnitudeColor(mMagnitudes[nextRow()]);
+    }
+
+    /**
+     * Splitting a place string, as done once for every distinct location of a feed.
+     */
+    @Benchmark
+    public EarthquakeLocation splitLocation() {
+        return EarthquakeLocationParser.tokenize(mLocations[nextRow()]);
+    }
+
+    /**
+     * Looking up an already split place string, as done for repeated locations.
+     */
+    @Benchmark
+    public EarthquakeLocation splitLocationMemoized() {
+        return EarthquakeLocationParser.parse(mLocations[nextRow()]);
+    }
+}
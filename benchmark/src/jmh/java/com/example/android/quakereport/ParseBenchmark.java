@@ -0,0 +1,77 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * Measures reading a USGS feed, from the response bytes to parsed earthquakes.
+ */
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+
+    private static final String PARALLEL_GEOJSON = "geojson-parallel";
+
+    /**
+     * Number of features in the feed
+     */
+    @Param({"100", "1000", "20000"})
+    public int features;
+
+    /**
+     * Wire format of the feed, see {@link EarthquakeFeedDecoders}, or "geojson-parallel" for
+     * GeoJSON parsed on all cores by the {@link ParallelGeoJsonFeedDecoder}
+     */
+    @Param({"geojson", "geojson-parallel", "csv"})
+    public String format;
+
+    private byte[] mFeed;
+    private EarthquakeFeedDecoder mDecoder;
+
+    @Setup
+    public void setUp() {
+        mFeed = CsvFeedDecoder.FORMAT.equals(format) ? SyntheticFeeds.csv(features) : SyntheticFeeds.feed(features);
+        mDecoder = PARALLEL_GEOJSON.equals(format)
+                ? new ParallelGeoJsonFeedDecoder(Runtime.getRuntime().availableProcessors(),
+                        ParallelGeoJsonFeedDecoder.DEFAULT_MIN_PARALLEL_BYTES)
+                : EarthquakeFeedDecoders.forFormat(format);
+        // The response size is what the format saves on the network
+        System.out.println(features + " features as " + format + ": " + mFeed.length + " bytes");
+    }
+
+    /**
+     * Decoding and parsing the response body, as done for every downloaded feed.
+     */
+    @Benchmark
+    public int readFromStream(final Blackhole blackhole) throws IOException {
+        return QueryUtils.readFromStream(new ByteArrayInputStream(mFeed), mDecoder,
+                new EarthquakeStreamParser.OnEarthquakeParsedListener() {
+                    @Override
+                    public void onEarthquakeParsed(Earthquake earthquake) {
+                        blackhole.consume(earthquake);
+                    }
+                });
+    }
+
+    /**
+     * Parsing the feed into the columnar table the list is backed by.
+     */
+    @Benchmark
+    public EarthquakeTable readIntoTable() throws IOException {
+        final EarthquakeTable table = new EarthquakeTable();
+        QueryUtils.readFromStream(new ByteArrayInputStream(mFeed), mDecoder,
+                new EarthquakeStreamParser.OnEarthquakeParsedListener() {
+                    @Override
+                    public void onEarthquakeParsed(Earthquake earthquake) {
+                        table.append(earthquake);
+                    }
+                });
+        return table;
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.android.quakereport;
+
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Generates USGS GeoJSON and CSV feeds with realistic feature contents for the benchmarks.
+ * The same size always produces the same feed.
+ */
+final class SyntheticFeeds {
+
+    private static final String[] PLACES = {
+            "Yelizovo, Russia",
+            "Pondaguitan, Philippines",
+            "Gulf of Alaska",
+            "Town of Ofu, American Samoa",
+            "Pacific-Antarctic Ridge",
+            "The Geysers, CA",
+            "Hualien City, Taiwan",
+            "Central Mid-Atlantic Ridge"};
+
+    private static final String[] BEARINGS = {"N", "NNE", "NE", "E", "SE", "S", "SW", "W", "NW", "WNW"};
+
+    /**
+     * Time of the newest generated event, in milliseconds since the epoch
+     */
+    private static final long NEWEST_TIME = 1510000000000L;
+
+    private SyntheticFeeds() {
+
+    }
+
+    /**
+     * Returns a FeatureCollection with the given number of features, UTF-8 encoded.
+     */
+    static byte[] feed(int features) {
+        Random random = new Random(features);
+        StringBuilder json = new StringBuilder(features * 1200);
+        json.append("{\"type\":\"FeatureCollection\",\"metadata\":{\"generated\":").append(NEWEST_TIME)
+                .append(",\"url\":\"https://earthquake.usgs.gov/fdsnws/event/1/query?format=geojson\"")
+                .append(",\"title\":\"USGS Earthquakes\",\"status\":200,\"api\":\"1.5.8\",\"count\":")
+                .append(features).append("},\"features\":[");
+        for (int i = 0; i < features; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            appendFeature(json, random, i);
+        }
+        json.append("],\"bbox\":[-179.9,-60.1,0,179.9,80.2,650]}");
+        return json.toString().getBytes(Charset.forName("UTF-8"));
+    }
+
+    /**
+     * Returns a place string in one of the forms used by USGS.
+     */
+    static String place(Random random) {
+        String place = PLACES[random.nextInt(PLACES.length)];
+        if (random.nextInt(4) == 0) {
+            return place;
+        }
+        return (1 + random.nextInt(300)) + (random.nextBoolean() ? " km " : "km ")
+                + BEARINGS[random.nextInt(BEARINGS.length)] + " of " + place;
+    }
+
+    /**
+     * Returns the same events as {@link #feed(int)} in the USGS CSV format, UTF-8 encoded.
+     */
+    static byte[] csv(int features) {
+        Random random = new Random(features);
+        StringBuilder csv = new StringBuilder(features * 200);
+        csv.append("time,latitude,longitude,depth,mag,magType,nst,gap,dmin,rms,net,id,updated,place,type,")
+                .append("horizontalError,depthError,magError,magNst,status,locationSource,magSource\n");
+        SimpleDateFormat iso = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        iso.setTimeZone(TimeZone.getTimeZone("UTC"));
+        for (int i = 0; i < features; i++) {
+            Event event = new Event(random, i);
+            String place = event.place.indexOf(',') >= 0 ? '"' + event.place + '"' : event.place;
+            csv.append(iso.format(new Date(event.time)))
+                    .append(',').append(event.latitude)
+                    .append(',').append(event.longitude)
+                    .append(',').append(event.depth)
+                    .append(',').append(event.magnitude)
+                    .append(",mb,,").append(event.gap)
+                    .append(',').append(event.dmin)
+                    .append(',').append(event.rms)
+                    .append(",us,").append(event.id)
+                    .append(',').append(iso.format(new Date(event.updated)))
+                    .append(',').append(place)
+                    .append(",earthquake,7.6,1.9,0.077,54,reviewed,us,us\n");
+        }
+        return csv.toString().getBytes(Charset.forName("UTF-8"));
+    }
+
+    private static void appendFeature(StringBuilder json, Random random, int index) {
+        Event event = new Event(random, index);
+        json.append("{\"type\":\"Feature\",\"properties\":{")
+                .append("\"mag\":").append(event.magnitude)
+                .append(",\"place\":\"").append(event.place).append('"')
+                .append(",\"time\":").append(event.time)
+                .append(",\"updated\":").append(event.updated)
+                .append(",\"tz\":null")
+                .append(",\"url\":\"").append(event.url).append('"')
+                .append(",\"detail\":\"https://earthquake.usgs.gov/fdsnws/event/1/query?eventid=")
+                .append(event.id).append("&format=geojson\"")
+                .append(",\"felt\":").append(event.felt)
+                .append(",\"cdi\":null,\"mmi\":null,\"alert\":null")
+                .append(",\"status\":\"reviewed\",\"tsunami\":0")
+                .append(",\"sig\":").append(event.sig)
+                .append(",\"net\":\"us\",\"code\":\"").append(event.id.substring(2)).append('"')
+                .append(",\"ids\":\",").append(event.id).append(",\"")
+                .append(",\"sources\":\",us,\",\"types\":\",geoserve,origin,phase-data,\"")
+                .append(",\"nst\":null")
+                .append(",\"dmin\":").append(event.dmin)
+                .append(",\"rms\":").append(event.rms)
+                .append(",\"gap\":").append(event.gap)
+                .append(",\"magType\":\"mb\",\"type\":\"earthquake\"")
+                .append(",\"title\":\"M ").append(event.magnitude).append('"')
+                .append("},\"geometry\":{\"type\":\"Point\",\"coordinates\":[")
+                .append(event.longitude).append(',').append(event.latitude).append(',').append(event.depth)
+                .append("]},\"id\":\"").append(event.id).append("\"}");
+    }
+
+    /**
+     * Random contents of one event, drawn in the same order for every format.
+     */
+    private static final class Event {
+        final String id;
+        final double magnitude;
+        final long time;
+        final String url;
+        final String place;
+        final long updated;
+        final String felt;
+        final int sig;
+        final String dmin;
+        final String rms;
+        final int gap;
+        final String longitude;
+        final String latitude;
+        final String depth;
+
+        Event(Random random, int index) {
+            id = "us" + Integer.toString(1000000 + index, 36);
+            magnitude = Math.round((2 + random.nextDouble() * 6) * 10) / 10.0;
+            time = NEWEST_TIME - index * 60000L - random.nextInt(60000);
+            url = "https://earthquake.usgs.gov/earthquakes/eventpage/" + id;
+            place = place(random);
+            updated = time + random.nextInt(3600000);
+            felt = random.nextInt(10) == 0 ? String.valueOf(random.nextInt(500)) : "null";
+            sig = random.nextInt(1000);
+            dmin = String.format(Locale.US, "%.3f", random.nextDouble() * 10);
+            rms = String.format(Locale.US, "%.2f", random.nextDouble());
+            gap = random.nextInt(180);
+            longitude = String.format(Locale.US, "%.4f", random.nextDouble() * 360 - 180);
+            latitude = String.format(Locale.US, "%.4f", random.nextDouble() * 160 - 80);
+            depth = String.format(Locale.US, "%.2f", random.nextDouble() * 650);
+        }
+    }
+}
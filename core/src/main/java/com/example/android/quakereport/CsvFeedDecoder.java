@@ -0,0 +1,399 @@
+package com.example.android.quakereport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Decodes the USGS CSV format, which is about a third of the size of GeoJSON.
+ * <p>
+ * The body is scanned record by record in a reused byte buffer. Fields are only located, not
+ * copied: numbers and times are parsed straight from the bytes, and Strings are only created
+ * for the id, place and status of an event. Columns are found by their names in the header
+ * row, so added or reordered columns don't break decoding.
+ * <p>
+ * The CSV format has no event page URL; it is built from the event id the same way USGS does
+ * in the "url" property of GeoJSON.
+ */
+public final class CsvFeedDecoder implements EarthquakeFeedDecoder {
+
+    public static final String FORMAT = "csv";
+
+    /**
+     * Prefix of the event page URL of every event, followed by its id
+     */
+    private static final String EVENT_PAGE_URL = "https://earthquake.usgs.gov/earthquakes/eventpage/";
+
+    /**
+     * Names of the header columns read by the decoder
+     */
+    private static final String COLUMN_TIME = "time";
+    private static final String COLUMN_LATITUDE = "latitude";
+    private static final String COLUMN_LONGITUDE = "longitude";
+    private static final String COLUMN_DEPTH = "depth";
+    private static final String COLUMN_MAGNITUDE = "mag";
+    private static final String COLUMN_ID = "id";
+    private static final String COLUMN_UPDATED = "updated";
+    private static final String COLUMN_PLACE = "place";
+    private static final String COLUMN_STATUS = "status";
+
+    /**
+     * Value of the "status" column of events which have been deleted by USGS
+     */
+    private static final String STATUS_DELETED = "deleted";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Powers of ten which are exact doubles
+     */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    @Override
+    public String getFormat() {
+        return FORMAT;
+    }
+
+    @Override
+    public int decode(InputStream in, EarthquakeStreamParser.OnEarthquakeParsedListener listener)
+            throws IOException {
+        Scanner scanner = new Scanner(in);
+        if (!scanner.nextRecord()) {
+            return 0;
+        }
+
+        // Find the columns by name, -1 for the missing ones
+        int time = -1, latitude = -1, longitude = -1, depth = -1, magnitude = -1, id = -1, updated = -1,
+                place = -1, status = -1;
+        for (int field = 0; field < scanner.getFieldCount(); field++) {
+            String name = scanner.getString(field);
+            if (COLUMN_TIME.equals(name)) {
+                time = field;
+            } else if (COLUMN_LATITUDE.equals(name)) {
+                latitude = field;
+            } else if (COLUMN_LONGITUDE.equals(name)) {
+                longitude = field;
+            } else if (COLUMN_DEPTH.equals(name)) {
+                depth = field;
+            } else if (COLUMN_MAGNITUDE.equals(name)) {
+                magnitude = field;
+            } else if (COLUMN_ID.equals(name)) {
+                id = field;
+            } else if (COLUMN_UPDATED.equals(name)) {
+                updated = field;
+            } else if (COLUMN_PLACE.equals(name)) {
+                place = field;
+            } else if (COLUMN_STATUS.equals(name)) {
+                status = field;
+            }
+        }
+
+        int count = 0;
+        while (scanner.nextRecord()) {
+            if (scanner.getFieldCount() == 1 && scanner.isEmpty(0)) {
+                // Blank line
+                continue;
+            }
+            // Empty fields leave the corresponding field untouched, like nulls in GeoJSON
+            Earthquake earthquake = new Earthquake();
+            if (id >= 0 && !scanner.isEmpty(id)) {
+                earthquake.setId(scanner.getString(id));
+                earthquake.setUrl(EVENT_PAGE_URL + earthquake.getId());
+            }
+            if (magnitude >= 0 && !scanner.isEmpty(magnitude)) {
+                earthquake.setMagnitude(scanner.getDouble(magnitude));
+            }
+            if (place >= 0 && !scanner.isEmpty(place)) {
+                earthquake.setLocation(scanner.getString(place));
+            }
+            if (time >= 0 && !scanner.isEmpty(time)) {
+                earthquake.setTimeInMillisec(scanner.getTime(time));
+            }
+            if (updated >= 0 && !scanner.isEmpty(updated)) {
+                earthquake.setUpdatedInMillisec(scanner.getTime(updated));
+            }
+            if (status >= 0 && !scanner.isEmpty(status)) {
+                earthquake.setDeleted(STATUS_DELETED.equals(scanner.getString(status)));
+            }
+            if (longitude >= 0 && !scanner.isEmpty(longitude)) {
+                earthquake.setLongitude(scanner.getDouble(longitude));
+            }
+            if (latitude >= 0 && !scanner.isEmpty(latitude)) {
+                earthquake.setLatitude(scanner.getDouble(latitude));
+            }
+            if (depth >= 0 && !scanner.isEmpty(depth)) {
+                earthquake.setDepth(scanner.getDouble(depth));
+            }
+            listener.onEarthquakeParsed(earthquake);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Splits a CSV stream (RFC 4180) into records and locates their fields in a byte buffer.
+     * The fields of a record stay valid until the next call to {@link #nextRecord()}.
+     */
+    private static final class Scanner {
+        private final InputStream mIn;
+        private byte[] mBuffer = new byte[16 * 1024];
+        /**
+         * Start of the current record and end of the valid bytes in the buffer
+         */
+        private int mStart;
+        private int mLimit;
+        /**
+         * Start of the next record
+         */
+        private int mNext;
+        private boolean mEndOfStream;
+
+        /**
+         * Bounds of the fields of the current record relative to its start, quoted fields
+         * include their quotes
+         */
+        private int[] mFieldStarts = new int[32];
+        private int[] mFieldEnds = new int[32];
+        private boolean[] mFieldQuoted = new boolean[32];
+        private int mFieldCount;
+
+        Scanner(InputStream in) {
+            mIn = in;
+        }
+
+        /**
+         * Advances to the next record. Returns false at the end of the stream.
+         */
+        boolean nextRecord() throws IOException {
+            mStart = mNext;
+            mFieldCount = 0;
+            int position = mStart;
+            int fieldStart = mStart;
+            boolean inQuotes = false;
+            boolean quoted = false;
+            while (true) {
+                if (position == mLimit) {
+                    if (mEndOfStream) {
+                        if (position == mStart) {
+                            return false;
+                        }
+                        // Last record without a line break
+                        addField(fieldStart, position, quoted);
+                        mNext = position;
+                        return true;
+                    }
+                    int shift = fill();
+                    position -= shift;
+                    fieldStart -= shift;
+                    continue;
+                }
+                byte b = mBuffer[position];
+                if (inQuotes) {
+                    if (b == '"') {
+                        if (position + 1 == mLimit && !mEndOfStream) {
+                            // Need the next byte to tell an escaped quote from the closing one
+                            int shift = fill();
+                            position -= shift;
+                            fieldStart -= shift;
+                            continue;
+                        }
+                        if (position + 1 < mLimit && mBuffer[position + 1] == '"') {
+                            position += 2;
+                            continue;
+                        }
+                        inQuotes = false;
+                    }
+                    position++;
+                } else if (b == '"' && position == fieldStart) {
+                    inQuotes = true;
+                    quoted = true;
+                    position++;
+                } else if (b == ',') {
+                    addField(fieldStart, position, quoted);
+                    position++;
+                    fieldStart = position;
+                    quoted = false;
+                } else if (b == '\n') {
+                    int end = position > fieldStart && mBuffer[position - 1] == '\r' ? position - 1 : position;
+                    addField(fieldStart, end, quoted);
+                    mNext = position + 1;
+                    return true;
+                } else {
+                    position++;
+                }
+            }
+        }
+
+        /**
+         * Moves the current record to the start of the buffer, growing it if the record fills
+         * it, and reads more bytes after it.
+         *
+         * @return number of bytes the record was moved towards the start
+         */
+        private int fill() throws IOException {
+            int shift = mStart;
+            int length = mLimit - mStart;
+            if (shift > 0) {
+                System.arraycopy(mBuffer, mStart, mBuffer, 0, length);
+            } else if (length == mBuffer.length) {
+                byte[] buffer = new byte[mBuffer.length * 2];
+                System.arraycopy(mBuffer, 0, buffer, 0, length);
+                mBuffer = buffer;
+            }
+            mStart = 0;
+            mLimit = length;
+            int read = mIn.read(mBuffer, mLimit, mBuffer.length - mLimit);
+            if (read < 0) {
+                mEndOfStream = true;
+            } else {
+                mLimit += read;
+            }
+            return shift;
+        }
+
+        private void addField(int start, int end, boolean quoted) {
+            if (mFieldCount == mFieldStarts.length) {
+                int capacity = mFieldCount * 2;
+                mFieldStarts = Arrays.copyOf(mFieldStarts, capacity);
+                mFieldEnds = Arrays.copyOf(mFieldEnds, capacity);
+                mFieldQuoted = Arrays.copyOf(mFieldQuoted, capacity);
+            }
+            mFieldStarts[mFieldCount] = start - mStart;
+            mFieldEnds[mFieldCount] = end - mStart;
+            mFieldQuoted[mFieldCount] = quoted;
+            mFieldCount++;
+        }
+
+        int getFieldCount() {
+            return mFieldCount;
+        }
+
+        boolean isEmpty(int field) {
+            return field >= mFieldCount || mFieldEnds[field] - mFieldStarts[field] <= (mFieldQuoted[field] ? 2 : 0);
+        }
+
+        /**
+         * Returns the field as a String, without its quotes.
+         */
+        String getString(int field) {
+            int start = mStart + mFieldStarts[field];
+            int end = mStart + mFieldEnds[field];
+            if (!mFieldQuoted[field]) {
+                return new String(mBuffer, start, end - start, UTF_8);
+            }
+            String value = new String(mBuffer, start + 1, Math.max(0, end - start - 2), UTF_8);
+            return value.indexOf('"') >= 0 ? value.replace("\"\"", "\"") : value;
+        }
+
+        /**
+         * Parses the field as a decimal number, e.g. "-117.4913333".
+         */
+        double getDouble(int field) throws IOException {
+            int start = mStart + mFieldStarts[field];
+            int end = mStart + mFieldEnds[field];
+            int position = start;
+            boolean negative = position < end && mBuffer[position] == '-';
+            if (negative || (position < end && mBuffer[position] == '+')) {
+                position++;
+            }
+            long mantissa = 0;
+            int digits = 0;
+            int fractionDigits = 0;
+            boolean fraction = false;
+            for (; position < end; position++) {
+                byte b = mBuffer[position];
+                if (b >= '0' && b <= '9') {
+                    mantissa = mantissa * 10 + (b - '0');
+                    digits++;
+                    if (fraction) {
+                        fractionDigits++;
+                    }
+                } else if (b == '.' && !fraction) {
+                    fraction = true;
+                } else {
+                    break;
+                }
+            }
+            if (position == end && digits > 0 && mantissa < (1L << 53) && fractionDigits < POWERS_OF_TEN.length) {
+                // Both operands are exact, so the division is rounded like Double.parseDouble()
+                double value = mantissa / POWERS_OF_TEN[fractionDigits];
+                return negative ? -value : value;
+            }
+            // Exponents, long mantissas and malformed numbers take the slow path
+            try {
+                return Double.parseDouble(new String(mBuffer, start, end - start, UTF_8));
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed number in CSV field " + field, e);
+            }
+        }
+
+        /**
+         * Parses the field as a UTC time like "2017-11-23T10:15:30.123Z", in milliseconds since
+         * the epoch.
+         */
+        long getTime(int field) throws IOException {
+            int start = mStart + mFieldStarts[field];
+            int end = mStart + mFieldEnds[field];
+            if (end - start < 19 || mBuffer[start + 4] != '-' || mBuffer[start + 7] != '-'
+                    || mBuffer[start + 10] != 'T' || mBuffer[start + 13] != ':' || mBuffer[start + 16] != ':') {
+                throw new IOException("Malformed time in CSV field " + field);
+            }
+            int year = digits(start, 4);
+            int month = digits(start + 5, 2);
+            int day = digits(start + 8, 2);
+            int hour = digits(start + 11, 2);
+            int minute = digits(start + 14, 2);
+            int second = digits(start + 17, 2);
+            int millis = 0;
+            int position = start + 19;
+            if (position < end && mBuffer[position] == '.') {
+                int scale = 100;
+                for (position++; position < end && isDigit(mBuffer[position]); position++) {
+                    millis += (mBuffer[position] - '0') * scale;
+                    scale /= 10;
+                }
+            }
+            if (year < 0 || month < 0 || day < 0 || hour < 0 || minute < 0 || second < 0
+                    || (position < end && mBuffer[position] != 'Z')) {
+                throw new IOException("Malformed time in CSV field " + field);
+            }
+            return ((daysSinceEpoch(year, month, day) * 24 + hour) * 60 + minute) * 60000L
+                    + second * 1000L + millis;
+        }
+
+        /**
+         * Returns the decimal number of the given digits, or -1 if they aren't all digits.
+         */
+        private int digits(int position, int count) {
+            int value = 0;
+            for (int i = position; i < position + count; i++) {
+                if (!isDigit(mBuffer[i])) {
+                    return -1;
+                }
+                value = value * 10 + (mBuffer[i] - '0');
+            }
+            return value;
+        }
+
+        private static boolean isDigit(byte b) {
+            return b >= '0' && b <= '9';
+        }
+
+        /**
+         * Returns the number of days from 1970-01-01 to the given date of the proleptic
+         * Gregorian calendar.
+         */
+        private static long daysSinceEpoch(int year, int month, int day) {
+            // Count years from March, so the leap day is the last day of a year
+            int y = month <= 2 ? year - 1 : year;
+            int era = (y >= 0 ? y : y - 399) / 400;
+            int yearOfEra = y - era * 400;
+            int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+            int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+            return era * 146097L + dayOfEra - 719468;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.android.quakereport;
+
+/**
+ * Created by kahra on 8.11.2017.
+ */
+
+public class Earthquake {
+    private String id;
+    private double magnitude;
+    private String location;
+    private EarthquakeLocation parsedLocation;
+    private long timeInMillisec;
+    private String url;
+    private long updatedInMillisec;
+    private boolean deleted;
+    private double longitude = Double.NaN;
+    private double latitude = Double.NaN;
+    private double depth = Double.NaN;
+
+    public Earthquake(double magnitude, String location, long timeInMillisec, String url) {
+        this.magnitude = magnitude;
+        setLocation(location);
+        this.timeInMillisec = timeInMillisec;
+        this.url = url;
+    }
+
+    public Earthquake(String id, double magnitude, String location, long timeInMillisec, String url,
+                      long updatedInMillisec) {
+        this(magnitude, location, timeInMillisec, url);
+        this.id = id;
+        this.updatedInMillisec = updatedInMillisec;
+    }
+
+    public Earthquake() {
+
+    }
+
+    /**
+     * Returns the stable USGS event id, e.g. "us10004u1y"
+     */
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public double getMagnitude() {
+        return magnitude;
+    }
+
+    public void setMagnitude(double magnitude) {
+        this.magnitude = magnitude;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    /**
+     * Sets the USGS place string and parses it into its structured form right away,
+     * so the parsing cost is paid once at ingest rather than on every bind.
+     */
+    public void setLocation(String location) {
+        this.location = location;
+        this.parsedLocation = EarthquakeLocationParser.parse(location);
+    }
+
+    /**
+     * Returns the structured form of {@link #getLocation()}, or null if there is no location
+     */
+    public EarthquakeLocation getParsedLocation() {
+        return parsedLocation;
+    }
+
+    public long getTimeInMillisec() {
+        return timeInMillisec;
+    }
+
+    public void setTimeInMillisec(long timeInMillisec) {
+        this.timeInMillisec = timeInMillisec;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    /**
+     * Returns the time the event was last updated by USGS, in milliseconds since the epoch
+     */
+    public long getUpdatedInMillisec() {
+        return updatedInMillisec;
+    }
+
+    public void setUpdatedInMillisec(long updatedInMillisec) {
+        this.updatedInMillisec = updatedInMillisec;
+    }
+
+    /**
+     * Returns true if USGS reported the event as deleted
+     */
+    public boolean isDeleted() {
+        return deleted;
+    }
+
+    public void setDeleted(boolean deleted) {
+        this.deleted = deleted;
+    }
+
+    /**
+     * Returns the longitude of the epicenter in degrees, or {@link Double#NaN} if unknown
+     */
+    public double getLongitude() {
+        return longitude;
+    }
+
+    public void setLongitude(double longitude) {
+        this.longitude = longitude;
+    }
+
+    /**
+     * Returns the latitude of the epicenter in degrees, or {@link Double#NaN} if unknown
+     */
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public void setLatitude(double latitude) {
+        this.latitude = latitude;
+    }
+
+    /**
+     * Returns the depth of the hypocenter in kilometers, or {@link Double#NaN} if unknown
+     */
+    public double getDepth() {
+        return depth;
+    }
+
+    public void setDepth(double depth) {
+        this.depth = depth;
+    }
+
+    @Override
+    public String toString() {
+        return "Earthquake{" +
+                "id='" + id + '\'' +
+                ", magnitude=" + magnitude +
+                ", location='" + location + '\'' +
+                ", timeInMillisec=" + timeInMillisec +
+                ", url='" + url + '\'' +
+                ", updatedInMillisec=" + updatedInMillisec +
+                ", deleted=" + deleted +
+                ", longitude=" + longitude +
+                ", latitude=" + latitude +
+                ", depth=" + depth +
+                '}';
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.android.quakereport;
+
+/**
+ * Everything a list item shows for one earthquake, formatted and resolved ahead of time
+ * (off the main thread) by an {@link EarthquakeFormatter}, so binding a row only copies fields.
+ */
+public final class EarthquakeDisplayModel {
+    private final String mMagnitude;
+    private final int mMagnitudeColor;
+    private final String mLocationOffset;
+    private final String mLocationPrime;
+    private final String mDate;
+    private final String mTime;
+
+    public EarthquakeDisplayModel(String magnitude, int magnitudeColor, String locationOffset,
+                                  String locationPrime, String date, String time) {
+        mMagnitude = magnitude;
+        mMagnitudeColor = magnitudeColor;
+        mLocationOffset = locationOffset;
+        mLocationPrime = locationPrime;
+        mDate = date;
+        mTime = time;
+    }
+
+    /**
+     * Returns the magnitude with one decimal, e.g. "7.2"
+     */
+    public String getMagnitude() {
+        return mMagnitude;
+    }
+
+    /**
+     * Returns the resolved background color of the magnitude circle
+     */
+    public int getMagnitudeColor() {
+        return mMagnitudeColor;
+    }
+
+    /**
+     * Returns the offset part of the location, e.g. "88km N of"
+     */
+    public String getLocationOffset() {
+        return mLocationOffset;
+    }
+
+    /**
+     * Returns the primary part of the location, e.g. "Yelizovo, Russia"
+     */
+    public String getLocationPrime() {
+        return mLocationPrime;
+    }
+
+    /**
+     * Returns the formatted date, e.g. "Mar 03, 2016"
+     */
+    public String getDate() {
+        return mDate;
+    }
+
+    /**
+     * Returns the formatted time, e.g. "4:15 PM"
+     */
+    public String getTime() {
+        return mTime;
+    }
+}
@@ -0,0 +1,29 @@
+package com.example.android.quakereport;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes a USGS response body of one wire format into {@link Earthquake}s.
+ * <p>
+ * Decoders read the body as it arrives and hand each earthquake to the listener as soon as it
+ * is complete, except the {@link ParallelGeoJsonFeedDecoder}, which waits for the whole body.
+ * All decoders fill the same fields the same way, so the format only changes the bytes on the
+ * wire and the cost of decoding them.
+ */
+public interface EarthquakeFeedDecoder {
+
+    /**
+     * Returns the value of the USGS "format" query parameter asking for this format.
+     */
+    String getFormat();
+
+    /**
+     * Reads the whole body and emits every earthquake to the listener, in feed order.
+     * The stream is owned by the caller and not closed.
+     *
+     * @return number of earthquakes emitted
+     * @throws IOException if the stream can't be read or isn't well-formed
+     */
+    int decode(InputStream in, EarthquakeStreamParser.OnEarthquakeParsedListener listener) throws IOException;
+}
@@ -0,0 +1,87 @@
+package com.example.android.quakereport;
+
+import java.text.DecimalFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Turns earthquake fields into {@link EarthquakeDisplayModel}s.
+ * <p>
+ * Formatters are created once per instance instead of once per row, and colors and strings are
+ * resolved up front (the app does so in EarthquakeFormatters), so this class doesn't depend on
+ * Android resources. Instances are not thread-safe: use one per thread, typically a loader's
+ * background thread.
+ */
+public class EarthquakeFormatter {
+
+    private final DecimalFormat mMagnitudeFormatter = new DecimalFormat("#0.0");
+    private final SimpleDateFormat mDateFormatter = new SimpleDateFormat("MMM dd, yyyy");
+    private final SimpleDateFormat mTimeFormatter = new SimpleDateFormat("h:mm a");
+    private final Date mDate = new Date();
+
+    /**
+     * Resolved magnitude circle colors, by the floor of the magnitude
+     */
+    private final int[] mMagnitudeColors;
+    private final int mMagnitudeColor10Plus;
+
+    /**
+     * Offset text of locations without distance information, i.e. "Near the"
+     */
+    private final String mNearThe;
+
+    /**
+     * Constructs a new {@link EarthquakeFormatter}.
+     *
+     * @param magnitudeColors      resolved magnitude circle colors, by the floor of the magnitude
+     *                             (index 0 is unused)
+     * @param magnitudeColor10Plus resolved color of magnitudes of 10 and above
+     * @param nearThe              offset text of locations without distance information
+     */
+    public EarthquakeFormatter(int[] magnitudeColors, int magnitudeColor10Plus, String nearThe) {
+        mMagnitudeColors = magnitudeColors.clone();
+        mMagnitudeColor10Plus = magnitudeColor10Plus;
+        mNearThe = nearThe;
+    }
+
+    /**
+     * Returns the display model of an earthquake with the given fields.
+     *
+     * @param location structured location as parsed at ingest, may be null
+     */
+    public EarthquakeDisplayModel format(double magnitude, EarthquakeLocation location, long timeInMillisec) {
+        String locationPrime, locationOffset;
+        if (location == null) {
+            locationOffset = mNearThe;
+            locationPrime = "";
+        } else if (location.hasOffset()) {
+            // e.g. "88 km N of" above "Yelizovo, Russia"
+            locationOffset = location.getOffset();
+            locationPrime = location.getPlace();
+        } else {
+            // without a distance, show "Near the" above the place
+            locationOffset = mNearThe;
+            locationPrime = location.getPlace();
+        }
+
+        mDate.setTime(timeInMillisec);
+        return new EarthquakeDisplayModel(
+                mMagnitudeFormatter.format(magnitude),
+                getMagnitudeColor(magnitude),
+                locationOffset,
+                locationPrime,
+                mDateFormatter.format(mDate),
+                mTimeFormatter.format(mDate));
+    }
+
+    /**
+     * Gets magnitude of earthquake and returns the corresponding magnitude color
+     */
+    public int getMagnitudeColor(double magnitude) {
+        int magnitudeFloor = (int) Math.floor(magnitude);
+        if (magnitudeFloor >= 1 && magnitudeFloor < mMagnitudeColors.length) {
+            return mMagnitudeColors[magnitudeFloor];
+        }
+        return mMagnitudeColor10Plus;
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.android.quakereport;
+
+/**
+ * Structured form of a USGS "place" string such as "88 km N of Yelizovo, Russia":
+ * the distance (88), its unit ("km"), the bearing ("N") and the reference place
+ * ("Yelizovo, Russia"). Places without a distance, e.g. "Pacific-Antarctic Ridge",
+ * only have a reference place.
+ * <p>
+ * Instances are immutable and created by {@link EarthquakeLocationParser}.
+ */
+public final class EarthquakeLocation {
+    private final double mDistance;
+    private final String mUnit;
+    private final String mBearing;
+    private final String mOffset;
+    private final String mPlace;
+
+    EarthquakeLocation(double distance, String unit, String bearing, String offset, String place) {
+        mDistance = distance;
+        mUnit = unit;
+        mBearing = bearing;
+        mOffset = offset;
+        mPlace = place;
+    }
+
+    /**
+     * Returns true if the location is given relative to the reference place
+     */
+    public boolean hasOffset() {
+        return mOffset != null;
+    }
+
+    /**
+     * Returns the distance to the reference place, or {@link Double#NaN} if there is no offset
+     */
+    public double getDistance() {
+        return mDistance;
+    }
+
+    /**
+     * Returns the unit of the distance, e.g. "km", or null if there is no offset
+     */
+    public String getUnit() {
+        return mUnit;
+    }
+
+    /**
+     * Returns the compass bearing from the reference place, e.g. "NNE", or null if there is no offset
+     */
+    public String getBearing() {
+        return mBearing;
+    }
+
+    /**
+     * Returns the offset as it is written in the feed, e.g. "88 km N of", or null if there is none
+     */
+    public String getOffset() {
+        return mOffset;
+    }
+
+    /**
+     * Returns the reference place, e.g. "Yelizovo, Russia". Never null.
+     */
+    public String getPlace() {
+        return mPlace;
+    }
+
+    @Override
+    public String toString() {
+        return hasOffset() ? mOffset + " " + mPlace : mPlace;
+    }
+}
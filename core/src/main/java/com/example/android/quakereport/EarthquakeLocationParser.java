@@ -0,0 +1,201 @@
+package com.example.android.quakereport;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Parses USGS "place" strings into {@link EarthquakeLocation}s.
+ * <p>
+ * The string is scanned once, without regular expressions: an offset is only recognized in the
+ * exact form "&lt;distance&gt;[ ]&lt;unit&gt; &lt;bearing&gt; of &lt;place&gt;", so place names which merely
+ * contain "of" (e.g. "Gulf of Alaska") are kept whole. Results are memoized, since feeds repeat
+ * the same place strings, and reference places are interned, so every earthquake near the same
+ * place shares one String.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class EarthquakeLocationParser {
+
+    private static final String OFFSET_SEPARATOR = "of";
+
+    /**
+     * Longest compass bearing used by USGS, e.g. "NNE"
+     */
+    private static final int MAX_BEARING_LENGTH = 3;
+
+    /**
+     * Upper bounds of the memoized place strings and of the interned reference places
+     */
+    private static final int MAX_MEMOIZED_LOCATIONS = 2048;
+    private static final int MAX_INTERNED_PLACES = 8192;
+
+    /**
+     * Number of independently locked parts of the memo, so threads parsing chunks of one feed
+     * in parallel rarely wait for each other. A power of two.
+     */
+    private static final int MEMO_STRIPES = 16;
+
+    /**
+     * Memoized place strings, by the spread hash code of the string
+     */
+    private static final Memo[] sLocations = new Memo[MEMO_STRIPES];
+
+    static {
+        for (int i = 0; i < MEMO_STRIPES; i++) {
+            sLocations[i] = new Memo(MAX_MEMOIZED_LOCATIONS / MEMO_STRIPES);
+        }
+    }
+
+    private static final ConcurrentMap<String, String> sPlaces = new ConcurrentHashMap<>();
+
+    /**
+     * This class is only meant to hold static methods.
+     */
+    private EarthquakeLocationParser() {
+
+    }
+
+    /**
+     * Returns the structured form of the given place string, or null if it is null.
+     */
+    public static EarthquakeLocation parse(String location) {
+        if (location == null) {
+            return null;
+        }
+        int hash = location.hashCode();
+        Memo memo = sLocations[(hash ^ (hash >>> 16)) & (MEMO_STRIPES - 1)];
+        synchronized (memo) {
+            EarthquakeLocation parsed = memo.get(location);
+            if (parsed != null) {
+                return parsed;
+            }
+        }
+        // Parsing twice in a race is harmless, both results are equal
+        EarthquakeLocation parsed = tokenize(location);
+        synchronized (memo) {
+            memo.put(location, parsed);
+        }
+        return parsed;
+    }
+
+    /**
+     * Scans "&lt;distance&gt;[ ]&lt;unit&gt; &lt;bearing&gt; of &lt;place&gt;". Anything else is a place without offset.
+     * Package-private so benchmarks can measure it without the memoization.
+     */
+    static EarthquakeLocation tokenize(String location) {
+        int length = location.length();
+        int start = skipSpaces(location, 0);
+
+        // Distance, e.g. "88" or "12.5"
+        int position = start;
+        while (position < length && (isDigit(location.charAt(position)) || location.charAt(position) == '.')) {
+            position++;
+        }
+        int distanceEnd = position;
+        if (distanceEnd == start) {
+            return withoutOffset(location);
+        }
+
+        // Unit, e.g. "km", optionally separated from the distance by a space
+        int unitStart = skipSpaces(location, position);
+        position = unitStart;
+        while (position < length && Character.isLetter(location.charAt(position))) {
+            position++;
+        }
+        int unitEnd = position;
+        if (unitEnd == unitStart || position >= length || location.charAt(position) != ' ') {
+            return withoutOffset(location);
+        }
+
+        // Bearing, e.g. "NNE"
+        int bearingStart = skipSpaces(location, position);
+        position = bearingStart;
+        while (position < length && isCompassLetter(location.charAt(position))) {
+            position++;
+        }
+        int bearingEnd = position;
+        if (bearingEnd == bearingStart || bearingEnd - bearingStart > MAX_BEARING_LENGTH
+                || position >= length || location.charAt(position) != ' ') {
+            return withoutOffset(location);
+        }
+
+        // "of", followed by the reference place
+        position = skipSpaces(location, position);
+        if (!location.startsWith(OFFSET_SEPARATOR, position)) {
+            return withoutOffset(location);
+        }
+        int offsetEnd = position + OFFSET_SEPARATOR.length();
+        int placeStart = skipSpaces(location, offsetEnd);
+        if (placeStart == offsetEnd || placeStart >= length) {
+            return withoutOffset(location);
+        }
+
+        double distance;
+        try {
+            distance = Double.parseDouble(location.substring(start, distanceEnd));
+        } catch (NumberFormatException e) {
+            return withoutOffset(location);
+        }
+        return new EarthquakeLocation(
+                distance,
+                location.substring(unitStart, unitEnd).intern(),
+                location.substring(bearingStart, bearingEnd).intern(),
+                location.substring(start, offsetEnd),
+                internPlace(location.substring(placeStart).trim()));
+    }
+
+    private static EarthquakeLocation withoutOffset(String location) {
+        return new EarthquakeLocation(Double.NaN, null, null, null, internPlace(location.trim()));
+    }
+
+    /**
+     * Returns the shared instance of the given reference place.
+     */
+    private static String internPlace(String place) {
+        String interned = sPlaces.get(place);
+        if (interned != null) {
+            return interned;
+        }
+        // The bound is approximate under concurrent calls, which is good enough
+        if (sPlaces.size() < MAX_INTERNED_PLACES) {
+            interned = sPlaces.putIfAbsent(place, place);
+        }
+        return interned != null ? interned : place;
+    }
+
+    private static int skipSpaces(String s, int position) {
+        while (position < s.length() && s.charAt(position) == ' ') {
+            position++;
+        }
+        return position;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isCompassLetter(char c) {
+        return c == 'N' || c == 'S' || c == 'E' || c == 'W';
+    }
+
+    /**
+     * Part of the memo, dropping its least recently used place strings first.
+     */
+    private static final class Memo extends LinkedHashMap<String, EarthquakeLocation> {
+        private static final long serialVersionUID = 1L;
+
+        private final int mMaxSize;
+
+        Memo(int maxSize) {
+            super(16, 0.75f, true);
+            mMaxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, EarthquakeLocation> eldest) {
+            return size() > mMaxSize;
+        }
+    }
+}
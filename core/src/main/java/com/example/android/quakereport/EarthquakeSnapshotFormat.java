@@ -0,0 +1,336 @@
+package com.example.android.quakereport;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Reads and writes {@link EarthquakeTable}s in the binary snapshot format of the app, so a
+ * cold start shows rows without parsing JSON, querying the database or formatting anything.
+ * <p>
+ * The file holds the columns of the table as fixed-width little-endian arrays, followed by a
+ * table of the distinct strings they refer to:
+ * <pre>
+ * header      magic, version, row count, string count, string bytes, flags,
+ *             save time, query URL code, display key code (48 bytes)
+ * 8-byte      magnitude, time, updated time, longitude, latitude, depth (n each)
+ * 4-byte      id, location, URL prefix, URL suffix codes (n each)
+ *             magnitude color, magnitude, location prime, location offset, date, time
+ *             codes of the display models (n each, if flagged)
+ * strings     start offsets (string count + 1), UTF-8 bytes
+ * </pre>
+ * String codes index the string table, -1 stands for null. Display models depend on the
+ * locale and time zone they were formatted in, which are stored as the "display key"; in
+ * another one they are formatted again.
+ * <p>
+ * A file is written to a temporary file which is synced and renamed over the old one, so
+ * readers see either the old or the new table. It is read by mapping the file and copying
+ * every column with one bulk copy.
+ */
+public final class EarthquakeSnapshotFormat {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * "EQS1" in ASCII
+     */
+    private static final int MAGIC = 0x45515331;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 48;
+    private static final int FLAG_DISPLAY_MODELS = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * This class is only meant to hold static methods.
+     */
+    private EarthquakeSnapshotFormat() {
+    }
+
+    /**
+     * Returns the earthquakes of the given file if it was written for the given query, null if
+     * it was written for another one.
+     *
+     * @throws IOException if the file can't be read or isn't a snapshot of this version
+     */
+    public static EarthquakeTable read(File file, String requestUrl) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Not a snapshot of version " + VERSION);
+            }
+            int size = buffer.getInt(8);
+            int stringCount = buffer.getInt(12);
+            int stringBytes = buffer.getInt(16);
+            int flags = buffer.getInt(20);
+            int urlCode = buffer.getInt(32);
+            int displayKeyCode = buffer.getInt(36);
+            boolean hasDisplayModels = (flags & FLAG_DISPLAY_MODELS) != 0;
+            long expectedLength = expectedLength(size, stringCount, stringBytes, hasDisplayModels);
+            if (size < 0 || stringCount < 0 || stringBytes < 0 || expectedLength != buffer.capacity()) {
+                throw new IOException("Truncated snapshot");
+            }
+
+            // The string table is needed first, to check the query
+            buffer.position((int) (expectedLength - stringBytes - 4L * (stringCount + 1)));
+            int[] stringOffsets = new int[stringCount + 1];
+            buffer.asIntBuffer().get(stringOffsets);
+            buffer.position(buffer.position() + 4 * stringOffsets.length);
+            byte[] bytes = new byte[stringBytes];
+            buffer.get(bytes);
+            String[] strings = new String[stringCount];
+            for (int i = 0; i < stringCount; i++) {
+                strings[i] = new String(bytes, stringOffsets[i], stringOffsets[i + 1] - stringOffsets[i], UTF_8);
+            }
+            if (urlCode < 0 || !strings[urlCode].equals(requestUrl)) {
+                return null;
+            }
+
+            buffer.position(HEADER_SIZE);
+            double[] magnitudes = readDoubles(buffer, size);
+            long[] times = readLongs(buffer, size);
+            long[] updatedTimes = readLongs(buffer, size);
+            double[] longitudes = readDoubles(buffer, size);
+            double[] latitudes = readDoubles(buffer, size);
+            double[] depths = readDoubles(buffer, size);
+            int[] idCodes = readInts(buffer, size);
+            int[] locationCodes = readInts(buffer, size);
+            int[] urlPrefixCodes = readInts(buffer, size);
+            int[] urlSuffixCodes = readInts(buffer, size);
+
+            EarthquakeDisplayModel[] displayModels = null;
+            if (hasDisplayModels && displayKeyCode >= 0 && strings[displayKeyCode].equals(displayKey())) {
+                int[] colors = readInts(buffer, size);
+                int[] magnitudeCodes = readInts(buffer, size);
+                int[] primeCodes = readInts(buffer, size);
+                int[] offsetCodes = readInts(buffer, size);
+                int[] dateCodes = readInts(buffer, size);
+                int[] timeCodes = readInts(buffer, size);
+                displayModels = new EarthquakeDisplayModel[size];
+                for (int i = 0; i < size; i++) {
+                    displayModels[i] = new EarthquakeDisplayModel(string(strings, magnitudeCodes[i]), colors[i],
+                            string(strings, offsetCodes[i]), string(strings, primeCodes[i]),
+                            string(strings, dateCodes[i]), string(strings, timeCodes[i]));
+                }
+            }
+            return EarthquakeTable.fromColumns(size, strings, idCodes, magnitudes, times, updatedTimes,
+                    longitudes, latitudes, depths, locationCodes, urlPrefixCodes, urlSuffixCodes, displayModels);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the time the given file was written, in milliseconds since the epoch, or 0 if it
+     * isn't a readable snapshot.
+     */
+    public static long readSaveTime(File file) {
+        try {
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                in.readFully(header.array());
+                return header.getInt(0) == MAGIC && header.getInt(4) == VERSION ? header.getLong(24) : 0;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Replaces the given file with the given result of the given query. Display models are only
+     * written if every row has one.
+     *
+     * @return the length of the written file, in bytes
+     */
+    public static long write(File file, String requestUrl, EarthquakeTable table) throws IOException {
+        int size = table.size();
+        StringTable strings = new StringTable();
+        int urlCode = strings.encode(requestUrl);
+        int displayKeyCode = strings.encode(displayKey());
+
+        int[] idCodes = new int[size];
+        int[] locationCodes = new int[size];
+        int[] urlPrefixCodes = new int[size];
+        int[] urlSuffixCodes = new int[size];
+        boolean hasDisplayModels = true;
+        for (int i = 0; i < size; i++) {
+            idCodes[i] = strings.encode(table.getId(i));
+            locationCodes[i] = strings.encode(table.getLocation(i));
+            String url = table.getUrl(i);
+            int prefixEnd = url != null ? url.lastIndexOf('/') + 1 : 0;
+            urlPrefixCodes[i] = strings.encode(url != null ? url.substring(0, prefixEnd) : null);
+            urlSuffixCodes[i] = strings.encode(url != null ? url.substring(prefixEnd) : null);
+            hasDisplayModels &= table.getDisplayModel(i) != null;
+        }
+        int[][] displayColumns = new int[6][];
+        if (hasDisplayModels) {
+            for (int column = 0; column < displayColumns.length; column++) {
+                displayColumns[column] = new int[size];
+            }
+            for (int i = 0; i < size; i++) {
+                EarthquakeDisplayModel displayModel = table.getDisplayModel(i);
+                displayColumns[0][i] = displayModel.getMagnitudeColor();
+                displayColumns[1][i] = strings.encode(displayModel.getMagnitude());
+                displayColumns[2][i] = strings.encode(displayModel.getLocationPrime());
+                displayColumns[3][i] = strings.encode(displayModel.getLocationOffset());
+                displayColumns[4][i] = strings.encode(displayModel.getDate());
+                displayColumns[5][i] = strings.encode(displayModel.getTime());
+            }
+        }
+
+        byte[][] encoded = strings.toBytes();
+        int stringBytes = 0;
+        for (byte[] string : encoded) {
+            stringBytes += string.length;
+        }
+        long length = expectedLength(size, encoded.length, stringBytes, hasDisplayModels);
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Result set too large for a snapshot");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(size).putInt(encoded.length).putInt(stringBytes)
+                .putInt(hasDisplayModels ? FLAG_DISPLAY_MODELS : 0).putLong(System.currentTimeMillis())
+                .putInt(urlCode).putInt(displayKeyCode).putLong(0);
+        for (int i = 0; i < size; i++) {
+            buffer.putDouble(table.getMagnitude(i));
+        }
+        for (int i = 0; i < size; i++) {
+            buffer.putLong(table.getTimeInMillisec(i));
+        }
+        for (int i = 0; i < size; i++) {
+            buffer.putLong(table.getUpdatedInMillisec(i));
+        }
+        for (int i = 0; i < size; i++) {
+            buffer.putDouble(table.getLongitude(i));
+        }
+        for (int i = 0; i < size; i++) {
+            buffer.putDouble(table.getLatitude(i));
+        }
+        for (int i = 0; i < size; i++) {
+            buffer.putDouble(table.getDepth(i));
+        }
+        putInts(buffer, idCodes);
+        putInts(buffer, locationCodes);
+        putInts(buffer, urlPrefixCodes);
+        putInts(buffer, urlSuffixCodes);
+        if (hasDisplayModels) {
+            for (int[] column : displayColumns) {
+                putInts(buffer, column);
+            }
+        }
+        int offset = 0;
+        for (byte[] string : encoded) {
+            buffer.putInt(offset);
+            offset += string.length;
+        }
+        buffer.putInt(offset);
+        for (byte[] string : encoded) {
+            buffer.put(string);
+        }
+
+        // Write next to the file and rename, so readers never see a partial file
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(buffer.array());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+        return length;
+    }
+
+    /**
+     * Returns the locale and time zone display models are formatted in.
+     */
+    private static String displayKey() {
+        return Locale.getDefault() + "/" + TimeZone.getDefault().getID();
+    }
+
+    private static long expectedLength(int size, int stringCount, int stringBytes, boolean hasDisplayModels) {
+        return HEADER_SIZE + 6 * 8L * size + (hasDisplayModels ? 10 : 4) * 4L * size
+                + 4L * (stringCount + 1) + stringBytes;
+    }
+
+    private static String string(String[] strings, int code) {
+        return code < 0 ? null : strings[code];
+    }
+
+    private static double[] readDoubles(ByteBuffer buffer, int size) {
+        double[] values = new double[size];
+        buffer.asDoubleBuffer().get(values);
+        buffer.position(buffer.position() + 8 * size);
+        return values;
+    }
+
+    private static long[] readLongs(ByteBuffer buffer, int size) {
+        long[] values = new long[size];
+        buffer.asLongBuffer().get(values);
+        buffer.position(buffer.position() + 8 * size);
+        return values;
+    }
+
+    private static int[] readInts(ByteBuffer buffer, int size) {
+        int[] values = new int[size];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + 4 * size);
+        return values;
+    }
+
+    private static void putInts(ByteBuffer buffer, int[] values) {
+        buffer.asIntBuffer().put(values);
+        buffer.position(buffer.position() + 4 * values.length);
+    }
+
+    /**
+     * Distinct strings in order of their first occurrence.
+     */
+    private static final class StringTable {
+        private final List<String> mValues = new ArrayList<>();
+        private final Map<String, Integer> mCodes = new HashMap<>();
+
+        int encode(String value) {
+            if (value == null) {
+                return -1;
+            }
+            Integer code = mCodes.get(value);
+            if (code == null) {
+                code = mValues.size();
+                mValues.add(value);
+                mCodes.put(value, code);
+            }
+            return code;
+        }
+
+        byte[][] toBytes() {
+            byte[][] bytes = new byte[mValues.size()][];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = mValues.get(i).getBytes(UTF_8);
+            }
+            return bytes;
+        }
+    }
+}
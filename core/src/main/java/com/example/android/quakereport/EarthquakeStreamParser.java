@@ -0,0 +1,180 @@
+package com.example.android.quakereport;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Pull parser for the USGS GeoJSON feed.
+ * <p>
+ * Instead of reading the whole response into a String and building an org.json.JSONObject
+ * tree, this class reads tokens directly off the response stream. Members we don't use
+ * (e.g. "metadata" and most of "properties") are skipped without being materialized,
+ * and every {@link Earthquake} is handed to the listener as soon as its feature is closed,
+ * so memory use is bounded by a single feature instead of the whole feed.
+ * <p>
+ * Gson's {@link JsonReader} is used rather than android.util.JsonReader, which has the same API:
+ * it doesn't depend on the Android runtime, so the parser can be benchmarked on a desktop JVM.
+ */
+public final class EarthquakeStreamParser {
+
+    /**
+     * String keys of the GeoJSON members read by the parser
+     */
+    private static final String KEY_FEATURES = "features";
+    private static final String KEY_ID = "id";
+    private static final String KEY_PROPERTIES = "properties";
+    private static final String KEY_GEOMETRY = "geometry";
+    private static final String KEY_COORDINATES = "coordinates";
+    private static final String KEY_MAGNITUDE = "mag";
+    private static final String KEY_LOCATION = "place";
+    private static final String KEY_TIME = "time";
+    private static final String KEY_WEBSITE = "url";
+    private static final String KEY_UPDATED = "updated";
+    private static final String KEY_STATUS = "status";
+
+    /**
+     * Value of the "status" property of events which have been deleted by USGS
+     */
+    private static final String STATUS_DELETED = "deleted";
+
+    /**
+     * Callback invoked once for every earthquake read from the feed, in feed order.
+     */
+    public interface OnEarthquakeParsedListener {
+        void onEarthquakeParsed(Earthquake earthquake);
+    }
+
+    /**
+     * This class is only meant to hold static methods.
+     */
+    private EarthquakeStreamParser() {
+
+    }
+
+    /**
+     * Reads a GeoJSON FeatureCollection from the given reader and emits each feature
+     * as an {@link Earthquake} to the listener.
+     *
+     * @param in       reader positioned at the start of the feed
+     * @param listener receives earthquakes one at a time
+     * @return number of earthquakes emitted
+     * @throws IOException if the stream can't be read or is not well-formed JSON
+     */
+    public static int parse(Reader in, OnEarthquakeParsedListener listener) throws IOException {
+        int count = 0;
+        // The reader is owned by the caller, so it is not closed here
+        JsonReader reader = new JsonReader(in);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (KEY_FEATURES.equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    listener.onEarthquakeParsed(readFeature(reader));
+                    count++;
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return count;
+    }
+
+    /**
+     * Reads one feature object, skipping everything but its "id", "properties" and "geometry" members.
+     */
+    private static Earthquake readFeature(JsonReader reader) throws IOException {
+        Earthquake earthquake = new Earthquake();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (KEY_PROPERTIES.equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                readProperties(reader, earthquake);
+            } else if (KEY_GEOMETRY.equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                readGeometry(reader, earthquake);
+            } else if (KEY_ID.equals(name) && reader.peek() == JsonToken.STRING) {
+                earthquake.setId(reader.nextString());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return earthquake;
+    }
+
+    /**
+     * Reads the desired earthquake information from a "properties" object into the given
+     * earthquake. Null values leave the corresponding field untouched.
+     */
+    private static void readProperties(JsonReader reader, Earthquake earthquake) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+                continue;
+            }
+            switch (name) {
+                case KEY_MAGNITUDE:
+                    earthquake.setMagnitude(reader.nextDouble());
+                    break;
+                case KEY_LOCATION:
+                    earthquake.setLocation(reader.nextString());
+                    break;
+                case KEY_TIME:
+                    earthquake.setTimeInMillisec(reader.nextLong());
+                    break;
+                case KEY_WEBSITE:
+                    earthquake.setUrl(reader.nextString());
+                    break;
+                case KEY_UPDATED:
+                    earthquake.setUpdatedInMillisec(reader.nextLong());
+                    break;
+                case KEY_STATUS:
+                    earthquake.setDeleted(STATUS_DELETED.equals(reader.nextString()));
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+    }
+
+    /**
+     * Reads the point of a "geometry" object, i.e. "coordinates": [longitude, latitude, depth],
+     * into the given earthquake. Missing coordinates are left as they are.
+     */
+    private static void readGeometry(JsonReader reader, Earthquake earthquake) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (!KEY_COORDINATES.equals(name) || reader.peek() != JsonToken.BEGIN_ARRAY) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            for (int i = 0; reader.hasNext(); i++) {
+                if (reader.peek() != JsonToken.NUMBER) {
+                    reader.skipValue();
+                    continue;
+                }
+                double value = reader.nextDouble();
+                if (i == 0) {
+                    earthquake.setLongitude(value);
+                } else if (i == 1) {
+                    earthquake.setLatitude(value);
+                } else if (i == 2) {
+                    earthquake.setDepth(value);
+                }
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+    }
+}
@@ -0,0 +1,476 @@
+package com.example.android.quakereport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Column-oriented, append-only container of earthquakes.
+ * <p>
+ * Magnitudes, times and coordinates are kept in primitive arrays instead of one {@link Earthquake}
+ * object (plus its boxed fields) per event. Locations are dictionary-encoded, since the same
+ * place names repeat across a feed, and each distinct location is parsed into its
+ * {@link EarthquakeLocation} only once. Event page URLs are split into a dictionary-encoded
+ * prefix, which is the same for nearly all USGS events, and the event specific suffix. Rows can
+ * also carry their precomputed {@link EarthquakeDisplayModel}, so the list doesn't format on the
+ * main thread.
+ * <p>
+ * A table is filled on one thread and must not be modified once it has been handed to others.
+ * The only exception are the parsed locations and display models, which are computed lazily by
+ * whichever thread asks for them first, so a reader may race the main thread for a row. They
+ * are kept in {@link AtomicReferenceArray}s: every thread sees either no value or a complete
+ * one, and the first value stored is the one all threads get.
+ */
+public final class EarthquakeTable {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Estimated heap used by a String besides its characters, and by a display model and a
+     * parsed location with their strings, in bytes
+     */
+    private static final int STRING_OVERHEAD_BYTES = 40;
+    private static final int DISPLAY_MODEL_BYTES = 320;
+    private static final int PARSED_LOCATION_BYTES = 120;
+
+    private int mSize;
+    private String[] mIds = new String[INITIAL_CAPACITY];
+    private double[] mMagnitudes = new double[INITIAL_CAPACITY];
+    private long[] mTimes = new long[INITIAL_CAPACITY];
+    private long[] mUpdatedTimes = new long[INITIAL_CAPACITY];
+    private double[] mLongitudes = new double[INITIAL_CAPACITY];
+    private double[] mLatitudes = new double[INITIAL_CAPACITY];
+    private double[] mDepths = new double[INITIAL_CAPACITY];
+    private int[] mLocationCodes = new int[INITIAL_CAPACITY];
+    private int[] mUrlPrefixCodes = new int[INITIAL_CAPACITY];
+    private String[] mUrlSuffixes = new String[INITIAL_CAPACITY];
+    private AtomicReferenceArray<EarthquakeDisplayModel> mDisplayModels =
+            new AtomicReferenceArray<>(INITIAL_CAPACITY);
+
+    private final StringDictionary mLocations = new StringDictionary();
+    /**
+     * Parsed location of every location code, null until parsed
+     */
+    private AtomicReferenceArray<EarthquakeLocation> mParsedLocations = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+    private final StringDictionary mUrlPrefixes = new StringDictionary();
+
+    /**
+     * Returns a table holding the given earthquakes in the same order.
+     */
+    public static EarthquakeTable from(List<Earthquake> earthquakes) {
+        EarthquakeTable table = new EarthquakeTable();
+        table.ensureCapacity(earthquakes.size());
+        for (Earthquake earthquake : earthquakes) {
+            table.append(earthquake);
+        }
+        return table;
+    }
+
+    /**
+     * Returns a table holding the given earthquakes in the same order, together with their
+     * already computed display models.
+     */
+    public static EarthquakeTable from(List<Earthquake> earthquakes, List<EarthquakeDisplayModel> displayModels) {
+        EarthquakeTable table = from(earthquakes);
+        for (int i = 0; i < displayModels.size() && i < table.mSize; i++) {
+            table.mDisplayModels.set(i, displayModels.get(i));
+        }
+        return table;
+    }
+
+    /**
+     * Returns a table over the given columns, which are taken over as they are. String columns
+     * are given as codes into the strings array, -1 standing for null.
+     *
+     * @param displayModels precomputed display models of the rows, may be null
+     */
+    static EarthquakeTable fromColumns(int size, String[] strings, int[] idCodes, double[] magnitudes,
+                                       long[] times, long[] updatedTimes, double[] longitudes,
+                                       double[] latitudes, double[] depths, int[] locationCodes,
+                                       int[] urlPrefixCodes, int[] urlSuffixCodes,
+                                       EarthquakeDisplayModel[] displayModels) {
+        EarthquakeTable table = new EarthquakeTable();
+        table.mSize = size;
+        table.mMagnitudes = magnitudes;
+        table.mTimes = times;
+        table.mUpdatedTimes = updatedTimes;
+        table.mLongitudes = longitudes;
+        table.mLatitudes = latitudes;
+        table.mDepths = depths;
+        table.mIds = new String[size];
+        table.mUrlSuffixes = new String[size];
+        table.mLocationCodes = new int[size];
+        table.mUrlPrefixCodes = new int[size];
+        table.mDisplayModels = displayModels != null
+                ? new AtomicReferenceArray<>(displayModels) : new AtomicReferenceArray<EarthquakeDisplayModel>(size);
+
+        // Map the codes of the string array to dictionary codes, each distinct string once
+        int[] locationDictionaryCodes = new int[strings.length];
+        int[] prefixDictionaryCodes = new int[strings.length];
+        Arrays.fill(locationDictionaryCodes, -1);
+        Arrays.fill(prefixDictionaryCodes, -1);
+        for (int i = 0; i < size; i++) {
+            table.mIds[i] = idCodes[i] < 0 ? null : strings[idCodes[i]];
+            table.mUrlSuffixes[i] = urlSuffixCodes[i] < 0 ? null : strings[urlSuffixCodes[i]];
+
+            int code = locationCodes[i];
+            if (code >= 0 && locationDictionaryCodes[code] < 0) {
+                locationDictionaryCodes[code] = table.mLocations.encode(strings[code]);
+            }
+            table.mLocationCodes[i] = code < 0 ? -1 : locationDictionaryCodes[code];
+
+            code = urlPrefixCodes[i];
+            if (code >= 0 && prefixDictionaryCodes[code] < 0) {
+                prefixDictionaryCodes[code] = table.mUrlPrefixes.encode(strings[code]);
+            }
+            table.mUrlPrefixCodes[i] = code < 0 ? -1 : prefixDictionaryCodes[code];
+        }
+        // Parsed on first use, the display models usually come along
+        table.mParsedLocations = new AtomicReferenceArray<>(table.mLocations.size());
+        return table;
+    }
+
+    /**
+     * Appends the fields of the given earthquake as a new row.
+     */
+    public void append(Earthquake earthquake) {
+        append(earthquake.getId(), earthquake.getMagnitude(), earthquake.getLocation(),
+                earthquake.getTimeInMillisec(), earthquake.getUrl(), earthquake.getUpdatedInMillisec(),
+                earthquake.getLongitude(), earthquake.getLatitude(), earthquake.getDepth());
+    }
+
+    /**
+     * Appends a new row with the given fields and unknown coordinates.
+     */
+    public void append(String id, double magnitude, String location, long timeInMillisec, String url,
+                       long updatedInMillisec) {
+        append(id, magnitude, location, timeInMillisec, url, updatedInMillisec,
+                Double.NaN, Double.NaN, Double.NaN);
+    }
+
+    /**
+     * Appends a new row with the given fields. Unknown coordinates are {@link Double#NaN}.
+     */
+    public void append(String id, double magnitude, String location, long timeInMillisec, String url,
+                       long updatedInMillisec, double longitude, double latitude, double depth) {
+        ensureCapacity(mSize + 1);
+        mLongitudes[mSize] = longitude;
+        mLatitudes[mSize] = latitude;
+        mDepths[mSize] = depth;
+        mIds[mSize] = id;
+        mMagnitudes[mSize] = magnitude;
+        mTimes[mSize] = timeInMillisec;
+        mUpdatedTimes[mSize] = updatedInMillisec;
+        int locationCount = mLocations.size();
+        mLocationCodes[mSize] = mLocations.encode(location);
+        if (mLocationCodes[mSize] == locationCount) {
+            // First row with this location
+            if (locationCount == mParsedLocations.length()) {
+                mParsedLocations = copyOf(mParsedLocations, Math.max(INITIAL_CAPACITY, locationCount * 2));
+            }
+            mParsedLocations.set(locationCount, EarthquakeLocationParser.parse(location));
+        }
+
+        int prefixEnd = url != null ? url.lastIndexOf('/') + 1 : 0;
+        mUrlPrefixCodes[mSize] = mUrlPrefixes.encode(url != null ? url.substring(0, prefixEnd) : null);
+        mUrlSuffixes[mSize] = url != null ? url.substring(prefixEnd) : null;
+        mSize++;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public String getId(int index) {
+        checkIndex(index);
+        return mIds[index];
+    }
+
+    public double getMagnitude(int index) {
+        checkIndex(index);
+        return mMagnitudes[index];
+    }
+
+    public long getTimeInMillisec(int index) {
+        checkIndex(index);
+        return mTimes[index];
+    }
+
+    public long getUpdatedInMillisec(int index) {
+        checkIndex(index);
+        return mUpdatedTimes[index];
+    }
+
+    /**
+     * Returns the longitude of the epicenter in degrees, or {@link Double#NaN} if unknown.
+     */
+    public double getLongitude(int index) {
+        checkIndex(index);
+        return mLongitudes[index];
+    }
+
+    /**
+     * Returns the latitude of the epicenter in degrees, or {@link Double#NaN} if unknown.
+     */
+    public double getLatitude(int index) {
+        checkIndex(index);
+        return mLatitudes[index];
+    }
+
+    /**
+     * Returns the depth of the hypocenter in kilometers, or {@link Double#NaN} if unknown.
+     */
+    public double getDepth(int index) {
+        checkIndex(index);
+        return mDepths[index];
+    }
+
+    public String getLocation(int index) {
+        checkIndex(index);
+        return mLocations.decode(mLocationCodes[index]);
+    }
+
+    /**
+     * Returns the structured location of the given row, or null if it has no location.
+     */
+    public EarthquakeLocation getParsedLocation(int index) {
+        checkIndex(index);
+        int code = mLocationCodes[index];
+        if (code < 0) {
+            return null;
+        }
+        EarthquakeLocation location = mParsedLocations.get(code);
+        if (location == null) {
+            // Racing threads parse the same immutable location, the first one stored is kept
+            location = EarthquakeLocationParser.parse(mLocations.decode(code));
+            if (!mParsedLocations.compareAndSet(code, null, location)) {
+                location = mParsedLocations.get(code);
+            }
+        }
+        return location;
+    }
+
+    /**
+     * Returns the event page URL of the given row. The URL is assembled on every call.
+     */
+    public String getUrl(int index) {
+        checkIndex(index);
+        String prefix = mUrlPrefixes.decode(mUrlPrefixCodes[index]);
+        return prefix != null ? prefix + mUrlSuffixes[index] : null;
+    }
+
+    /**
+     * Returns the precomputed display model of the given row, or null if
+     * {@link #prepareDisplayModels(EarthquakeFormatter)} hasn't covered it yet.
+     */
+    public EarthquakeDisplayModel getDisplayModel(int index) {
+        checkIndex(index);
+        return mDisplayModels.get(index);
+    }
+
+    /**
+     * Returns the display model of the given row, computing it first if it hasn't been yet.
+     * Only the one row is formatted, so this is cheap enough for the main thread.
+     */
+    public EarthquakeDisplayModel prepareDisplayModel(int index, EarthquakeFormatter formatter) {
+        checkIndex(index);
+        EarthquakeDisplayModel displayModel = mDisplayModels.get(index);
+        if (displayModel == null) {
+            // Racing threads format the same row, the first model stored is kept
+            displayModel = formatter.format(mMagnitudes[index], getParsedLocation(index), mTimes[index]);
+            if (!mDisplayModels.compareAndSet(index, null, displayModel)) {
+                displayModel = mDisplayModels.get(index);
+            }
+        }
+        return displayModel;
+    }
+
+    /**
+     * Computes the display models of all rows which don't have one yet.
+     * Call this on a background thread before handing the table to the UI.
+     */
+    public void prepareDisplayModels(EarthquakeFormatter formatter) {
+        for (int i = 0; i < mSize; i++) {
+            prepareDisplayModel(i, formatter);
+        }
+    }
+
+    /**
+     * Returns an estimate of the heap used by the table, in bytes. It is meant for memory
+     * budgets: it counts the columns, the strings the table holds and its display models, but
+     * not the objects it shares with other tables.
+     */
+    public long estimateMemoryBytes() {
+        // Six 8-byte columns and five 4-byte code or reference columns
+        long bytes = mMagnitudes.length * (6 * 8L + 5 * 4L);
+        for (int i = 0; i < mSize; i++) {
+            bytes += estimateStringBytes(mIds[i]) + estimateStringBytes(mUrlSuffixes[i]);
+            if (mDisplayModels.get(i) != null) {
+                bytes += DISPLAY_MODEL_BYTES;
+            }
+        }
+        bytes += mLocations.estimateMemoryBytes() + mUrlPrefixes.estimateMemoryBytes();
+        bytes += mLocations.size() * (long) PARSED_LOCATION_BYTES;
+        return bytes;
+    }
+
+    private static long estimateStringBytes(String value) {
+        return value == null ? 0 : STRING_OVERHEAD_BYTES + 2L * value.length();
+    }
+
+    /**
+     * Returns a new table holding the given rows of this table in the given order,
+     * together with their display models.
+     *
+     * @param rows  indexes of the rows to copy
+     * @param count number of leading entries of rows to use
+     */
+    public EarthquakeTable select(int[] rows, int count) {
+        EarthquakeTable table = new EarthquakeTable();
+        table.ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            int row = rows[i];
+            checkIndex(row);
+            table.append(mIds[row], mMagnitudes[row], getLocation(row), mTimes[row], getUrl(row),
+                    mUpdatedTimes[row], mLongitudes[row], mLatitudes[row], mDepths[row]);
+            table.mDisplayModels.set(i, mDisplayModels.get(row));
+        }
+        return table;
+    }
+
+    /**
+     * Returns a lightweight view of the given row.
+     */
+    public Row getRow(int index) {
+        checkIndex(index);
+        return new Row(this, index);
+    }
+
+    /**
+     * Returns the given row as a new {@link Earthquake} object.
+     */
+    public Earthquake toEarthquake(int index) {
+        Earthquake earthquake = new Earthquake(getId(index), getMagnitude(index), getLocation(index),
+                getTimeInMillisec(index), getUrl(index), getUpdatedInMillisec(index));
+        earthquake.setLongitude(mLongitudes[index]);
+        earthquake.setLatitude(mLatitudes[index]);
+        earthquake.setDepth(mDepths[index]);
+        return earthquake;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + mSize);
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mMagnitudes.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, mMagnitudes.length * 2);
+        mIds = Arrays.copyOf(mIds, newCapacity);
+        mMagnitudes = Arrays.copyOf(mMagnitudes, newCapacity);
+        mTimes = Arrays.copyOf(mTimes, newCapacity);
+        mUpdatedTimes = Arrays.copyOf(mUpdatedTimes, newCapacity);
+        mLongitudes = Arrays.copyOf(mLongitudes, newCapacity);
+        mLatitudes = Arrays.copyOf(mLatitudes, newCapacity);
+        mDepths = Arrays.copyOf(mDepths, newCapacity);
+        mLocationCodes = Arrays.copyOf(mLocationCodes, newCapacity);
+        mUrlPrefixCodes = Arrays.copyOf(mUrlPrefixCodes, newCapacity);
+        mUrlSuffixes = Arrays.copyOf(mUrlSuffixes, newCapacity);
+        mDisplayModels = copyOf(mDisplayModels, newCapacity);
+    }
+
+    private static <T> AtomicReferenceArray<T> copyOf(AtomicReferenceArray<T> array, int newLength) {
+        AtomicReferenceArray<T> copy = new AtomicReferenceArray<>(newLength);
+        for (int i = 0; i < array.length() && i < newLength; i++) {
+            copy.set(i, array.get(i));
+        }
+        return copy;
+    }
+
+    /**
+     * View of a single row of an {@link EarthquakeTable}. It holds no copy of the row's data.
+     */
+    public static final class Row {
+        private final EarthquakeTable mTable;
+        private final int mIndex;
+
+        private Row(EarthquakeTable table, int index) {
+            mTable = table;
+            mIndex = index;
+        }
+
+        public int getIndex() {
+            return mIndex;
+        }
+
+        public String getId() {
+            return mTable.getId(mIndex);
+        }
+
+        public double getMagnitude() {
+            return mTable.getMagnitude(mIndex);
+        }
+
+        public long getTimeInMillisec() {
+            return mTable.getTimeInMillisec(mIndex);
+        }
+
+        public String getLocation() {
+            return mTable.getLocation(mIndex);
+        }
+
+        public String getUrl() {
+            return mTable.getUrl(mIndex);
+        }
+    }
+
+    /**
+     * Maps repeated strings to small integer codes. Code -1 stands for null.
+     */
+    private static final class StringDictionary {
+        private final List<String> mValues = new ArrayList<>();
+        private final Map<String, Integer> mCodes = new HashMap<>();
+
+        int encode(String value) {
+            if (value == null) {
+                return -1;
+            }
+            Integer code = mCodes.get(value);
+            if (code == null) {
+                code = mValues.size();
+                mValues.add(value);
+                mCodes.put(value, code);
+            }
+            return code;
+        }
+
+        String decode(int code) {
+            return code < 0 ? null : mValues.get(code);
+        }
+
+        int size() {
+            return mValues.size();
+        }
+
+        /**
+         * Returns an estimate of the heap used by the strings and their hash map entries.
+         */
+        long estimateMemoryBytes() {
+            long bytes = 0;
+            for (String value : mValues) {
+                bytes += estimateStringBytes(value) + 48;
+            }
+            return bytes;
+        }
+    }
+}
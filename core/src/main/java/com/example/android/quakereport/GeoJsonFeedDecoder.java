@@ -0,0 +1,27 @@
+package com.example.android.quakereport;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+
+/**
+ * Decodes the USGS GeoJSON format with the {@link EarthquakeStreamParser}.
+ */
+public final class GeoJsonFeedDecoder implements EarthquakeFeedDecoder {
+
+    public static final String FORMAT = "geojson";
+
+    @Override
+    public String getFormat() {
+        return FORMAT;
+    }
+
+    @Override
+    public int decode(InputStream in, EarthquakeStreamParser.OnEarthquakeParsedListener listener)
+            throws IOException {
+        return EarthquakeStreamParser.parse(
+                new BufferedReader(new InputStreamReader(in, Charset.forName("UTF-8"))), listener);
+    }
+}
@@ -0,0 +1,362 @@
+package com.example.android.quakereport;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Decodes the USGS GeoJSON format on several cores.
+ * <p>
+ * The body is read into memory and its "features" array is cut into chunks of whole features
+ * at the commas between them, found by one pass over the bytes which only tracks nesting and
+ * strings. The chunks are parsed by the {@link EarthquakeStreamParser} as tasks of a fork-join
+ * pool, and the earthquakes of a chunk are handed to the listener on the calling thread as
+ * soon as it and the chunks before it are done, so they arrive in feed order. Bodies below a
+ * size threshold, where splitting doesn't pay off, and bodies whose structure the split pass
+ * doesn't recognize are parsed in one piece on the calling thread.
+ * <p>
+ * Unlike the {@link GeoJsonFeedDecoder}, no earthquake is emitted before the whole body has
+ * arrived and its first chunk is parsed, and the whole body is held in memory. It is meant for bodies known to be large,
+ * e.g. responses with a large Content-Length or local files; bodies whose length is given and
+ * below the threshold are streamed through the {@link EarthquakeStreamParser} instead.
+ */
+public final class ParallelGeoJsonFeedDecoder implements EarthquakeFeedDecoder {
+
+    /**
+     * Default size in bytes below which a body is parsed in one piece, a few hundred features
+     */
+    public static final int DEFAULT_MIN_PARALLEL_BYTES = 256 * 1024;
+
+    /**
+     * Smallest chunk handed to a task, so the tasks outweigh their overhead
+     */
+    private static final int MIN_CHUNK_BYTES = 32 * 1024;
+
+    /**
+     * Chunks per thread of the pool, so threads which finish early take over the rest
+     */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] FEATURES_KEY = "features".getBytes(UTF_8);
+    private static final byte[] CHUNK_PREFIX = "{\"features\":[".getBytes(UTF_8);
+    private static final byte[] CHUNK_SUFFIX = "]}".getBytes(UTF_8);
+
+    private final ForkJoinPool mPool;
+    private final int mMinParallelBytes;
+
+    /**
+     * Constructs a new {@link ParallelGeoJsonFeedDecoder} with a pool of the given number of
+     * threads.
+     *
+     * @param parallelism      number of chunks parsed at the same time
+     * @param minParallelBytes size in bytes below which a body is parsed in one piece
+     */
+    public ParallelGeoJsonFeedDecoder(int parallelism, int minParallelBytes) {
+        mPool = new ForkJoinPool(parallelism);
+        mMinParallelBytes = minParallelBytes;
+    }
+
+    @Override
+    public String getFormat() {
+        return GeoJsonFeedDecoder.FORMAT;
+    }
+
+    /**
+     * Returns the size in bytes below which a body is parsed in one piece.
+     */
+    public int getMinParallelBytes() {
+        return mMinParallelBytes;
+    }
+
+    /**
+     * Tells the decoder that nobody waits for the rest of a body anymore.
+     */
+    public interface Cancellation {
+        boolean isCanceled();
+    }
+
+    @Override
+    public int decode(InputStream in, EarthquakeStreamParser.OnEarthquakeParsedListener listener)
+            throws IOException {
+        return decode(in, -1, listener, null);
+    }
+
+    /**
+     * Reads the whole body and emits every earthquake to the listener, in feed order. A body
+     * below the threshold is streamed as it arrives instead. The stream is owned by the caller
+     * and not closed.
+     *
+     * @param length length of the body in bytes, e.g. its Content-Length, or -1 if unknown
+     * @return number of earthquakes emitted
+     * @throws IOException if the stream can't be read or isn't well-formed
+     */
+    public int decode(InputStream in, long length, EarthquakeStreamParser.OnEarthquakeParsedListener listener)
+            throws IOException {
+        return decode(in, length, listener, null);
+    }
+
+    /**
+     * Like {@link #decode(InputStream, long, EarthquakeStreamParser.OnEarthquakeParsedListener)},
+     * but stops between two chunks once the given cancellation is canceled, leaving the chunks
+     * which haven't been parsed yet.
+     *
+     * @param cancellation checked between chunks, may be null
+     * @throws InterruptedIOException if decoding was canceled
+     */
+    public int decode(InputStream in, long length, EarthquakeStreamParser.OnEarthquakeParsedListener listener,
+                      Cancellation cancellation) throws IOException {
+        if (length >= 0 && length < mMinParallelBytes) {
+            return EarthquakeStreamParser.parse(new BufferedReader(new InputStreamReader(in, UTF_8)), listener);
+        }
+        byte[] body = readFully(in, length > 0 && length < Integer.MAX_VALUE ? (int) length : 64 * 1024);
+        int[] bounds = null;
+        if (body.length >= mMinParallelBytes) {
+            int chunkBytes = Math.max(MIN_CHUNK_BYTES, body.length / (mPool.getParallelism() * CHUNKS_PER_THREAD));
+            bounds = splitFeatures(body, body.length, chunkBytes);
+        }
+        if (bounds == null || bounds.length <= 2) {
+            return EarthquakeStreamParser.parse(
+                    new InputStreamReader(new ByteArrayInputStream(body), UTF_8), listener);
+        }
+
+        // Submitted in feed order, which is about the order the pool takes them in
+        List<ChunkTask> tasks = new ArrayList<>(bounds.length / 2);
+        for (int i = 0; i < bounds.length; i += 2) {
+            ChunkTask task = new ChunkTask(body, bounds[i], bounds[i + 1]);
+            mPool.execute(task);
+            tasks.add(task);
+        }
+        int count = 0;
+        boolean finished = false;
+        try {
+            for (ChunkTask task : tasks) {
+                throwIfCanceled(cancellation);
+                List<Earthquake> earthquakes = task.join();
+                if (earthquakes == null) {
+                    throw task.getError();
+                }
+                throwIfCanceled(cancellation);
+                // Later chunks are still being parsed meanwhile
+                for (Earthquake earthquake : earthquakes) {
+                    listener.onEarthquakeParsed(earthquake);
+                    count++;
+                }
+            }
+            finished = true;
+        } finally {
+            if (!finished) {
+                // Nobody waits for the rest, e.g. the listener gave up or a chunk failed
+                for (ChunkTask task : tasks) {
+                    task.cancel(false);
+                }
+            }
+        }
+        return count;
+    }
+
+    private static void throwIfCanceled(Cancellation cancellation) throws InterruptedIOException {
+        if (cancellation != null && cancellation.isCanceled()) {
+            throw new InterruptedIOException("Decoding canceled");
+        }
+    }
+
+    /**
+     * Returns the start and end offsets of chunks of whole features, at least the given number
+     * of bytes long but the last, as pairs: start of the first chunk, end of the first chunk,
+     * start of the second one and so on. Returns null if the body isn't an object holding a
+     * "features" array.
+     */
+    static int[] splitFeatures(byte[] body, int length, int chunkBytes) {
+        int arrayStart = findFeatures(body, length);
+        if (arrayStart < 0) {
+            return null;
+        }
+        int[] bounds = new int[16];
+        int count = 0;
+        int chunkStart = arrayStart;
+        int depth = 0;
+        for (int i = arrayStart; i < length; i++) {
+            byte c = body[i];
+            if (c == '"') {
+                i = skipString(body, i, length);
+                if (i < 0) {
+                    return null;
+                }
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                if (depth == 0) {
+                    // The end of the array, which is the end of the last chunk
+                    if (c != ']') {
+                        return null;
+                    }
+                    if (count + 2 > bounds.length) {
+                        bounds = Arrays.copyOf(bounds, bounds.length * 2);
+                    }
+                    bounds[count++] = chunkStart;
+                    bounds[count++] = i;
+                    return Arrays.copyOf(bounds, count);
+                }
+                depth--;
+            } else if (c == ',' && depth == 0 && i - chunkStart >= chunkBytes) {
+                if (count + 2 > bounds.length) {
+                    bounds = Arrays.copyOf(bounds, bounds.length * 2);
+                }
+                bounds[count++] = chunkStart;
+                bounds[count++] = i;
+                chunkStart = i + 1;
+            }
+        }
+        // The array isn't closed
+        return null;
+    }
+
+    /**
+     * Returns the offset just past the opening bracket of the "features" array of the top-level
+     * object, or -1 if there is none.
+     */
+    private static int findFeatures(byte[] body, int length) {
+        int depth = 0;
+        for (int i = 0; i < length; i++) {
+            byte c = body[i];
+            if (c == '"') {
+                int end = skipString(body, i, length);
+                if (end < 0) {
+                    return -1;
+                }
+                if (depth == 1 && end - i - 1 == FEATURES_KEY.length && regionMatches(body, i + 1, FEATURES_KEY)) {
+                    int next = skipWhitespace(body, end + 1, length);
+                    if (next < length && body[next] == ':') {
+                        next = skipWhitespace(body, next + 1, length);
+                        return next < length && body[next] == '[' ? next + 1 : -1;
+                    }
+                }
+                i = end;
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                depth--;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the offset of the quote closing the string opened at the given offset, or -1 if
+     * the string isn't closed.
+     */
+    private static int skipString(byte[] body, int start, int length) {
+        for (int i = start + 1; i < length; i++) {
+            byte c = body[i];
+            if (c == '\\') {
+                i++;
+            } else if (c == '"') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipWhitespace(byte[] body, int start, int length) {
+        int i = start;
+        while (i < length && (body[i] == ' ' || body[i] == '\n' || body[i] == '\r' || body[i] == '\t')) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean regionMatches(byte[] body, int offset, byte[] expected) {
+        for (int i = 0; i < expected.length; i++) {
+            if (body[offset + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns all bytes of the given stream, read into a buffer of the given initial capacity
+     * which is only copied if the stream turns out to be longer or shorter.
+     */
+    private static byte[] readFully(InputStream in, int initialCapacity) throws IOException {
+        byte[] buffer = new byte[Math.max(1, initialCapacity)];
+        int length = 0;
+        while (true) {
+            int read = in.read(buffer, length, buffer.length - length);
+            if (read == -1) {
+                break;
+            }
+            length += read;
+            if (length == buffer.length) {
+                // Usually the end of a body of known length
+                int next = in.read();
+                if (next == -1) {
+                    return buffer;
+                }
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                buffer[length++] = (byte) next;
+            }
+        }
+        return length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+    }
+
+    /**
+     * Parses one chunk as a feed of its own. Its result is null if the chunk isn't well-formed.
+     */
+    private static final class ChunkTask extends RecursiveTask<List<Earthquake>> {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] mBody;
+        private final int mStart;
+        private final int mEnd;
+
+        /**
+         * Why the chunk couldn't be parsed, read after joining the task
+         */
+        private IOException mError;
+
+        ChunkTask(byte[] body, int start, int end) {
+            mBody = body;
+            mStart = start;
+            mEnd = end;
+        }
+
+        IOException getError() {
+            return mError;
+        }
+
+        @Override
+        protected List<Earthquake> compute() {
+            InputStream chunk = new SequenceInputStream(Collections.enumeration(Arrays.<InputStream>asList(
+                    new ByteArrayInputStream(CHUNK_PREFIX),
+                    new ByteArrayInputStream(mBody, mStart, mEnd - mStart),
+                    new ByteArrayInputStream(CHUNK_SUFFIX))));
+            final List<Earthquake> earthquakes = new ArrayList<>();
+            try {
+                EarthquakeStreamParser.parse(new InputStreamReader(chunk, UTF_8),
+                        new EarthquakeStreamParser.OnEarthquakeParsedListener() {
+                            @Override
+                            public void onEarthquakeParsed(Earthquake earthquake) {
+                                earthquakes.add(earthquake);
+                            }
+                        });
+                return earthquakes;
+            } catch (IOException e) {
+                mError = e;
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.android.quakereport;
+
+import java.net.HttpURLConnection;
+import java.util.Random;
+
+/**
+ * How often and how long apart failed USGS requests are retried.
+ * <p>
+ * The delay before retry n is drawn uniformly from [0, min(maxDelay, baseDelay * 2^(n-1))]
+ * ("full jitter"), so clients which failed together, e.g. after a USGS outage, don't retry
+ * together as well.
+ */
+public final class RetryPolicy {
+
+    /**
+     * Three attempts, 0.5 s to 8 s apart
+     */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(3, 500, 8000);
+
+    /**
+     * A single attempt
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+
+    /**
+     * Status sent by USGS when a client sends too many requests
+     */
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private final int mMaxAttempts;
+    private final long mBaseDelayMs;
+    private final long mMaxDelayMs;
+
+    /**
+     * Constructs a new {@link RetryPolicy}.
+     *
+     * @param maxAttempts number of attempts including the first one
+     * @param baseDelayMs upper bound of the delay before the first retry, in milliseconds
+     * @param maxDelayMs  upper bound of the delay before any retry, in milliseconds
+     */
+    public RetryPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs) {
+        mMaxAttempts = Math.max(1, maxAttempts);
+        mBaseDelayMs = Math.max(0, baseDelayMs);
+        mMaxDelayMs = Math.max(mBaseDelayMs, maxDelayMs);
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /**
+     * Returns the time to wait after the given failed attempt, in milliseconds.
+     *
+     * @param attempt number of the failed attempt, starting at 1
+     */
+    public long getDelayMs(int attempt, Random random) {
+        long ceiling = mBaseDelayMs;
+        for (int i = 1; i < attempt && ceiling < mMaxDelayMs; i++) {
+            ceiling *= 2;
+        }
+        ceiling = Math.min(ceiling, mMaxDelayMs);
+        return (long) (random.nextDouble() * (ceiling + 1));
+    }
+
+    /**
+     * Returns true if a response with the given status may succeed when it is requested again:
+     * timeouts, throttling and server errors.
+     */
+    public static boolean isRetryable(int responseCode) {
+        return responseCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+                || responseCode == HTTP_TOO_MANY_REQUESTS
+                || responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+    }
+}
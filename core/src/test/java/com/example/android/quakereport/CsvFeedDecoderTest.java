@@ -0,0 +1,163 @@
+package com.example.android.quakereport;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class CsvFeedDecoderTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String HEADER = "time,latitude,longitude,depth,mag,magType,id,updated,place,type,status";
+
+    /**
+     * Buffer size of the decoder's scanner
+     */
+    private static final int BUFFER_BYTES = 16 * 1024;
+
+    /**
+     * Events written both as CSV and as GeoJSON: id, CSV time, the same time in milliseconds
+     * since the epoch, magnitude, place (raw text) and status
+     */
+    private static final Object[][] EVENTS = {
+            {"us1000abcd", "2017-11-23T10:15:30.100Z", 1511432130100L, 4.6, "12 km SSW of Foo, CA", "reviewed"},
+            {"ci38000001", "1960-05-22T19:11:20.000Z", -303281320000L, 9.5, "the \"Great\" Chilean earthquake", "reviewed"},
+            {"ak0001", "2016-02-29T23:59:59.999Z", 1456790399999L, 2.25, "Leap day, \"quoted\", twice", "automatic"},
+            {"nc0002", "2000-02-29T00:00:00.000Z", 951782400000L, -0.5, "plain place", "reviewed"},
+            {"hv0003", "1900-03-01T12:00:00.250Z", -2203847999750L, 7.0, "\"\"", "reviewed"},
+            {"pr0004", "1969-12-31T23:59:59.001Z", -999L, 3.125, "comma,at,every,word", "deleted"}};
+
+    @Test
+    public void decodesLikeGeoJson() throws IOException {
+        assertArrayEquals(decode(new GeoJsonFeedDecoder(), geoJson()), decode(new CsvFeedDecoder(), csv("\n", true)));
+    }
+
+    @Test
+    public void acceptsCrLfAndNoTrailingLineBreak() throws IOException {
+        String[] expected = decode(new CsvFeedDecoder(), csv("\n", true));
+        assertArrayEquals(expected, decode(new CsvFeedDecoder(), csv("\r\n", true)));
+        assertArrayEquals(expected, decode(new CsvFeedDecoder(), csv("\r\n", false)));
+        assertArrayEquals(expected, decode(new CsvFeedDecoder(), csv("\n", false)));
+    }
+
+    @Test
+    public void decodesTheSameWhenBytesTrickleIn() throws IOException {
+        // One byte per read makes the scanner refill at every position of a record
+        byte[] csv = csv("\r\n", false);
+        final InputStream bytes = new ByteArrayInputStream(csv);
+        InputStream trickle = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                return bytes.read();
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                return bytes.read(buffer, offset, Math.min(count, 1));
+            }
+        };
+        assertArrayEquals(decode(new CsvFeedDecoder(), csv), decode(new CsvFeedDecoder(), trickle));
+    }
+
+    @Test
+    public void readsEscapedQuotesAcrossTheBufferEdge() throws IOException {
+        // Move an escaped quote over the end of the first buffer, one byte at a time
+        int headerBytes = (HEADER + "\n").length();
+        for (int padding = BUFFER_BYTES - headerBytes - 40; padding < BUFFER_BYTES - headerBytes + 10; padding++) {
+            char[] filler = new char[padding];
+            Arrays.fill(filler, 'x');
+            String place = new String(filler) + "\"a\"\"\"b\"";
+            String csv = HEADER + "\n" + csvRecord("id", "2017-01-01T00:00:00.000Z", 1.0, place, "reviewed") + "\n";
+            assertEquals(place, decodeOne(csv.getBytes(UTF_8)).getLocation());
+        }
+    }
+
+    @Test
+    public void readsFractionalSeconds() throws IOException {
+        String[] times = {"2017-11-23T10:15:30Z", "2017-11-23T10:15:30.1Z", "2017-11-23T10:15:30.12Z",
+                "2017-11-23T10:15:30.123Z", "2017-11-23T10:15:30.123456Z", "2017-11-23T10:15:30"};
+        long[] expected = {1511432130000L, 1511432130100L, 1511432130120L, 1511432130123L, 1511432130123L,
+                1511432130000L};
+        for (int i = 0; i < times.length; i++) {
+            String csv = HEADER + "\n" + csvRecord("id", times[i], 1.0, "place", "reviewed") + "\n";
+            assertEquals(times[i], expected[i], decodeOne(csv.getBytes(UTF_8)).getTimeInMillisec());
+        }
+    }
+
+    private static Earthquake decodeOne(byte[] csv) throws IOException {
+        final List<Earthquake> earthquakes = new ArrayList<>();
+        new CsvFeedDecoder().decode(new ByteArrayInputStream(csv), new EarthquakeStreamParser.OnEarthquakeParsedListener() {
+            @Override
+            public void onEarthquakeParsed(Earthquake earthquake) {
+                earthquakes.add(earthquake);
+            }
+        });
+        assertEquals(1, earthquakes.size());
+        return earthquakes.get(0);
+    }
+
+    private static String[] decode(EarthquakeFeedDecoder decoder, byte[] feed) throws IOException {
+        return decode(decoder, new ByteArrayInputStream(feed));
+    }
+
+    private static String[] decode(EarthquakeFeedDecoder decoder, InputStream feed) throws IOException {
+        final List<String> earthquakes = new ArrayList<>();
+        decoder.decode(feed, new EarthquakeStreamParser.OnEarthquakeParsedListener() {
+            @Override
+            public void onEarthquakeParsed(Earthquake earthquake) {
+                earthquakes.add(earthquake.toString());
+            }
+        });
+        return earthquakes.toArray(new String[earthquakes.size()]);
+    }
+
+    /**
+     * Returns the events as CSV with the given line break, the last record followed by one
+     * or not.
+     */
+    private static byte[] csv(String lineBreak, boolean trailingLineBreak) {
+        StringBuilder csv = new StringBuilder(HEADER);
+        for (Object[] event : EVENTS) {
+            csv.append(lineBreak).append(csvRecord((String) event[0], (String) event[1], (Double) event[3],
+                    (String) event[4], (String) event[5]));
+        }
+        if (trailingLineBreak) {
+            csv.append(lineBreak);
+        }
+        return csv.toString().getBytes(UTF_8);
+    }
+
+    private static String csvRecord(String id, String time, double magnitude, String place, String status) {
+        // The "updated" time is the event time, so both formats carry the same one
+        return time + ",-33.5,-117.4913333,10.25," + magnitude + ",mw," + id + "," + time + ",\""
+                + place.replace("\"", "\"\"") + "\",earthquake," + status;
+    }
+
+    private static byte[] geoJson() {
+        StringBuilder json = new StringBuilder("{\"type\":\"FeatureCollection\",\"metadata\":{},\"features\":[");
+        for (int i = 0; i < EVENTS.length; i++) {
+            Object[] event = EVENTS[i];
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"type\":\"Feature\",\"properties\":{\"mag\":").append(event[3])
+                    .append(",\"place\":\"").append(((String) event[4]).replace("\"", "\\\""))
+                    .append("\",\"time\":").append(event[2])
+                    .append(",\"updated\":").append(event[2])
+                    .append(",\"url\":\"https://earthquake.usgs.gov/earthquakes/eventpage/").append(event[0])
+                    .append("\",\"status\":\"").append(event[5])
+                    .append("\"},\"geometry\":{\"type\":\"Point\",\"coordinates\":[-117.4913333,-33.5,10.25]},")
+                    .append("\"id\":\"").append(event[0]).append("\"}");
+        }
+        return json.append("]}").toString().getBytes(UTF_8);
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.android.quakereport;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ParallelGeoJsonFeedDecoderTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Place strings which look like feature boundaries to a scanner which ignores strings
+     */
+    private static final String[] TRICKY_PLACES = {
+            "1 km N of A, {B}",
+            "2 km S of [C], D",
+            "},{\\\"type\\\":\\\"Feature\\\"",
+            "quoted \\\"],[{\\\" end",
+            "backslash at the end \\\\",
+            "unicode \\u007b, \u00e9"};
+
+    @Test
+    public void splitsOnlyBetweenFeatures() {
+        byte[] feed = feed(6);
+        int[] bounds = ParallelGeoJsonFeedDecoder.splitFeatures(feed, feed.length, 1);
+        assertEquals(12, bounds.length);
+        for (int i = 0; i < bounds.length; i += 2) {
+            // Bounds are byte offsets, which differ from character offsets after non-ASCII text
+            assertEquals(feature(i / 2), new String(feed, bounds[i], bounds[i + 1] - bounds[i], UTF_8));
+        }
+    }
+
+    @Test
+    public void joinsFeaturesUpToTheChunkSize() {
+        byte[] feed = feed(6);
+        int featureBytes = feature(0).getBytes(UTF_8).length;
+        int[] bounds = ParallelGeoJsonFeedDecoder.splitFeatures(feed, feed.length, 2 * featureBytes);
+        // Two features and the comma between them make a chunk
+        assertEquals(6, bounds.length);
+    }
+
+    @Test
+    public void ignoresWhitespaceAndOtherMembers() {
+        String json = "{ \"metadata\" : {\"features\": [1, 2], \"title\": \"a\\\"],{\"},\n"
+                + " \"features\" :\n [ " + feature(0) + " ,\n " + feature(1) + "\n ], \"bbox\": [1, 2] }";
+        byte[] feed = json.getBytes(UTF_8);
+        int[] bounds = ParallelGeoJsonFeedDecoder.splitFeatures(feed, feed.length, 1);
+        assertEquals(4, bounds.length);
+        assertEquals(feature(1), new String(feed, bounds[2], bounds[3] - bounds[2], UTF_8).trim());
+    }
+
+    @Test
+    public void rejectsUnrecognizedStructure() {
+        assertNull(split("{\"type\":\"FeatureCollection\"}"));
+        assertNull(split("{\"features\":{}}"));
+        assertNull(split("{\"features\":[" + feature(0) + ","));
+        assertNull(split("{\"features\":[{\"id\":\"unterminated}]}"));
+        assertNull(split("[{\"features\":[]}]"));
+    }
+
+    @Test
+    public void decodesLikeTheStreamingDecoder() throws IOException {
+        byte[] feed = feed(200);
+        assertArrayEquals(decode(new GeoJsonFeedDecoder(), feed),
+                decode(new ParallelGeoJsonFeedDecoder(4, 1), feed));
+    }
+
+    @Test
+    public void streamsBodiesOfKnownSmallLength() throws IOException {
+        byte[] feed = feed(3);
+        final List<String> ids = new ArrayList<>();
+        int count = new ParallelGeoJsonFeedDecoder(4, feed.length + 1).decode(new ByteArrayInputStream(feed),
+                feed.length, new EarthquakeStreamParser.OnEarthquakeParsedListener() {
+                    @Override
+                    public void onEarthquakeParsed(Earthquake earthquake) {
+                        ids.add(earthquake.getId());
+                    }
+                });
+        assertEquals(3, count);
+        assertEquals("[id0, id1, id2]", ids.toString());
+    }
+
+    @Test
+    public void stopsBetweenChunksOnceCanceled() throws IOException {
+        // Large enough for several chunks, the first earthquake cancels the rest
+        byte[] feed = feed(1000);
+        final List<String> ids = new ArrayList<>();
+        final boolean[] canceled = new boolean[1];
+        try {
+            new ParallelGeoJsonFeedDecoder(2, 1).decode(new ByteArrayInputStream(feed), feed.length,
+                    new EarthquakeStreamParser.OnEarthquakeParsedListener() {
+                        @Override
+                        public void onEarthquakeParsed(Earthquake earthquake) {
+                            ids.add(earthquake.getId());
+                            canceled[0] = true;
+                        }
+                    }, new ParallelGeoJsonFeedDecoder.Cancellation() {
+                        @Override
+                        public boolean isCanceled() {
+                            return canceled[0];
+                        }
+                    });
+            fail("Decoding wasn't canceled");
+        } catch (InterruptedIOException expected) {
+            // The earthquakes of the first chunk were emitted before the check
+        }
+        assertTrue(ids.size() < 1000);
+        assertEquals("id0", ids.get(0));
+    }
+
+    private static int[] split(String json) {
+        byte[] feed = json.getBytes(UTF_8);
+        return ParallelGeoJsonFeedDecoder.splitFeatures(feed, feed.length, 1);
+    }
+
+    private static String[] decode(EarthquakeFeedDecoder decoder, byte[] feed) throws IOException {
+        final List<String> earthquakes = new ArrayList<>();
+        decoder.decode(new ByteArrayInputStream(feed), new EarthquakeStreamParser.OnEarthquakeParsedListener() {
+            @Override
+            public void onEarthquakeParsed(Earthquake earthquake) {
+                earthquakes.add(earthquake.toString());
+            }
+        });
+        return earthquakes.toArray(new String[earthquakes.size()]);
+    }
+
+    private static byte[] feed(int features) {
+        StringBuilder json = new StringBuilder("{\"type\":\"FeatureCollection\",\"features\":[");
+        for (int i = 0; i < features; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(feature(i));
+        }
+        return json.append("]}").toString().getBytes(UTF_8);
+    }
+
+    private static String feature(int index) {
+        return "{\"type\":\"Feature\",\"properties\":{\"mag\":" + (index % 7) + ".5,\"place\":\""
+                + TRICKY_PLACES[index % TRICKY_PLACES.length] + "\",\"time\":" + index
+                + ",\"url\":\"https://example.com/" + index + "\"},\"geometry\":{\"type\":\"Point\","
+                + "\"coordinates\":[1.5," + index + ",3]},\"id\":\"id" + index + "\"}";
+    }
+}